@@ -3,33 +3,85 @@ package uk.gov.dwp.drs.lambda;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import uk.gov.dwp.drs.lambda.comms.DocumentEntity;
+import uk.gov.dwp.drs.lambda.comms.DrsResult;
 import uk.gov.dwp.drs.lambda.comms.MsgLogging;
+import uk.gov.dwp.drs.lambda.comms.PayloadStore;
 import uk.gov.dwp.drs.lambda.comms.PostToServices;
+import uk.gov.dwp.drs.lambda.comms.StoredPayload;
 import io.puresec.FunctionShield;
+import org.apache.commons.io.IOUtils;
+import org.crac.Core;
+import org.crac.Resource;
 import org.json.JSONObject;
 import uk.gov.dwp.components.drs.creator.api.MetadataCreator;
 import uk.gov.dwp.drs.lambda.exceptions.BLProcessException;
+import uk.gov.dwp.drs.lambda.idempotency.IdempotencyStore;
+import uk.gov.dwp.drs.lambda.idempotency.MemoryIdempotencyStore;
+import uk.gov.dwp.drs.lambda.metrics.EmfMetrics;
+import uk.gov.dwp.drs.lambda.metrics.Metrics;
 import uk.gov.dwp.drs.lambda.misc.Utils;
 import uk.gov.dwp.drs.lambda.util.DrsParameters;
+import uk.gov.dwp.drs.lambda.util.InboundMessage;
+import uk.gov.dwp.drs.lambda.util.KeyMaterial;
+import uk.gov.dwp.drs.lambda.util.MemoryBudget;
+import uk.gov.dwp.drs.lambda.util.RecordCostModel;
+import uk.gov.dwp.drs.lambda.util.RecordValidator;
+import uk.gov.dwp.drs.lambda.util.SignerPool;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class DrsProcess implements RequestHandler<SQSEvent,Void> {
-    private MetadataCreator metadataCreator;
-    private MsgLogging msgLogging;
-    private PostToServices postToServices;
+public class DrsProcess implements RequestHandler<SQSEvent,SQSBatchResponse>, Resource {
+    private final KeyMaterial<SignerPool<MetadataCreator>> signer;
+    // time signers were lent out, across pool versions
+    private final AtomicLong signerBusy = new AtomicLong();
+    private final MsgLogging msgLogging;
+    private final PostToServices postToServices;
+    private final PayloadStore payloads;
+    private final ExecutorService workers;
+    private final boolean partialBatchFailures;
+    private final boolean asyncPosts;
+    private final int primeIterations;
+    private final Metrics metrics;
+    private final RecordCostModel costModel = new RecordCostModel();
+    private final MemoryBudget budget;
+    // null when records are not checked before signing
+    private final RecordValidator validator;
+    private final IdempotencyStore sent;
     private static final String BLOCK = "block";
+    private static final int DEFAULT_WORKER_THREADS = 1;
+    // the body, the payload taken out of it, the signed document and its request bytes are held at once, mostly
+    // as strings at two bytes a character
+    private static final int BYTES_PER_BODY_CHAR = 8;
+    private static final int DEFAULT_PRIME_ITERATIONS = 50;
+    private static final int PRIME_PDF_BYTES = 64 * 1024;
+    private static final int DEFAULT_IDEMPOTENCY_CACHE_SIZE = 10000;
+    private static final int DEFAULT_IDEMPOTENCY_TTL = 3600;
+    // left at the end of the invocation for status messages and the flush
+    private static final int STATUS_RESERVE = 1000;
 
     static
     {
@@ -43,62 +95,505 @@ public class DrsProcess implements RequestHandler<SQSEvent,Void> {
     }
 
     public DrsProcess() throws CertificateException, UnrecoverableKeyException, NoSuchAlgorithmException, IOException, KeyManagementException, KeyStoreException, InvalidKeySpecException {
-        DrsParameters parameters = new DrsParameters();
-        metadataCreator = new MetadataCreator(
+        this(new DrsParameters());
+    }
+
+    public DrsProcess(DrsParameters parameters) throws CertificateException, UnrecoverableKeyException, NoSuchAlgorithmException, IOException, KeyManagementException, KeyStoreException, InvalidKeySpecException {
+        this(parameters, new EmfMetrics(parameters.getParameter(DrsParameters.METRICS_NAMESPACE)));
+    }
+
+    public DrsProcess(DrsParameters parameters, Metrics metrics) throws CertificateException, UnrecoverableKeyException, NoSuchAlgorithmException, IOException, KeyManagementException, KeyStoreException, InvalidKeySpecException {
+        this(parameters, metrics, new MemoryIdempotencyStore(
+                Utils.toInt(parameters.getParameter(DrsParameters.IDEMPOTENCY_CACHE_SIZE), DEFAULT_IDEMPOTENCY_CACHE_SIZE),
+                Utils.toInt(parameters.getParameter(DrsParameters.IDEMPOTENCY_TTL), DEFAULT_IDEMPOTENCY_TTL) * 1000L));
+    }
+
+    /**
+     * @param sent records already sent to DRS, checked before signing so redelivered records are not sent again
+     */
+    public DrsProcess(DrsParameters parameters, Metrics metrics, IdempotencyStore sent) throws CertificateException, UnrecoverableKeyException, NoSuchAlgorithmException, IOException, KeyManagementException, KeyStoreException, InvalidKeySpecException {
+        this.metrics = metrics;
+        this.sent = sent;
+        int workerThreads = Utils.toInt(parameters.getParameter(DrsParameters.WORKER_THREADS), DEFAULT_WORKER_THREADS);
+        // more signers than workers would never be used, nor more than there are cores to sign on
+        int signers = Utils.toInt(parameters.getParameter(DrsParameters.SIGNER_POOL_SIZE),
+                Math.min(Math.max(1, workerThreads), Runtime.getRuntime().availableProcessors()));
+        signer = new KeyMaterial<>("signing", parameters, createSigners(parameters, signers),
+                () -> createSigners(parameters, signers), null,
+                DrsParameters.SIGNKEY_PRV, DrsParameters.SIGNKEY_PUB, DrsParameters.DRSREQUEST_USERNAME);
+        postToServices = new PostToServices(parameters);
+        payloads = new PayloadStore(parameters);
+        msgLogging = new MsgLogging(parameters);
+        workers = Executors.newFixedThreadPool(Math.max(1, workerThreads), Utils.makeThreadFactory("drs-worker"));
+        // half the heap unless set, which follows the memory the Lambda is given
+        String memoryBudget = parameters.getParameter(DrsParameters.MEMORY_BUDGET);
+        budget = new MemoryBudget(memoryBudget == null || memoryBudget.isEmpty()
+                ? Runtime.getRuntime().maxMemory() / 2 : Utils.toInt(memoryBudget, 0) * 1024L * 1024L);
+        validator = "false".equalsIgnoreCase(parameters.getParameter(DrsParameters.VALIDATE_RECORDS)) ? null
+                : new RecordValidator(Utils.toInt(parameters.getParameter(DrsParameters.PDF_MAX_BYTES),
+                        (int) RecordValidator.DEFAULT_MAX_PDF_BYTES));
+        partialBatchFailures = Boolean.parseBoolean(parameters.getParameter(DrsParameters.PARTIAL_BATCH_FAILURES));
+        asyncPosts = Boolean.parseBoolean(parameters.getParameter(DrsParameters.DRS_ASYNC));
+        primeIterations = Utils.toInt(parameters.getParameter(DrsParameters.PRIME_ITERATIONS), DEFAULT_PRIME_ITERATIONS);
+
+        // Only called back when the runtime takes a snapshot (SnapStart), otherwise this does nothing.
+        Core.getGlobalContext().register(this);
+    }
+
+    private static MetadataCreator createSigner(DrsParameters parameters) throws InvalidKeySpecException, NoSuchAlgorithmException, CertificateException, IOException {
+        return new MetadataCreator(
                 parameters.getParameter(DrsParameters.SIGNKEY_PRV),
                 parameters.getParameter(DrsParameters.SIGNKEY_PUB),
                 parameters.getParameter(DrsParameters.DRSREQUEST_USERNAME));
-        postToServices = new PostToServices(parameters);
-        msgLogging = new MsgLogging(parameters);
+    }
+
+    private static SignerPool<MetadataCreator> createSigners(DrsParameters parameters, int size) throws InvalidKeySpecException, NoSuchAlgorithmException, CertificateException, IOException {
+        List<MetadataCreator> signers = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, size); i++) {
+            signers.add(createSigner(parameters));
+        }
+        return new SignerPool<>(signers);
+    }
+
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+        prime();
+        msgLogging.flush();
+        postToServices.closeConnections();
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) throws Exception {
+        postToServices.restore();
+        msgLogging.restore();
+    }
+
+    // Runs a synthetic record through parsing, signing and encoding so the snapshot holds loaded classes and
+    // compiled code.  Nothing is posted or logged to the status queue.
+    private void prime() {
+        LambdaLogger logger = Utils.makeLambdaLoggerAdaptor();
+        String record = Utils.makeSyntheticRecord(PRIME_PDF_BYTES);
+
+        for (int i = 0; i < primeIterations; i++) {
+            try {
+                InboundMessage message = InboundMessage.read(record);
+                String doc;
+                try (SignerPool<MetadataCreator>.Lease lease = signer.get().lease()) {
+                    doc = lease.get().getDocument(message.getMetadata(), message.getPayload());
+                }
+                if (doc != null) {
+                    postToServices.prime(doc);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException | RuntimeException e) {
+                logger.log("Priming stopped after " + i + " iterations: " + e.getMessage());
+                return;
+            }
+        }
     }
 
     @Override
-    public Void handleRequest(SQSEvent sqsEvent, Context context) {
+    public SQSBatchResponse handleRequest(SQSEvent sqsEvent, Context context) {
         LambdaLogger logger = context == null ? Utils.makeLambdaLoggerAdaptor() : context.getLogger();
+        long started = System.nanoTime();
+        Metrics.Batch batch = metrics.startBatch();
+        long signerBusyBefore = signerBusy.get();
+        long deadline = context == null ? Long.MAX_VALUE
+                : System.currentTimeMillis() + context.getRemainingTimeInMillis() - STATUS_RESERVE;
 
         logger.log("========================== BL Process ==================================");
 
-        ObjectMapper objectMapper = new ObjectMapper();
-        sqsEvent.getRecords()
-                .forEach(c -> {
-                    String metadata = "";
-                    String correlationId = "";
-                    try {
-                        SQSEvent.MessageAttribute messageAttribute = c.getMessageAttributes().get(Utils.JMS_CORRELATION_ID);
-                        correlationId = messageAttribute == null ? UUID.randomUUID().toString() : messageAttribute.getStringValue();
-
-                        logger.log("Processing message with correlation id " + correlationId);
-
-                        JsonNode jsonNode = objectMapper.readTree(c.getBody());
-                        String pdf = jsonNode.get("payload").textValue();
-                        metadata = jsonNode.get("metadata").toString();
-
-                        String doc = metadataCreator.getDocument(metadata,
-                                (pdf.startsWith("\"") && pdf.endsWith("\"")) ? pdf.substring(1, pdf.length()-1) : pdf);
-                        if (doc == null) {
-                            throw new BLProcessException("No document was generated. (" + correlationId + ")");
-                        }
-
-                        boolean result = postToServices.postToDRS(doc, correlationId);
-                        if (result) {
-                            logger.log("Application successfully sent to DRS (" + correlationId + ")");
-                            msgLogging.logEvent("SUCCEEDED", correlationId, null, null);
-                        } else {
-                            logger.log("Application failed to send to DRS. (" + correlationId + ")");
-                            throw new BLProcessException("Application failed to send to DRS. (" + correlationId + ")");
-                        }
-
-                    } catch (IOException e) {
-                        logger.log(e.getMessage());
-                        msgLogging.logEvent("FAILED", correlationId, e.getLocalizedMessage(), null);
-                        throw new BLProcessException("Failed to process message", e);
-                    } catch (BLProcessException e) {
-                        logger.log(e.getMessage());
-                        msgLogging.logEvent("FAILED", correlationId, e.getLocalizedMessage(), null);
-                        throw e;
+        // Rotated keys are built in the background and used by later records once ready.
+        signer.refreshIfChanged();
+        postToServices.refreshIfChanged();
+
+        List<SQSEvent.SQSMessage> records = sqsEvent.getRecords();
+        List<Future<Boolean>> results = new ArrayList<>();
+        AtomicBoolean stopped = new AtomicBoolean();
+        // Async posts hold a worker only to parse and sign, so the workers can be sized for signing alone.
+        records.forEach(c -> results.add(asyncPosts
+                ? CompletableFuture.supplyAsync(() -> processInTimeAsync(c, logger, batch, deadline, stopped), workers).thenCompose(f -> f)
+                : workers.submit(() -> processInTime(c, logger, batch, deadline, stopped))));
+
+        // Every record is allowed to finish before failures are reported, so one bad message
+        // cannot abandon the rest of the batch half way through.
+        List<SQSBatchResponse.BatchItemFailure> batchItemFailures = new ArrayList<>();
+        RuntimeException failure = null;
+        int notStarted = 0;
+        try {
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    if (!results.get(i).get()) {
+                        batchItemFailures.add(new SQSBatchResponse.BatchItemFailure(records.get(i).getMessageId()));
+                        notStarted++;
+                    }
+                } catch (ExecutionException e) {
+                    batchItemFailures.add(new SQSBatchResponse.BatchItemFailure(records.get(i).getMessageId()));
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                                : new BLProcessException("Failed to process message", e.getCause());
                     }
-                });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new BLProcessException("Interrupted while processing messages", e);
+                }
+            }
+        } finally {
+            // Status events are sent in the background, so make sure they are out before the container freezes.
+            long flushStarted = System.nanoTime();
+            msgLogging.flush();
+            batch.stage(Metrics.Stage.FLUSH, flushStarted);
+        }
+
+        if (notStarted > 0) {
+            logger.log(notStarted + " records were not started, not enough time left in the invocation");
+            batch.count("RecordsNotStarted", notStarted);
+            if (failure == null) {
+                failure = new BLProcessException(notStarted + " records were not started before the invocation deadline");
+            }
+        }
+        logger.log("DRS connection pool: " + postToServices.getPoolMetrics() + ", key versions: tls="
+                + postToServices.getKeyVersion() + " signing=" + signer.getVersion()
+                + ", circuit: " + postToServices.getCircuitState()
+                + ", concurrency limit: " + postToServices.getConcurrencyLimit());
+        postToServices.drainCircuitTransitions().forEach((state, count) -> batch.count(state.getMetricName(), count));
+        int limit = postToServices.getConcurrencyLimit();
+        if (limit > 0) {
+            batch.count("DrsConcurrencyLimit", limit);
+        }
+        int limitRejections = postToServices.drainLimitRejections();
+        if (limitRejections > 0) {
+            batch.count("DrsLimitRejections", limitRejections);
+        }
+        // share of the signers' time they were lent out for while this batch ran
+        batch.percent("SignerUtilisation", Math.min(100, 100.0 * (signerBusy.get() - signerBusyBefore)
+                / Math.max(1, (System.nanoTime() - started) * signer.get().size())));
+        batch.finish(records.size(), batchItemFailures.size() - notStarted, System.nanoTime() - started, logger);
+
+        // Without partial batch responses SQS can only redeliver the whole batch, so fail the invocation.
+        if (failure != null && !partialBatchFailures) {
+            throw failure;
+        }
+
+        return new SQSBatchResponse(batchItemFailures);
+    }
+
+    // Once one record is not expected to finish before the deadline no more are started, and they are handed back
+    // to SQS untouched rather than being cut off by the timeout half way through.
+    private boolean processInTime(SQSEvent.SQSMessage c, LambdaLogger logger, Metrics.Batch batch, long deadline, AtomicBoolean stopped) {
+        int size = c.getBody() == null ? 0 : c.getBody().length();
+        MemoryBudget.Grant grant = startInTime(size, batch, deadline, stopped);
+        if (grant == null) {
+            return false;
+        }
+
+        RecordRun run = new RecordRun(size, grant);
+        long started = System.nanoTime();
+        try {
+            processMessage(c, logger, batch, deadline, stopped, run);
+        } finally {
+            run.grant.close();
+            observe(run, started);
+        }
+        return !run.handedBack;
+    }
+
+    private CompletableFuture<Boolean> processInTimeAsync(SQSEvent.SQSMessage c, LambdaLogger logger, Metrics.Batch batch, long deadline, AtomicBoolean stopped) {
+        int size = c.getBody() == null ? 0 : c.getBody().length();
+        MemoryBudget.Grant grant = startInTime(size, batch, deadline, stopped);
+        if (grant == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        RecordRun run = new RecordRun(size, grant);
+        long started = System.nanoTime();
+        CompletableFuture<Void> processed;
+        try {
+            processed = processMessageAsync(c, logger, batch, deadline, stopped, run);
+        } catch (RuntimeException e) {
+            processed = new CompletableFuture<>();
+            processed.completeExceptionally(e);
+        }
+        return processed
+                .whenComplete((v, e) -> {
+                    run.grant.close();
+                    observe(run, started);
+                })
+                .thenApply(v -> !run.handedBack);
+    }
+
+    // Only records that reached DRS say how long a record takes.  Those already sent, rejected before signing or
+    // turned away by the circuit breaker or concurrency limit finish in no time, most of all while DRS is unhealthy.
+    private void observe(RecordRun run, long started) {
+        if (run.posted) {
+            costModel.observe(run.size, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        }
+    }
+
+    // Returns the record's share of the memory budget, or null if it should be left for SQS.  A record that had to
+    // wait for memory is checked against the deadline again once it has it.
+    private MemoryBudget.Grant startInTime(int size, Metrics.Batch batch, long deadline, AtomicBoolean stopped) {
+        if (!fitsInTime(size, deadline, stopped)) {
+            return null;
+        }
+        MemoryBudget.Grant grant;
+        try {
+            grant = budget.acquire((long) size * BYTES_PER_BODY_CHAR, deadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BLProcessException("Interrupted while waiting for memory", e);
+        }
+        if (grant == null) {
+            stopped.set(true);
+            return null;
+        }
+        if (grant.getWaitStarted() != 0) {
+            batch.stage(Metrics.Stage.BUDGET, grant.getWaitStarted());
+            batch.count("BudgetWaits", 1);
+            if (!fitsInTime(size, deadline, stopped)) {
+                grant.close();
+                return null;
+            }
+        }
+        return grant;
+    }
+
+    private boolean fitsInTime(int size, long deadline, AtomicBoolean stopped) {
+        if (stopped.get() || !costModel.fits(size, deadline)) {
+            stopped.set(true);
+            return false;
+        }
+        return true;
+    }
+
+    // A record whose PDF is in S3 was started on the size of its SQS body, which says nothing of the PDF.  Once
+    // the PDF's size is known the record's memory is given back and taken again for it, so a record never waits for
+    // memory while holding some, and it is checked against the deadline at that size.
+    private boolean resize(RecordRun run, long storedBytes, Metrics.Batch batch, long deadline, AtomicBoolean stopped) {
+        int size = (int) Math.min(Integer.MAX_VALUE, DocumentEntity.base64Length(storedBytes));
+        run.grant.close();
+        MemoryBudget.Grant grant = startInTime(size, batch, deadline, stopped);
+        if (grant == null) {
+            run.handedBack = true;
+            return false;
+        }
+        run.size = size;
+        run.grant = grant;
+        return true;
+    }
+
+    private void processMessage(SQSEvent.SQSMessage c, LambdaLogger logger, Metrics.Batch batch, long deadline, AtomicBoolean stopped, RecordRun run) {
+        SignedRecord signed = sign(c, logger, batch, deadline, stopped, run);
+        if (signed != null) {
+            post(signed, logger, batch, deadline, run);
+        }
+    }
+
+    private void post(SignedRecord signed, LambdaLogger logger, Metrics.Batch batch, long deadline, RecordRun run) {
+        DrsResult result;
+        try {
+            result = postToServices.postToDRS(signed.document, signed.correlationId, deadline);
+        } catch (IOException | BLProcessException e) {
+            run.posted = reachedDrs(e);
+            throw failed(signed.correlationId, e, logger, batch);
+        }
+        run.posted = true;
+        posted(signed, result, logger, batch);
+    }
+
+    // The worker is let go once the record is signed.  The status is sent from a worker again when DRS answers.
+    // The record's memory is given back as soon as DRS answers, as the workers may all be waiting for it.
+    private CompletableFuture<Void> processMessageAsync(SQSEvent.SQSMessage c, LambdaLogger logger, Metrics.Batch batch, long deadline, AtomicBoolean stopped, RecordRun run) {
+        SignedRecord signed = sign(c, logger, batch, deadline, stopped, run);
+        if (signed == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return postToServices.postToDRSAsync(signed.document, signed.correlationId, deadline)
+                .whenComplete((result, e) -> run.grant.close())
+                .handleAsync((result, e) -> {
+                    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                    run.posted = cause == null || reachedDrs(cause);
+                    if (cause instanceof IOException || cause instanceof BLProcessException) {
+                        throw failed(signed.correlationId, (Exception) cause, logger, batch);
+                    } else if (cause != null) {
+                        throw new CompletionException(cause);
+                    }
+                    posted(signed, result, logger, batch);
+                    return null;
+                }, workers);
+    }
+
+    // Returns null when the record was already sent, after sending its status again, or when it is handed back to
+    // SQS as its stored PDF turned out too large to finish in time.
+    private SignedRecord sign(SQSEvent.SQSMessage c, LambdaLogger logger, Metrics.Batch batch, long deadline, AtomicBoolean stopped, RecordRun run) {
+        String correlationId = "";
+        try {
+            SQSEvent.MessageAttribute messageAttribute = c.getMessageAttributes().get(Utils.JMS_CORRELATION_ID);
+            correlationId = messageAttribute == null ? UUID.randomUUID().toString() : messageAttribute.getStringValue();
+
+            logger.log("Processing message with correlation id " + correlationId);
+            // a generated correlation id would never match a redelivery
+            String key = messageAttribute == null ? c.getMessageId() : c.getMessageId() + "/" + correlationId;
+            String sentAs = sentAs(key, logger);
+            if (sentAs != null) {
+                logger.log("Application already sent to DRS as " + sentAs + ", not sending again (" + correlationId + ")");
+                long statusStarted = System.nanoTime();
+                // the same status as the first time, with the identifier DRS gave then
+                msgLogging.logEvent("SUCCEEDED", correlationId, null, sentAs.isEmpty() ? null : sentAs);
+                batch.stage(Metrics.Stage.STATUS, statusStarted);
+                return null;
+            }
+            postToServices.checkAvailable(correlationId);
+
+            long mark = System.nanoTime();
+            InboundMessage message = InboundMessage.read(c.getBody());
+            String payload = message.getPayload();
+            if (validator != null) {
+                validator.validate(message, correlationId);
+            }
+            if (message.getPayloadLocation() != null) {
+                StoredPayload stored = payloads.get(message.getPayloadLocation());
+                if (validator != null) {
+                    validator.validateStoredSize(stored.getLength(), correlationId);
+                }
+                if (!resize(run, stored.getLength(), batch, deadline, stopped)) {
+                    logger.log("Not enough time left to send " + message.getPayloadLocation() + ", left for SQS ("
+                            + correlationId + ")");
+                    return null;
+                }
+                // the signer is given the PDF itself, so that its signature covers what DRS is sent
+                payload = readStored(stored, correlationId);
+            }
+            batch.payload(payload.length());
+            mark = batch.stage(Metrics.Stage.PARSE, mark);
+
+            String doc;
+            SignerPool<MetadataCreator>.Lease lease = leaseSigner(batch);
+            long leased = System.nanoTime();
+            try {
+                doc = lease.get().getDocument(message.getMetadata(), payload);
+            } finally {
+                lease.close();
+                signerBusy.addAndGet(System.nanoTime() - leased);
+            }
+            // includes any wait for the signer
+            mark = batch.stage(Metrics.Stage.SIGN, mark);
+            if (doc == null) {
+                throw new BLProcessException("No document was generated. (" + correlationId + ")");
+            }
+            return new SignedRecord(correlationId, key, doc, mark);
+        } catch (IOException | BLProcessException e) {
+            throw failed(correlationId, e, logger, batch);
+        }
+    }
+
+    // A post that reached DRS fails with the IOException of its last attempt.  DrsUnavailableException means it was
+    // turned away by the circuit breaker, or by the concurrency limit as DrsLimitedException.
+    private static boolean reachedDrs(Throwable failure) {
+        return failure instanceof IOException;
+    }
+
+    // Checked as an inline payload would be, and base64 encoded as one.  The raw bytes are let go before signing.
+    private String readStored(StoredPayload stored, String correlationId) throws IOException {
+        byte[] pdf;
+        try (InputStream in = stored.open()) {
+            pdf = IOUtils.toByteArray(in);
+        }
+        if (pdf.length != stored.getLength()) {
+            throw new IOException("Stored payload was " + pdf.length + " bytes, expected " + stored.getLength());
+        }
+        if (validator != null) {
+            validator.validateStoredPdf(pdf, correlationId);
+        }
+        return Base64.getEncoder().encodeToString(pdf);
+    }
+
+    // MetadataCreator makes no promise of thread safety, so each signer in the pool signs one record at a time.
+    private SignerPool<MetadataCreator>.Lease leaseSigner(Metrics.Batch batch) {
+        SignerPool<MetadataCreator>.Lease lease;
+        try {
+            lease = signer.get().lease();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BLProcessException("Interrupted while waiting for a signer", e);
+        }
+        if (lease.getWaitStarted() != 0) {
+            batch.stage(Metrics.Stage.SIGNER_WAIT, lease.getWaitStarted());
+        }
+        return lease;
+    }
+
+    private void posted(SignedRecord signed, DrsResult result, LambdaLogger logger, Metrics.Batch batch) {
+        long mark = batch.stage(Metrics.Stage.POST, signed.signedAt);
+        if (!result.isSuccess()) {
+            String fault = result.getFault();
+            String message = "Application failed to send to DRS, code " + result.getStatusCode()
+                    + (fault == null ? "" : ", " + fault) + ". (" + signed.correlationId + ")";
+            logger.log(message);
+            throw failed(signed.correlationId, new BLProcessException(message), logger, batch);
+        }
+        logger.log("Application successfully sent to DRS as " + result.getDocumentId() + " (" + signed.correlationId + ")");
+        markSent(signed.key, result.getDocumentId(), logger);
+        msgLogging.logEvent("SUCCEEDED", signed.correlationId, null, result.getDocumentId());
+        batch.stage(Metrics.Stage.STATUS, mark);
+    }
+
+    // Sends the FAILED status and returns the exception to fail the record with.
+    private BLProcessException failed(String correlationId, Exception e, LambdaLogger logger, Metrics.Batch batch) {
+        logger.log(e.getMessage());
+        long statusStarted = System.nanoTime();
+        msgLogging.logEvent("FAILED", correlationId, e.getLocalizedMessage(), null);
+        batch.stage(Metrics.Stage.STATUS, statusStarted);
+        return e instanceof BLProcessException ? (BLProcessException) e : new BLProcessException("Failed to process message", e);
+    }
+
+    // Returns the document identifier the record was sent as, empty if DRS gave none, or null if it was not sent.
+    // A store that cannot be reached never stops a record being sent, at worst it is sent twice as before.
+    private String sentAs(String key, LambdaLogger logger) {
+        try {
+            return sent.getDocumentId(key);
+        } catch (IOException | RuntimeException e) {
+            logger.log("Could not check whether " + key + " was already sent: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void markSent(String key, String documentId, LambdaLogger logger) {
+        try {
+            sent.markDone(key, documentId == null ? "" : documentId);
+        } catch (IOException | RuntimeException e) {
+            logger.log("Could not record " + key + " as sent: " + e.getMessage());
+        }
+    }
+
+    // What is known of a record while it is processed, which for a stored PDF changes once its size is read.
+    private static class RecordRun {
+        private volatile int size;
+        private volatile MemoryBudget.Grant grant;
+        // not started after all, so it is left for SQS without a status
+        private volatile boolean handedBack;
+        // a post got through to DRS, whatever it answered
+        private volatile boolean posted;
+
+        RecordRun(int size, MemoryBudget.Grant grant) {
+            this.size = size;
+            this.grant = grant;
+        }
+    }
+
+    private static class SignedRecord {
+        private final String correlationId;
+        private final String key;
+        private final String document;
+        private final long signedAt;
 
-        return null;
+        SignedRecord(String correlationId, String key, String document, long signedAt) {
+            this.correlationId = correlationId;
+            this.key = key;
+            this.document = document;
+            this.signedAt = signedAt;
+        }
     }
 }
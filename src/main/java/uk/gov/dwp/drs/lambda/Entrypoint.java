@@ -3,7 +3,9 @@ package uk.gov.dwp.drs.lambda;
 import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 import uk.gov.dwp.drs.lambda.exceptions.BLProcessException;
+import uk.gov.dwp.drs.lambda.metrics.NoOpMetrics;
 import uk.gov.dwp.drs.lambda.misc.Utils;
+import uk.gov.dwp.drs.lambda.util.DrsParameters;
 
 import java.io.File;
 import java.io.IOException;
@@ -26,7 +28,7 @@ public class Entrypoint {
         DrsProcess process;
         String application;
         try {
-            process = new DrsProcess();
+            process = new DrsProcess(new DrsParameters(), new NoOpMetrics());
             application = FileUtils.readFileToString(new File(args[0]));
         } catch (CertificateException | UnrecoverableKeyException | IOException | NoSuchAlgorithmException | KeyStoreException | KeyManagementException | InvalidKeySpecException e) {
             LOGGER.info("Failed to run DRS communicator process", e);
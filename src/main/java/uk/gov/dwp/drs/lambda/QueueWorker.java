@@ -0,0 +1,219 @@
+package uk.gov.dwp.drs.lambda;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import org.apache.log4j.Logger;
+import uk.gov.dwp.drs.lambda.misc.Utils;
+import uk.gov.dwp.drs.lambda.util.DrsParameters;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the DrsProcess pipeline as a long running container worker instead of a Lambda.  One thread long polls the
+ * request queue and hands each batch it receives to DrsProcess; records that succeed are deleted and the rest are
+ * left to come back after the visibility timeout.  No more than worker_max_in_flight messages are held at once, so
+ * when the workers are busy the poller waits and messages stay on the queue.  On SIGTERM polling stops and the
+ * messages already received are finished before the JVM exits.
+ */
+public class QueueWorker {
+    private static final Logger LOGGER = Logger.getLogger(QueueWorker.class);
+    private static final int MAX_MESSAGES = 10;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 10;
+    private static final int DEFAULT_POLL_WAIT = 20;
+    private static final int DEFAULT_DRAIN_TIMEOUT = 25;
+    private static final int POLL_ERROR_DELAY = 1000;
+
+    private final DrsProcess process;
+    private final AmazonSQS sqs;
+    private final String queueUrl;
+    private final int maxInFlight;
+    private final int pollWait;
+    private final int drainTimeout;
+    private final Semaphore inFlight;
+    private final ExecutorService dispatch;
+    private final Thread poller;
+    private volatile boolean running = true;
+
+    public QueueWorker(DrsParameters parameters, DrsProcess process, AmazonSQS sqs) {
+        this.process = process;
+        this.sqs = sqs;
+        this.queueUrl = sqs.getQueueUrl(parameters.getParameter(DrsParameters.REQUEST_QUEUE)).getQueueUrl();
+        this.maxInFlight = Math.max(1, Utils.toInt(parameters.getParameter(DrsParameters.WORKER_MAX_IN_FLIGHT), DEFAULT_MAX_IN_FLIGHT));
+        this.pollWait = Math.min(20, Math.max(0, Utils.toInt(parameters.getParameter(DrsParameters.WORKER_POLL_WAIT), DEFAULT_POLL_WAIT)));
+        this.drainTimeout = Math.max(0, Utils.toInt(parameters.getParameter(DrsParameters.WORKER_DRAIN_TIMEOUT), DEFAULT_DRAIN_TIMEOUT));
+        this.inFlight = new Semaphore(maxInFlight);
+        // every batch holds at least one permit, so there is never a batch waiting for a thread
+        this.dispatch = Executors.newFixedThreadPool(maxInFlight, Utils.makeThreadFactory("drs-dispatch"));
+        this.poller = new Thread(this::poll, "drs-poller");
+        this.poller.setDaemon(true);
+    }
+
+    public static void main(String[] args) throws Exception {
+        DrsParameters parameters = new DrsParameters();
+        QueueWorker worker = new QueueWorker(parameters, new DrsProcess(parameters),
+                Utils.makeSQSClient(parameters.getSystemParameter("sqshost"), "drs-requests", 1));
+        Runtime.getRuntime().addShutdownHook(new Thread(worker::drain, "drs-drain"));
+        worker.start();
+        worker.poller.join();
+        worker.dispatch.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    public void start() {
+        LOGGER.info("Polling " + queueUrl + " with up to " + maxInFlight + " messages in flight");
+        poller.start();
+    }
+
+    /**
+     * Stops polling and waits up to worker_drain_timeout seconds for the messages already received to finish.
+     * Returns whether they all did.
+     */
+    public boolean drain() {
+        running = false;
+        try {
+            // a long poll in progress still returns its messages, and they are processed
+            poller.join(TimeUnit.SECONDS.toMillis(pollWait) + POLL_ERROR_DELAY);
+            dispatch.shutdown();
+            boolean drained = dispatch.awaitTermination(drainTimeout, TimeUnit.SECONDS);
+            if (!drained) {
+                LOGGER.warn((maxInFlight - inFlight.availablePermits()) + " messages still in flight after draining, "
+                        + "left for redelivery");
+            }
+            return drained;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void poll() {
+        while (running) {
+            int permits = reserve();
+            if (permits == 0) {
+                continue;
+            }
+
+            List<Message> messages;
+            try {
+                messages = sqs.receiveMessage(new ReceiveMessageRequest(queueUrl)
+                        .withMaxNumberOfMessages(permits)
+                        .withWaitTimeSeconds(pollWait)
+                        .withMessageAttributeNames("All")).getMessages();
+            } catch (AmazonClientException e) {
+                inFlight.release(permits);
+                LOGGER.warn("Failed to receive from " + queueUrl, e);
+                pause();
+                continue;
+            }
+
+            inFlight.release(permits - messages.size());
+            if (!messages.isEmpty()) {
+                dispatch.execute(() -> {
+                    try {
+                        process(messages);
+                    } finally {
+                        inFlight.release(messages.size());
+                    }
+                });
+            }
+        }
+    }
+
+    // Blocks until at least one message can be taken on, then takes as many as are free up to a full receive.
+    private int reserve() {
+        try {
+            if (!inFlight.tryAcquire(POLL_ERROR_DELAY, TimeUnit.MILLISECONDS)) {
+                return 0;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+            return 0;
+        }
+        int permits = 1;
+        while (permits < MAX_MESSAGES && inFlight.tryAcquire()) {
+            permits++;
+        }
+        return permits;
+    }
+
+    private void pause() {
+        try {
+            Thread.sleep(POLL_ERROR_DELAY);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    private void process(List<Message> messages) {
+        Set<String> failed = new HashSet<>();
+        try {
+            for (SQSBatchResponse.BatchItemFailure failure : process.handleRequest(toEvent(messages), null).getBatchItemFailures()) {
+                failed.add(failure.getItemIdentifier());
+            }
+        } catch (RuntimeException e) {
+            // without partial_batch_failures there is no telling which records worked, so all come back
+            LOGGER.warn("Batch of " + messages.size() + " failed, leaving it for redelivery", e);
+            return;
+        }
+
+        List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>();
+        for (int i = 0; i < messages.size(); i++) {
+            if (!failed.contains(messages.get(i).getMessageId())) {
+                entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i), messages.get(i).getReceiptHandle()));
+            }
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        try {
+            DeleteMessageBatchResult result = sqs.deleteMessageBatch(queueUrl, entries);
+            for (BatchResultErrorEntry error : result.getFailed()) {
+                LOGGER.warn("Failed to delete message " + messages.get(Integer.parseInt(error.getId())).getMessageId()
+                        + ": " + error.getCode() + " " + error.getMessage());
+            }
+        } catch (AmazonClientException e) {
+            LOGGER.warn("Failed to delete " + entries.size() + " processed messages, they will be redelivered", e);
+        }
+    }
+
+    private static SQSEvent toEvent(List<Message> messages) {
+        List<SQSEvent.SQSMessage> records = new ArrayList<>();
+        for (Message message : messages) {
+            SQSEvent.SQSMessage record = new SQSEvent.SQSMessage();
+            record.setMessageId(message.getMessageId());
+            record.setReceiptHandle(message.getReceiptHandle());
+            record.setBody(message.getBody());
+            record.setMd5OfBody(message.getMD5OfBody());
+            Map<String, SQSEvent.MessageAttribute> attributes = new HashMap<>();
+            for (Map.Entry<String, MessageAttributeValue> attribute : message.getMessageAttributes().entrySet()) {
+                SQSEvent.MessageAttribute value = new SQSEvent.MessageAttribute();
+                value.setDataType(attribute.getValue().getDataType());
+                value.setStringValue(attribute.getValue().getStringValue());
+                attributes.put(attribute.getKey(), value);
+            }
+            record.setMessageAttributes(attributes);
+            records.add(record);
+        }
+        SQSEvent event = new SQSEvent();
+        event.setRecords(records);
+        return event;
+    }
+}
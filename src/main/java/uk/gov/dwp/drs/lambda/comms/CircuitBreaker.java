@@ -0,0 +1,162 @@
+package uk.gov.dwp.drs.lambda.comms;
+
+import org.apache.log4j.Logger;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Count based circuit breaker.  Opens when the failure rate or slow call rate over the last window of calls
+ * reaches its threshold, refuses calls while open, then lets a few trial calls through (half open) to decide
+ * whether to close again.  Each container keeps its own, there is nothing shared between instances.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED("CircuitClosed"),
+        OPEN("CircuitOpened"),
+        HALF_OPEN("CircuitHalfOpened");
+
+        private final String metricName;
+
+        State(String metricName) {
+            this.metricName = metricName;
+        }
+
+        /**
+         * Name of the metric counting transitions into this state.
+         */
+        public String getMetricName() {
+            return metricName;
+        }
+    }
+
+    public static final long REFUSED = -1;
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class);
+    private static final int MIN_CALLS = 10;
+    private static final int HALF_OPEN_CALLS = 3;
+
+    private final String name;
+    private final int window;
+    private final int failureRate;
+    private final int slowRate;
+    private final long slowCallMillis;
+    private final long openNanos;
+    private final int minCalls;
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private final Map<State, Integer> transitions = new EnumMap<>(State.class);
+
+    private State state = State.CLOSED;
+    // calls acquired in an earlier state are not counted in this one
+    private long generation;
+    private long openedAt;
+    private int calls;
+    private int next;
+    private int failures;
+    private int slowCalls;
+    private int trials;
+
+    /**
+     * @param window      number of recent calls the rates are taken over, 0 or less turns the breaker off
+     * @param failureRate percentage of failed calls that opens the circuit
+     * @param slowRate    percentage of calls slower than slowCallMillis that opens the circuit
+     * @param openMillis  time calls are refused before trial calls are let through
+     */
+    public CircuitBreaker(String name, int window, int failureRate, int slowRate, long slowCallMillis, long openMillis) {
+        this.name = name;
+        this.window = Math.max(window, 0);
+        this.failureRate = failureRate;
+        this.slowRate = slowRate;
+        this.slowCallMillis = slowCallMillis;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.minCalls = Math.min(MIN_CALLS, this.window);
+        this.failed = new boolean[Math.max(this.window, HALF_OPEN_CALLS)];
+        this.slow = new boolean[failed.length];
+    }
+
+    /**
+     * Asks to make a call.  Returns a ticket to pass to record once it completes, or REFUSED.
+     */
+    public synchronized long tryAcquire() {
+        if (window == 0) {
+            return generation;
+        }
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < openNanos) {
+                return REFUSED;
+            }
+            moveTo(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (trials >= HALF_OPEN_CALLS) {
+                return REFUSED;
+            }
+            trials++;
+        }
+        return generation;
+    }
+
+    /**
+     * Whether a call would be refused right now, without taking a trial call.
+     */
+    public synchronized boolean isOpen() {
+        return window > 0 && (state == State.OPEN && System.nanoTime() - openedAt < openNanos
+                || state == State.HALF_OPEN && trials >= HALF_OPEN_CALLS);
+    }
+
+    public synchronized void record(long ticket, boolean failure, long durationMillis) {
+        if (window == 0 || ticket != generation || state == State.OPEN) {
+            return;
+        }
+
+        int size = state == State.HALF_OPEN ? HALF_OPEN_CALLS : window;
+        if (calls == size) {
+            failures -= failed[next] ? 1 : 0;
+            slowCalls -= slow[next] ? 1 : 0;
+        } else {
+            calls++;
+        }
+        failed[next] = failure;
+        slow[next] = durationMillis >= slowCallMillis;
+        failures += failure ? 1 : 0;
+        slowCalls += slow[next] ? 1 : 0;
+        next = (next + 1) % size;
+
+        boolean tripped = failures * 100 >= failureRate * calls || slowCalls * 100 >= slowRate * calls;
+        if (state == State.CLOSED && calls >= minCalls && tripped) {
+            LOGGER.warn(name + " circuit opening: " + failures + " failed and " + slowCalls + " slow of the last " + calls + " calls");
+            moveTo(State.OPEN);
+        } else if (state == State.HALF_OPEN && calls == HALF_OPEN_CALLS) {
+            moveTo(tripped ? State.OPEN : State.CLOSED);
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the number of transitions into each state since the last call.
+     */
+    public synchronized Map<State, Integer> drainTransitions() {
+        Map<State, Integer> drained = new EnumMap<>(transitions);
+        transitions.clear();
+        return drained;
+    }
+
+    private void moveTo(State to) {
+        LOGGER.info(name + " circuit " + state + " -> " + to);
+        state = to;
+        generation++;
+        transitions.merge(to, 1, Integer::sum);
+        if (to == State.OPEN) {
+            openedAt = System.nanoTime();
+        }
+        calls = 0;
+        next = 0;
+        failures = 0;
+        slowCalls = 0;
+        trials = 0;
+    }
+}
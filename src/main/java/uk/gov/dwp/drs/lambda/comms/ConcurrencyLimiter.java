@@ -0,0 +1,153 @@
+package uk.gov.dwp.drs.lambda.comms;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive limit on calls in flight, raised and cut by AIMD on the latency seen.  The latency of recent calls is
+ * compared with a long-run average that moves slowly.  While the two stay close and the limit is being used, it
+ * grows by one for each limit's worth of calls.  When recent calls run slower than the average by more than the
+ * tolerance, or a call fails, it is halved, at most once for the calls that were already in flight.  Each container
+ * keeps its own, there is nothing shared between instances.
+ */
+public class ConcurrencyLimiter {
+    public static final long REFUSED = Long.MIN_VALUE;
+    private static final Logger LOGGER = Logger.getLogger(ConcurrencyLimiter.class);
+    private static final double BACKOFF = 0.5;
+    // weight of each call in the latency of recent calls
+    private static final double SMOOTHING = 0.3;
+    // weight of each call in the long-run average, which in time takes up a lasting change so the limit can grow again
+    private static final double BASELINE_DRIFT = 0.02;
+    // a rise smaller than this is taken as noise however fast the calls are
+    private static final long MIN_RISE = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String name;
+    private final int min;
+    private final int max;
+    private final double tolerance;
+
+    private double limit;
+    private int inFlight;
+    private double baseline;
+    private double latency;
+    // calls started before this are not counted against the limit again
+    private long lastDecrease;
+    private int rejections;
+
+    /**
+     * @param max       most calls ever let through at once, 0 or less turns the limiter off
+     * @param tolerance percentage the smoothed latency can rise over the baseline before the limit is cut
+     */
+    public ConcurrencyLimiter(String name, int min, int max, int tolerance) {
+        this.name = name;
+        this.max = Math.max(max, 0);
+        this.min = Math.max(1, Math.min(min, this.max));
+        this.tolerance = 1 + Math.max(tolerance, 0) / 100.0;
+        this.limit = Math.max(this.min, this.max / 2);
+        this.lastDecrease = System.nanoTime();
+    }
+
+    /**
+     * Takes a place without waiting.  Returns a ticket to pass to release once the call completes, or REFUSED.
+     */
+    public synchronized long tryAcquire() {
+        if (max == 0) {
+            return System.nanoTime();
+        }
+        if (inFlight >= (int) limit) {
+            return REFUSED;
+        }
+        inFlight++;
+        return System.nanoTime();
+    }
+
+    /**
+     * Waits up to timeoutMillis for a place, counting a rejection if none came free.
+     */
+    public synchronized long acquire(long timeoutMillis) throws InterruptedException {
+        long waitUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long ticket;
+        while ((ticket = tryAcquire()) == REFUSED) {
+            long left = waitUntil - System.nanoTime();
+            if (left <= 0) {
+                rejections++;
+                return REFUSED;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return ticket;
+    }
+
+    /**
+     * Counts a rejection for a caller that gave up waiting through tryAcquire.
+     */
+    public synchronized void reject() {
+        rejections++;
+    }
+
+    /**
+     * Gives the place back and learns from how long the call took and whether it failed.
+     */
+    public synchronized void release(long ticket, boolean failure) {
+        if (max == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        learn(ticket, now - ticket, failure, now);
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Gives the place back for a call that was never made.
+     */
+    public synchronized void abandon() {
+        if (max == 0) {
+            return;
+        }
+        inFlight--;
+        notifyAll();
+    }
+
+    private void learn(long ticket, long nanos, boolean failure, long now) {
+        if (baseline == 0) {
+            baseline = nanos;
+            latency = nanos;
+        } else {
+            baseline += (nanos - baseline) * BASELINE_DRIFT;
+            latency += (nanos - latency) * SMOOTHING;
+        }
+
+        if (failure || latency > Math.max(baseline * tolerance, baseline + MIN_RISE)) {
+            if (ticket - lastDecrease >= 0 && limit > min) {
+                double was = limit;
+                limit = Math.max(min, limit * BACKOFF);
+                lastDecrease = now;
+                LOGGER.info(name + " concurrency limit " + (int) was + " -> " + (int) limit + (failure ? " after a failed call"
+                        : ", latency " + TimeUnit.NANOSECONDS.toMillis((long) latency) + "ms against "
+                        + TimeUnit.NANOSECONDS.toMillis((long) baseline) + "ms"));
+            }
+        } else if (inFlight * 2 >= limit && limit < max) {
+            // only grows while the limit is being used, otherwise it would say nothing about DRS
+            limit = Math.min(max, limit + 1 / limit);
+        }
+    }
+
+    public synchronized int getLimit() {
+        return max == 0 ? 0 : (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Returns the number of rejections since the last call.
+     */
+    public synchronized int drainRejections() {
+        int drained = rejections;
+        rejections = 0;
+        return drained;
+    }
+}
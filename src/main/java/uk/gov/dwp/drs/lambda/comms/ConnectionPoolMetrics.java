@@ -0,0 +1,54 @@
+package uk.gov.dwp.drs.lambda.comms;
+
+public class ConnectionPoolMetrics {
+    private final long leases;
+    private final long connections;
+    private final long handshakes;
+    private final long resumedHandshakes;
+    private final int leased;
+    private final int available;
+
+    public ConnectionPoolMetrics(long leases, long connections, long handshakes, long resumedHandshakes, int leased, int available) {
+        this.leases = leases;
+        this.connections = connections;
+        this.handshakes = handshakes;
+        this.resumedHandshakes = resumedHandshakes;
+        this.leased = leased;
+        this.available = available;
+    }
+
+    public long getLeases() {
+        return leases;
+    }
+
+    public long getConnections() {
+        return connections;
+    }
+
+    public long getHandshakes() {
+        return handshakes;
+    }
+
+    public long getResumedHandshakes() {
+        return resumedHandshakes;
+    }
+
+    public int getLeased() {
+        return leased;
+    }
+
+    public int getAvailable() {
+        return available;
+    }
+
+    public double getReuseRatio() {
+        return leases == 0 ? 0 : 1 - (double) Math.min(connections, leases) / leases;
+    }
+
+    @Override
+    public String toString() {
+        return "leases=" + leases + ", connections=" + connections + ", handshakes=" + handshakes
+                + ", resumedHandshakes=" + resumedHandshakes + ", leased=" + leased + ", available=" + available
+                + ", reuseRatio=" + getReuseRatio();
+    }
+}
@@ -0,0 +1,188 @@
+package uk.gov.dwp.drs.lambda.comms;
+
+import org.apache.http.Header;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Request body that encodes a document to UTF-8 block by block straight onto the connection, so no encoded
+ * copy of the whole document is held in memory.  The length is either counted up front (fixed-length) or
+ * left to chunked transfer encoding.  The async client pulls the same blocks through produceContent as the
+ * connection can take them.  The blocking client's encoder and block buffer belong to the sending thread and are
+ * reused from one post to the next.
+ */
+public class DocumentEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+    private static final Header CONTENT_TYPE = new BasicHeader("Content-Type", "text/xml");
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<>();
+
+    private final CharSequence document;
+    private final int bufferSize;
+    private final long contentLength;
+    // state of an async send, from the first produceContent until close
+    private CharsetEncoder asyncEncoder;
+    private CharBuffer asyncChars;
+    private ByteBuffer asyncBytes;
+    private boolean encoded;
+    private boolean flushing;
+
+    public DocumentEntity(CharSequence document, int bufferSize, boolean chunked) {
+        this.document = document;
+        this.bufferSize = bufferSize;
+        this.contentLength = chunked ? -1 : utf8Length(document);
+        setChunked(chunked);
+        setContentType(CONTENT_TYPE);
+    }
+
+    /**
+     * Length of the base64 a PDF of this many bytes is carried in the document as.
+     */
+    public static long base64Length(long bytes) {
+        return (bytes + 2) / 3 * 4;
+    }
+
+    static long utf8Length(CharSequence document) {
+        long length = 0;
+        for (int i = 0; i < document.length(); i++) {
+            char c = document.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < document.length()
+                    && Character.isLowSurrogate(document.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogates are replaced with a single '?'
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public InputStream getContent() {
+        // Only for callers that want to re-read the body; the request itself is sent through writeTo.
+        return new ByteArrayInputStream(document.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        Scratch scratch = scratch();
+        encode(document, scratch, outStream);
+        outStream.flush();
+    }
+
+    private Scratch scratch() {
+        Scratch scratch = SCRATCH.get();
+        if (scratch == null || scratch.bytes.capacity() != bufferSize) {
+            scratch = new Scratch(bufferSize);
+            SCRATCH.set(scratch);
+        }
+        return scratch;
+    }
+
+    private static void encode(CharSequence text, Scratch scratch, OutputStream outStream) throws IOException {
+        CharsetEncoder encoder = scratch.encoder.reset();
+        ByteBuffer bytes = scratch.bytes;
+        bytes.clear();
+        CharBuffer chars = CharBuffer.wrap(text);
+
+        CoderResult result;
+        do {
+            result = encoder.encode(chars, bytes, true);
+            drain(bytes, outStream);
+        } while (result.isOverflow());
+        do {
+            result = encoder.flush(bytes);
+            drain(bytes, outStream);
+        } while (result.isOverflow());
+    }
+
+    @Override
+    public void produceContent(ContentEncoder out, IOControl ioControl) throws IOException {
+        if (asyncBytes == null) {
+            asyncEncoder = newEncoder();
+            asyncChars = CharBuffer.wrap(document);
+            asyncBytes = ByteBuffer.allocate(bufferSize);
+        }
+        // tops up whatever the connection did not take last time
+        if (!encoded) {
+            if (!flushing) {
+                flushing = asyncEncoder.encode(asyncChars, asyncBytes, true).isUnderflow();
+            }
+            if (flushing) {
+                encoded = asyncEncoder.flush(asyncBytes).isUnderflow();
+            }
+        }
+        asyncBytes.flip();
+        out.write(asyncBytes);
+        asyncBytes.compact();
+        if (encoded && asyncBytes.position() == 0) {
+            out.complete();
+        }
+    }
+
+    /**
+     * Resets an async send, so the document can be produced again for a retry.
+     */
+    @Override
+    public void close() {
+        asyncEncoder = null;
+        asyncChars = null;
+        asyncBytes = null;
+        encoded = false;
+        flushing = false;
+    }
+
+    private static CharsetEncoder newEncoder() {
+        return StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private static void drain(ByteBuffer bytes, OutputStream outStream) throws IOException {
+        outStream.write(bytes.array(), 0, bytes.position());
+        bytes.clear();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    private static class Scratch {
+        private final CharsetEncoder encoder = newEncoder();
+        private final ByteBuffer bytes;
+
+        Scratch(int bufferSize) {
+            bytes = ByteBuffer.allocate(bufferSize);
+        }
+    }
+}
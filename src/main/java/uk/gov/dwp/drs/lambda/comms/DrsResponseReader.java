@@ -0,0 +1,109 @@
+package uk.gov.dwp.drs.lambda.comms;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads the SOAP response to a DRS post in one streaming pass, picking out the identifier the document was stored
+ * under and, for a fault, its code and reason.  Elements are matched by local name, so SOAP 1.1 and 1.2 faults and
+ * any namespace prefix are read the same way.  A body that is empty or not XML gives a result with neither.
+ */
+final class DrsResponseReader {
+    private static final Logger LOGGER = Logger.getLogger(DrsResponseReader.class);
+    private static final Set<String> DOCUMENT_ID = new HashSet<>(Arrays.asList("documentId", "documentIdentifier"));
+    private static final String FAULT = "Fault";
+    // SOAP 1.1 faultcode and faultstring, SOAP 1.2 Code/Value and Reason/Text
+    private static final Set<String> FAULT_CODE = new HashSet<>(Arrays.asList("faultcode", "Value"));
+    private static final Set<String> FAULT_STRING = new HashSet<>(Arrays.asList("faultstring", "Text"));
+    // the JDK's reader keeps its buffers for the next response read through the same factory
+    private static final String REUSE_INSTANCE = "reuse-instance";
+    // factories are not promised to be thread safe
+    private static final ThreadLocal<XMLInputFactory> FACTORY = ThreadLocal.withInitial(() -> {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        if (factory.isPropertySupported(REUSE_INSTANCE)) {
+            factory.setProperty(REUSE_INSTANCE, true);
+        }
+        return factory;
+    });
+
+    private DrsResponseReader() {
+    }
+
+    /**
+     * Reads the body, then reads out whatever is left of it so the connection can go back in the pool.
+     */
+    static DrsResult read(int statusCode, int attempts, HttpEntity entity) throws IOException {
+        if (entity == null || entity.getContentLength() == 0) {
+            EntityUtils.consume(entity);
+            return new DrsResult(statusCode, attempts);
+        }
+        String documentId = null;
+        String faultCode = null;
+        String faultString = null;
+        XMLStreamReader xml = null;
+        try {
+            // a chunked body has no length to say it is empty, and an empty body would fail as XML
+            PushbackInputStream in = new PushbackInputStream(entity.getContent(), 1);
+            int first = in.read();
+            if (first < 0) {
+                return new DrsResult(statusCode, attempts);
+            }
+            in.unread(first);
+            xml = FACTORY.get().createXMLStreamReader(in);
+            boolean inFault = false;
+            while (xml.hasNext()) {
+                if (xml.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String name = xml.getLocalName();
+                if (FAULT.equals(name)) {
+                    inFault = true;
+                } else if (inFault && faultCode == null && FAULT_CODE.contains(name)) {
+                    faultCode = xml.getElementText().trim();
+                } else if (inFault && faultString == null && FAULT_STRING.contains(name)) {
+                    faultString = xml.getElementText().trim();
+                } else if (documentId == null && DOCUMENT_ID.contains(name)) {
+                    documentId = xml.getElementText().trim();
+                }
+            }
+        } catch (XMLStreamException e) {
+            // keeps whatever was read before the body stopped being XML
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("DRS response with code " + statusCode + " is not XML: " + e.getMessage());
+            }
+        } finally {
+            close(xml);
+            EntityUtils.consume(entity);
+        }
+        return new DrsResult(statusCode, attempts, emptyToNull(documentId), emptyToNull(faultCode),
+                emptyToNull(faultString));
+    }
+
+    private static void close(XMLStreamReader xml) {
+        if (xml != null) {
+            try {
+                xml.close();
+            } catch (XMLStreamException e) {
+                LOGGER.debug("Could not close DRS response reader", e);
+            }
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+}
@@ -0,0 +1,69 @@
+package uk.gov.dwp.drs.lambda.comms;
+
+/**
+ * Outcome of a DRS post: the status code of the last attempt, how many attempts were made, and what was read from
+ * the last response, the identifier DRS stored the document under or the SOAP fault it returned.
+ */
+public class DrsResult {
+    private final int statusCode;
+    private final int attempts;
+    private final String documentId;
+    private final String faultCode;
+    private final String faultString;
+
+    public DrsResult(int statusCode, int attempts) {
+        this(statusCode, attempts, null, null, null);
+    }
+
+    public DrsResult(int statusCode, int attempts, String documentId, String faultCode, String faultString) {
+        this.statusCode = statusCode;
+        this.attempts = attempts;
+        this.documentId = documentId;
+        this.faultCode = faultCode;
+        this.faultString = faultString;
+    }
+
+    public boolean isSuccess() {
+        return statusCode == 200;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Identifier DRS stored the document under, or null if the response did not carry one.
+     */
+    public String getDocumentId() {
+        return documentId;
+    }
+
+    public String getFaultCode() {
+        return faultCode;
+    }
+
+    public String getFaultString() {
+        return faultString;
+    }
+
+    /**
+     * Code and reason of the SOAP fault, or null if the response was not a fault.
+     */
+    public String getFault() {
+        if (faultCode == null && faultString == null) {
+            return null;
+        }
+        return faultCode == null ? faultString : faultString == null ? faultCode : faultCode + ": " + faultString;
+    }
+
+    @Override
+    public String toString() {
+        String fault = getFault();
+        return "code " + statusCode + " after " + attempts + (attempts == 1 ? " attempt" : " attempts")
+                + (fault == null ? "" : ", fault " + fault);
+    }
+}
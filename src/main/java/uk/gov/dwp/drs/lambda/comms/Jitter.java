@@ -0,0 +1,35 @@
+package uk.gov.dwp.drs.lambda.comms;
+
+import java.security.SecureRandom;
+import java.util.SplittableRandom;
+
+/**
+ * Random source for full-jitter retry delays.  A SnapStart snapshot captures its state, so every instance restored
+ * from the same snapshot would draw the same delays and retry in step, which is what the jitter is there to stop.
+ * It is reseeded from SecureRandom after a restore.
+ */
+public class Jitter {
+    private SplittableRandom random;
+
+    public Jitter() {
+        reseed();
+    }
+
+    /**
+     * Starts from a fixed seed, as every instance restored from one snapshot does.
+     */
+    public Jitter(long seed) {
+        random = new SplittableRandom(seed);
+    }
+
+    public synchronized void reseed() {
+        random = new SplittableRandom(new SecureRandom().nextLong());
+    }
+
+    /**
+     * Returns a delay from 0 to ceiling inclusive.
+     */
+    public synchronized long next(long ceiling) {
+        return random.nextLong(ceiling + 1);
+    }
+}
@@ -1,75 +1,188 @@
 package uk.gov.dwp.drs.lambda.comms;
 
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.client.builder.AwsClientBuilder;
-import com.amazonaws.handlers.RequestHandler2;
 import com.amazonaws.services.sqs.AmazonSQSAsync;
-import com.amazonaws.services.sqs.AmazonSQSAsyncClientBuilder;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
 import com.amazonaws.services.sqs.model.MessageAttributeValue;
-import com.amazonaws.services.sqs.model.SendMessageRequest;
-import com.amazonaws.util.StringUtils;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.apache.log4j.Logger;
 import uk.gov.dwp.drs.lambda.misc.Utils;
 import uk.gov.dwp.drs.lambda.util.DrsParameters;
 
-import java.text.SimpleDateFormat;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.TimeZone;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class MsgLogging {
-    private AmazonSQSAsync client;
-    private ObjectMapper objectMapper;
-    private String queueUrl;
+    private static final Logger LOGGER = Logger.getLogger(MsgLogging.class);
+    private static final int MAX_BATCH_SIZE = 10;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int SEND_THREADS = 10;
+    // shared by every instance, as an ObjectWriter is immutable and caches its serialiser for Message
+    private static final ObjectWriter WRITER = new ObjectMapper().writerFor(Message.class);
+
+    private volatile AmazonSQSAsync client;
+    private final String sqsHost;
+    private final String queueUrl;
+    private final Object lock = new Object();
+    private List<SendMessageBatchRequestEntry> buffer = new ArrayList<>();
+    private final List<Batch> inFlight = new ArrayList<>();
 
 
     public MsgLogging(DrsParameters parameters) {
-        String sqsHost = parameters.getSystemParameter("sqshost");
-
-        AmazonSQSAsyncClientBuilder builder = AmazonSQSAsyncClientBuilder.standard();
-        if (StringUtils.isNullOrEmpty(sqsHost)) {
-            builder.withRegion("eu-west-2");
-        } else {
-            builder.withRequestHandlers(new RequestHandler2() {});
-
-            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(
-                    sqsHost, "eu-west-2"))
-                    .withCredentials(new AWSStaticCredentialsProvider(
-                            new BasicAWSCredentials("", "")));
-        }
-        client = builder.build();
-        objectMapper = new ObjectMapper();
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss zzz");
-        simpleDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        sqsHost = parameters.getSystemParameter("sqshost");
+        client = buildClient();
 
         queueUrl = client.getQueueUrl(parameters.getParameter(DrsParameters.RESPONSE_QUEUE)).getQueueUrl();
     }
 
+    private AmazonSQSAsync buildClient() {
+        return Utils.makeSQSClient(sqsHost, "drs-status", SEND_THREADS);
+    }
+
+    /**
+     * Replaces the client after a snapshot is restored, as its pooled connections did not survive.  The queue URL
+     * is kept.
+     */
+    public void restore() {
+        AmazonSQSAsync previous = client;
+        client = buildClient();
+        previous.shutdown();
+    }
+
+    /**
+     * Buffers a status event; a full batch of ten is sent straight away without waiting for the result.
+     * Call {@link #flush()} before the invocation returns.
+     */
     public void logEvent(String status, String correlationId, String errordetail, String documentIdentifier) {
-        Message message = new Message(status, correlationId, errordetail, documentIdentifier);
+        SendMessageBatchRequestEntry entry = new SendMessageBatchRequestEntry()
+                .withMessageBody(toJson(status, correlationId, errordetail, documentIdentifier))
+                .withMessageAttributes(Collections.singletonMap(Utils.JMS_CORRELATION_ID,
+                        new MessageAttributeValue().withStringValue(correlationId).withDataType("String")));
+        List<SendMessageBatchRequestEntry> full = null;
+        synchronized (lock) {
+            buffer.add(entry);
+            if (buffer.size() >= MAX_BATCH_SIZE) {
+                full = buffer;
+                buffer = new ArrayList<>();
+            }
+        }
+        if (full != null) {
+            Batch batch = send(full);
+            synchronized (lock) {
+                inFlight.add(batch);
+            }
+        }
+    }
+
+    /**
+     * The status message body as sent to the response queue, with nulls left out.
+     */
+    public String toJson(String status, String correlationId, String errordetail, String documentIdentifier) {
         try {
-            client.sendMessage(new SendMessageRequest(queueUrl, objectMapper.writeValueAsString(message))
-                    .withMessageAttributes(Collections.singletonMap(Utils.JMS_CORRELATION_ID,
-                            new MessageAttributeValue().withStringValue(correlationId).withDataType("String"))));
+            return WRITER.writeValueAsString(new Message(status, correlationId, errordetail, documentIdentifier));
         } catch (JsonProcessingException e) {
-            // silently ignore exception - should not happen
+            // only strings, so this cannot happen
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Sends anything still buffered and waits for every batch, resending entries that SQS failed for reasons
+     * other than the request itself.  Nothing sent before the container is frozen is lost.
+     */
+    public void flush() {
+        List<Batch> batches;
+        synchronized (lock) {
+            batches = new ArrayList<>(inFlight);
+            inFlight.clear();
+            if (!buffer.isEmpty()) {
+                batches.add(send(buffer));
+                buffer = new ArrayList<>();
+            }
+        }
+
+        for (int attempt = 1; !batches.isEmpty(); attempt++) {
+            List<SendMessageBatchRequestEntry> retry = new ArrayList<>();
+            for (Batch batch : batches) {
+                retry.addAll(batch.awaitRetryable());
+            }
+            if (retry.isEmpty()) {
+                break;
+            }
+            if (attempt >= MAX_ATTEMPTS) {
+                LOGGER.warn("Dropping " + retry.size() + " status messages after " + attempt + " attempts");
+                break;
+            }
+
+            batches = new ArrayList<>();
+            for (int i = 0; i < retry.size(); i += MAX_BATCH_SIZE) {
+                batches.add(send(retry.subList(i, Math.min(i + MAX_BATCH_SIZE, retry.size()))));
+            }
+        }
+    }
+
+    private Batch send(List<SendMessageBatchRequestEntry> entries) {
+        Map<String, SendMessageBatchRequestEntry> byId = new HashMap<>();
+        for (SendMessageBatchRequestEntry entry : entries) {
+            String id = Integer.toString(byId.size());
+            byId.put(id, entry.withId(id));
+        }
+        return new Batch(byId, client.sendMessageBatchAsync(new SendMessageBatchRequest(queueUrl, new ArrayList<>(byId.values()))));
+    }
+
+    private static class Batch {
+        private final Map<String, SendMessageBatchRequestEntry> entries;
+        private final Future<SendMessageBatchResult> result;
+
+        Batch(Map<String, SendMessageBatchRequestEntry> entries, Future<SendMessageBatchResult> result) {
+            this.entries = entries;
+            this.result = result;
+        }
+
+        List<SendMessageBatchRequestEntry> awaitRetryable() {
+            List<SendMessageBatchRequestEntry> retry = new ArrayList<>();
+            try {
+                for (BatchResultErrorEntry failed : result.get().getFailed()) {
+                    if (Boolean.TRUE.equals(failed.getSenderFault())) {
+                        LOGGER.warn("Status message rejected: " + failed.getCode() + " " + failed.getMessage());
+                    } else if (entries.containsKey(failed.getId())) {
+                        retry.add(entries.get(failed.getId()));
+                    }
+                }
+            } catch (ExecutionException e) {
+                LOGGER.warn("Failed to send status messages", e.getCause());
+                retry.addAll(entries.values());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.warn("Interrupted sending status messages", e);
+            }
+            return retry;
         }
     }
 
     @JsonInclude(JsonInclude.Include.NON_NULL)
-    public class Message {
-        private String status;
-        private String correlationId;
-        private String errorDetail;
-        private String documentIdentifier;
+    public static class Message {
+        private final String status;
+        private final String correlationId;
+        private final String errorDetail;
+        private final String documentIdentifier;
 
-        public Message(String status, String correlationId, String errorDetail, String documentidentifier) {
+        public Message(String status, String correlationId, String errorDetail, String documentIdentifier) {
             this.status = status;
             this.correlationId = correlationId;
             this.errorDetail = errorDetail;
-            this.documentIdentifier = documentidentifier;
+            this.documentIdentifier = documentIdentifier;
         }
 
         public String getStatus() {
@@ -0,0 +1,83 @@
+package uk.gov.dwp.drs.lambda.comms;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import uk.gov.dwp.drs.lambda.misc.Utils;
+import uk.gov.dwp.drs.lambda.util.DrsParameters;
+import uk.gov.dwp.drs.lambda.util.PayloadLocation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Supplier;
+
+/**
+ * PDFs that senders left in S3 rather than carrying them base64 encoded in the SQS body.  The size and ETag are
+ * fetched first, so a record can be checked and sized before the object is read.  The object is then read in full
+ * to be signed, on condition the ETag still matches, so an object overwritten after the first look fails the
+ * record rather than a different PDF being signed.  The S3 client is only built when the first such record arrives.
+ */
+public class PayloadStore {
+    private final Supplier<AmazonS3> factory;
+    private AmazonS3 s3;
+
+    public PayloadStore(DrsParameters parameters) {
+        this(() -> Utils.makeS3Client(parameters.getSystemParameter("s3host")));
+    }
+
+    public PayloadStore(Supplier<AmazonS3> factory) {
+        this.factory = factory;
+    }
+
+    private synchronized AmazonS3 client() {
+        if (s3 == null) {
+            s3 = factory.get();
+        }
+        return s3;
+    }
+
+    public StoredPayload get(PayloadLocation location) throws IOException {
+        AmazonS3 s3 = client();
+        ObjectMetadata metadata;
+        try {
+            metadata = s3.getObjectMetadata(location.getBucket(), location.getKey());
+        } catch (AmazonClientException e) {
+            throw new IOException("Could not find payload at " + location, e);
+        }
+        long length = metadata.getContentLength();
+        String etag = metadata.getETag();
+        if (etag == null) {
+            throw new IOException("Payload at " + location + " has no ETag, cannot be sure of reading it unchanged");
+        }
+
+        return new StoredPayload() {
+            @Override
+            public long getLength() {
+                return length;
+            }
+
+            @Override
+            public InputStream open() throws IOException {
+                S3Object object;
+                try {
+                    object = s3.getObject(new GetObjectRequest(location.getBucket(), location.getKey())
+                            .withMatchingETagConstraint(etag));
+                } catch (AmazonClientException e) {
+                    throw new IOException("Could not read payload at " + location, e);
+                }
+                // the constraint was not met
+                if (object == null) {
+                    throw new IOException("Payload at " + location + " was replaced after it was first read");
+                }
+                if (object.getObjectMetadata().getContentLength() != length) {
+                    object.close();
+                    throw new IOException("Payload at " + location + " changed size after it was first read");
+                }
+                // closing before the end aborts the S3 connection rather than reading out the rest
+                return object.getObjectContent();
+            }
+        };
+    }
+}
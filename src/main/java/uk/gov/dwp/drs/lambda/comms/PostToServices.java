@@ -1,15 +1,59 @@
 package uk.gov.dwp.drs.lambda.comms;
 
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.ManagedNHttpClientConnectionFactory;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.conn.ManagedNHttpClientConnection;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.nio.reactor.ssl.SSLIOSession;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
 import org.apache.log4j.Logger;
+import uk.gov.dwp.drs.lambda.exceptions.DrsLimitedException;
+import uk.gov.dwp.drs.lambda.exceptions.DrsUnavailableException;
+import uk.gov.dwp.drs.lambda.misc.Utils;
 import uk.gov.dwp.drs.lambda.util.DrsParameters;
+import uk.gov.dwp.drs.lambda.util.KeyMaterial;
 
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManagerFactory;
 import java.io.*;
-import java.net.URL;
+import java.net.Socket;
+import java.net.URI;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
@@ -21,30 +65,271 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 public class PostToServices {
-    private DrsParameters parameters;
-    private SSLSocketFactory sslSocketFactory;
+    private final DrsParameters parameters;
+    private final KeyMaterial<Transport> transport;
+    private final int bufferSize;
+    private final boolean chunked;
+    private final int timeout;
+    private final int maxRetries;
+    private final long retryBaseDelay;
+    private final long retryMaxDelay;
+    private final CircuitBreaker breaker;
+    private final ConcurrencyLimiter limiter;
+    private final boolean async;
+    // only used by async posts, to wait out the backoff without holding a thread
+    private final ScheduledExecutorService retryScheduler;
+    private final Jitter jitter = new Jitter();
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
     private static final Logger LOGGER = Logger.getLogger(PostToServices.class);
     private final static int STD_TIMEOUT = 10000;
+    private final static int DEFAULT_MAX_CONNECTIONS = 10;
+    private final static int VALIDATE_AFTER_INACTIVITY = 2000;
+    private final static int TLS_SESSION_CACHE_SIZE = 100;
+    private final static int TLS_SESSION_TIMEOUT_SECONDS = 3600;
+    private final static int DEFAULT_BUFFER_SIZE = 8192;
+    private final static int RETIRE_TIMEOUT = 6 * STD_TIMEOUT;
+    private final static int DEFAULT_MAX_RETRIES = 2;
+    private final static int DEFAULT_RETRY_BASE_DELAY = 200;
+    private final static int DEFAULT_RETRY_MAX_DELAY = 5000;
+    // a retry with less time than this left is not worth starting
+    private final static int MIN_ATTEMPT_TIMEOUT = 1000;
+    private final static int DEFAULT_BREAKER_WINDOW = 20;
+    private final static int DEFAULT_BREAKER_FAILURE_RATE = 50;
+    private final static int DEFAULT_BREAKER_SLOW_RATE = 80;
+    private final static int DEFAULT_BREAKER_SLOW_CALL = 5000;
+    private final static int DEFAULT_BREAKER_OPEN_TIME = 30000;
+    private final static int ASYNC_IO_THREADS = 2;
+    private final static int DEFAULT_LIMIT_MIN = 1;
+    private final static int DEFAULT_LIMIT_TOLERANCE = 100;
+    // how often an async post looks again for a place under the concurrency limit
+    private final static int LIMIT_POLL_DELAY = 10;
+    private final static Set<Integer> RETRYABLE_STATUS = new HashSet<>(Arrays.asList(429, 502, 503, 504));
+    private final static Pattern BEGIN_CERTIFICATE = Pattern.compile("-----BEGIN CERTIFICATE-----[\n\r]*");
+    private final static Pattern PRIVATE_KEY_ARMOUR = Pattern.compile("-----(BEGIN|END)( RSA)? PRIVATE KEY-----");
+    private final static Header CONTENT_TYPE = new BasicHeader("Content-Type", "text/xml");
+    private final static Header AUTHORIZATION = new BasicHeader("Authorization", "P8Admin");
+    // parsed again only when drsurl changes
+    private volatile URI drsUri;
 
     public PostToServices(DrsParameters parameters) throws CertificateException, UnrecoverableKeyException, NoSuchAlgorithmException, IOException, KeyManagementException, KeyStoreException, InvalidKeySpecException {
         this.parameters = parameters;
-        this.sslSocketFactory = initSSL();
+        this.bufferSize = Math.max(1024, Utils.toInt(parameters.getParameter(DrsParameters.DRS_BUFFER_SIZE), DEFAULT_BUFFER_SIZE));
+        this.chunked = Boolean.parseBoolean(parameters.getParameter(DrsParameters.DRS_CHUNKED));
+        this.timeout = Math.max(1, Utils.toInt(parameters.getParameter(DrsParameters.DRS_TIMEOUT), STD_TIMEOUT));
+        this.maxRetries = Math.max(0, Utils.toInt(parameters.getParameter(DrsParameters.DRS_RETRIES), DEFAULT_MAX_RETRIES));
+        this.retryBaseDelay = Math.max(0, Utils.toInt(parameters.getParameter(DrsParameters.DRS_RETRY_BASE_DELAY), DEFAULT_RETRY_BASE_DELAY));
+        this.retryMaxDelay = Math.max(retryBaseDelay, Utils.toInt(parameters.getParameter(DrsParameters.DRS_RETRY_MAX_DELAY), DEFAULT_RETRY_MAX_DELAY));
+        this.breaker = new CircuitBreaker("DRS",
+                Utils.toInt(parameters.getParameter(DrsParameters.DRS_BREAKER_WINDOW), DEFAULT_BREAKER_WINDOW),
+                Utils.toInt(parameters.getParameter(DrsParameters.DRS_BREAKER_FAILURE_RATE), DEFAULT_BREAKER_FAILURE_RATE),
+                Utils.toInt(parameters.getParameter(DrsParameters.DRS_BREAKER_SLOW_RATE), DEFAULT_BREAKER_SLOW_RATE),
+                Utils.toInt(parameters.getParameter(DrsParameters.DRS_BREAKER_SLOW_CALL), DEFAULT_BREAKER_SLOW_CALL),
+                Utils.toInt(parameters.getParameter(DrsParameters.DRS_BREAKER_OPEN_TIME), DEFAULT_BREAKER_OPEN_TIME));
+        // no more in flight than there are connections to carry them, unless set
+        this.limiter = new ConcurrencyLimiter("DRS",
+                Utils.toInt(parameters.getParameter(DrsParameters.DRS_LIMIT_MIN), DEFAULT_LIMIT_MIN),
+                Utils.toInt(parameters.getParameter(DrsParameters.DRS_LIMIT_MAX), maxConnections()),
+                Utils.toInt(parameters.getParameter(DrsParameters.DRS_LIMIT_TOLERANCE), DEFAULT_LIMIT_TOLERANCE));
+        this.async = Boolean.parseBoolean(parameters.getParameter(DrsParameters.DRS_ASYNC));
+        this.retryScheduler = async ? Executors.newSingleThreadScheduledExecutor(Utils.makeThreadFactory("drs-retry")) : null;
+        this.transport = new KeyMaterial<>("tls", parameters, connect(), this::connect, this::retire,
+                DrsParameters.TRANSKEY_PRV, DrsParameters.TRANSKEY_PUB, DrsParameters.CACERT, DrsParameters.CACERT2);
+    }
+
+    private Transport connect() throws CertificateException, UnrecoverableKeyException, NoSuchAlgorithmException, IOException, KeyManagementException, KeyStoreException, InvalidKeySpecException {
+        SSLContext sslContext = initSSL();
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("https", new MeteredSSLSocketFactory(sslContext))
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .build();
+        int maxConnections = maxConnections();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(registry, new MeteredConnectionFactory());
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        // Pooled connections sit idle while the container is frozen, so check them before reuse.
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .setConnectionRequestTimeout(timeout)
+                .build();
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                // Mutual TLS would otherwise tag each connection with the client principal, and a tagged
+                // connection is never handed to a request that does not carry the same state.
+                .disableConnectionState()
+                .disableCookieManagement()
+                .build();
+        if (!async) {
+            return new Transport(connectionManager, httpClient, null, null);
+        }
+
+        PoolingNHttpClientConnectionManager asyncConnectionManager = asyncConnectionManager(sslContext, maxConnections);
+        CloseableHttpAsyncClient asyncClient = HttpAsyncClients.custom()
+                .setConnectionManager(asyncConnectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setThreadFactory(Utils.makeThreadFactory("drs-async"))
+                .disableConnectionState()
+                .disableCookieManagement()
+                .build();
+        asyncClient.start();
+        return new Transport(connectionManager, httpClient, asyncConnectionManager, asyncClient);
+    }
+
+    private int maxConnections() {
+        return Math.max(1, Utils.toInt(parameters.getParameter(DrsParameters.DRS_MAX_CONNECTIONS), DEFAULT_MAX_CONNECTIONS));
+    }
+
+    // Non-blocking client on the same SSLContext, so both clients share the TLS session cache.  A few I/O
+    // threads drive every connection in the pool, rather than one thread per post waiting on its response.  Its
+    // connections and handshakes are counted with those of the blocking client.
+    private PoolingNHttpClientConnectionManager asyncConnectionManager(SSLContext sslContext, int maxConnections) throws IOException {
+        Registry<SchemeIOSessionStrategy> registry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("https", new MeteredSSLIOSessionStrategy(sslContext))
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .build();
+        DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                .setIoThreadCount(ASYNC_IO_THREADS)
+                .setConnectTimeout(timeout)
+                .setSoTimeout(timeout)
+                .build(), Utils.makeThreadFactory("drs-io"));
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(ioReactor,
+                new MeteredNHttpConnectionFactory(), registry);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        return connectionManager;
+    }
+
+    // Posts that picked up the old transport before the swap are left to finish before its pool is shut down.
+    private void retire(Transport old) {
+        long deadline = System.currentTimeMillis() + RETIRE_TIMEOUT;
+        try {
+            while (old.active.get() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        old.connectionManager.shutdown();
+        if (old.asyncClient != null) {
+            try {
+                old.asyncClient.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close the old async DRS client", e);
+            }
+        }
+    }
+
+    /**
+     * Starts rebuilding the TLS context and pool in the background if the transport keys or CA certificates changed.
+     */
+    public boolean refreshIfChanged() {
+        return transport.refreshIfChanged();
+    }
+
+    public String getKeyVersion() {
+        return transport.getVersion();
+    }
+
+    /**
+     * Drops the pooled connections so that no open sockets end up in a snapshot.
+     */
+    public void closeConnections() {
+        Transport current = transport.get();
+        current.connectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+        if (current.asyncConnectionManager != null) {
+            current.asyncConnectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Builds a new SSLContext and pool, and reseeds the retry jitter, after a snapshot is restored.  The old ones
+     * would share their random state, and the context its TLS session cache, with every other instance restored from
+     * the same snapshot.
+     */
+    public void restore() throws GeneralSecurityException, IOException {
+        jitter.reseed();
+        transport.rebuild();
+    }
+
+    /**
+     * Encodes a document exactly as a post would, without sending it, to warm up that path.
+     */
+    public void prime(String data) throws IOException {
+        new DocumentEntity(data, bufferSize, chunked).writeTo(NullOutputStream.NULL_OUTPUT_STREAM);
+    }
+
+    /**
+     * Fails fast, before any work is done on a record, while the DRS circuit is open.
+     */
+    public void checkAvailable(String correlationId) {
+        if (breaker.isOpen()) {
+            throw unavailable(correlationId);
+        }
+    }
+
+    public CircuitBreaker.State getCircuitState() {
+        return breaker.getState();
+    }
+
+    /**
+     * Returns the number of transitions into each circuit state since the last call.
+     */
+    public Map<CircuitBreaker.State, Integer> drainCircuitTransitions() {
+        return breaker.drainTransitions();
+    }
+
+    public int getConcurrencyLimit() {
+        return limiter.getLimit();
+    }
+
+    /**
+     * Returns the number of posts turned away by the concurrency limit since the last call.
+     */
+    public int drainLimitRejections() {
+        return limiter.drainRejections();
+    }
+
+    private DrsLimitedException limited(String correlationId) {
+        return new DrsLimitedException("DRS concurrency limit of " + limiter.getLimit()
+                + " reached and no post finished in time, not sent. (" + correlationId + ")");
+    }
+
+    private static DrsUnavailableException unavailable(String correlationId) {
+        return new DrsUnavailableException("DRS circuit breaker is open after repeated failed or slow posts, not sent. ("
+                + correlationId + ")");
     }
 
     private Certificate createCertFromString(String publicKey) throws CertificateException {
         // One funny idiosyncrasy of this interface is that the BEGIN CERTIFICATE requires a LF at the end of the begin
         // mark.  Not mentioned in the spec, but it's required to insert one if it doesn't exist.
-        String publicKey1 = publicKey.replaceFirst("-----BEGIN CERTIFICATE-----[\n\r]*", "-----BEGIN CERTIFICATE-----\r\n");
+        String publicKey1 = BEGIN_CERTIFICATE.matcher(publicKey).replaceFirst("-----BEGIN CERTIFICATE-----\r\n");
         ByteArrayInputStream inputStream = new ByteArrayInputStream(publicKey1.getBytes());
         BufferedInputStream bis = new BufferedInputStream(inputStream);
         CertificateFactory cf = CertificateFactory.getInstance("X.509");
         return cf.generateCertificate(bis);
     }
 
-    private SSLSocketFactory initSSL() throws NoSuchAlgorithmException, IOException, KeyStoreException, CertificateException, InvalidKeySpecException, KeyManagementException, UnrecoverableKeyException {
+    private SSLContext initSSL() throws NoSuchAlgorithmException, IOException, KeyStoreException, CertificateException, InvalidKeySpecException, KeyManagementException, UnrecoverableKeyException {
         String privateKey = parameters.getParameter(DrsParameters.TRANSKEY_PRV);
         String publicKey = parameters.getParameter(DrsParameters.TRANSKEY_PUB);
 
@@ -70,7 +355,7 @@ public class PostToServices {
         KeyStore privateKeyStore = KeyStore.getInstance(KeyStore.getDefaultType());
         privateKeyStore.load(null, null);
 
-        String privKeyPEM = privateKey.replaceAll("-----(BEGIN|END)( RSA)? PRIVATE KEY-----", "").replace("\n", "");
+        String privKeyPEM = PRIVATE_KEY_ARMOUR.matcher(privateKey).replaceAll("").replace("\n", "");
             byte[] decoded = Base64.getDecoder().decode(privKeyPEM);
 
         PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(decoded);
@@ -90,35 +375,377 @@ public class PostToServices {
 
         //We now provide our alternate KeyManager
         context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
-        return context.getSocketFactory();
+        context.getClientSessionContext().setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+        context.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+        return context;
+    }
+
+    public DrsResult postToDRS(String data, String correlationId) throws IOException {
+        return postToDRS(data, correlationId, Long.MAX_VALUE);
+    }
+
+    /**
+     * Posts the document, retrying timeouts and 429, 502, 503 and 504 responses with exponential backoff and full
+     * jitter.  A retry is only started if its timeouts can run out before the deadline (epoch millis), and they are
+     * shortened to fit.  Every attempt goes through the circuit breaker, which throws DrsUnavailableException
+     * while it is open, and the concurrency limit, which throws DrsLimitedException when no place comes free in
+     * time.  The result is read from the last response, with the document identifier or SOAP fault.
+     */
+    public DrsResult postToDRS(String data, String correlationId, long deadline) throws IOException {
+        return post(new DocumentEntity(data, bufferSize, chunked), correlationId, deadline);
     }
 
-    public boolean postToDRS(String data, String correlationId) throws IOException {
-        URL url = new URL(parameters.getParameter(DrsParameters.DRS_URL));
+    private DrsResult post(DocumentEntity entity, String correlationId, long deadline) throws IOException {
+        RequestConfig config = null;
+        for (int attempt = 1; ; attempt++) {
+            String outcome;
+            DrsResult result = null;
+            IOException failure = null;
+            try {
+                result = execute(entity, correlationId, config, attempt);
+                if (result.isSuccess() || !RETRYABLE_STATUS.contains(result.getStatusCode())) {
+                    return result;
+                }
+                outcome = "code " + result.getStatusCode();
+            } catch (ConnectTimeoutException | SocketTimeoutException e) {
+                outcome = e.toString();
+                failure = e;
+            }
 
-        HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "text/xml");
-        conn.setRequestProperty("Authorization", "P8Admin");
-        conn.setConnectTimeout(STD_TIMEOUT);
-        conn.setReadTimeout(STD_TIMEOUT);
+            long delay = backoff(attempt);
+            long budget = Math.min(timeout, deadline - System.currentTimeMillis() - delay);
+            if (attempt > maxRetries || budget < MIN_ATTEMPT_TIMEOUT) {
+                LOGGER.warn("DRS post failed with " + outcome + " after " + attempt + " attempts (" + correlationId + ")");
+                if (failure != null) {
+                    throw failure;
+                }
+                return result;
+            }
+
+            LOGGER.warn("DRS post failed with " + outcome + ", retrying in " + delay + "ms (" + correlationId + ")");
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted before retrying DRS post");
+            }
+            config = retryConfig(budget);
+        }
+    }
+
+    /**
+     * Posts the document without blocking the calling thread, with the same retries, deadline and circuit breaker
+     * as postToDRS.  Only available when drs_async is set.  The future is completed on a DRS I/O or retry thread,
+     * exceptionally with DrsUnavailableException while the circuit is open, DrsLimitedException when no place under
+     * the concurrency limit comes free in time, or with the IOException of the last attempt.
+     */
+    public CompletableFuture<DrsResult> postToDRSAsync(String data, String correlationId, long deadline) {
+        if (!async) {
+            throw new IllegalStateException("Async DRS posts are not enabled, set " + DrsParameters.DRS_ASYNC);
+        }
+        CompletableFuture<DrsResult> result = new CompletableFuture<>();
+        attemptAsync(data, correlationId, deadline, 1, null, result);
+        return result;
+    }
+
+    private void attemptAsync(String data, String correlationId, long deadline, int attempt, RequestConfig config, CompletableFuture<DrsResult> result) {
+        waitForLimitAsync(data, correlationId, deadline, attempt, config, result,
+                System.currentTimeMillis() + connectionRequestTimeout(config));
+    }
+
+    // Looks again on the retry thread rather than block whichever thread the attempt was started from.
+    private void waitForLimitAsync(String data, String correlationId, long deadline, int attempt, RequestConfig config, CompletableFuture<DrsResult> result, long waitUntil) {
+        long permit = limiter.tryAcquire();
+        if (permit != ConcurrencyLimiter.REFUSED) {
+            sendAsync(data, correlationId, deadline, attempt, config, result, permit);
+        } else if (System.currentTimeMillis() >= waitUntil) {
+            limiter.reject();
+            result.completeExceptionally(limited(correlationId));
+        } else {
+            retryScheduler.schedule(() -> waitForLimitAsync(data, correlationId, deadline, attempt, config, result, waitUntil),
+                    LIMIT_POLL_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void sendAsync(String data, String correlationId, long deadline, int attempt, RequestConfig config, CompletableFuture<DrsResult> result, long permit) {
+        long ticket = breaker.tryAcquire();
+        if (ticket == CircuitBreaker.REFUSED) {
+            limiter.abandon();
+            result.completeExceptionally(unavailable(correlationId));
+            return;
+        }
+        long started = System.currentTimeMillis();
+        leases.incrementAndGet();
+        Transport current = acquire();
+        try {
+            // async entities hold the state of their send, so each attempt has its own
+            current.asyncClient.execute(request(new DocumentEntity(data, bufferSize, chunked), correlationId, config), new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    current.active.decrementAndGet();
+                    int responseCode = response.getStatusLine().getStatusCode();
+                    boolean failed = responseCode >= 500 || responseCode == 429;
+                    breaker.record(ticket, failed, System.currentTimeMillis() - started);
+                    limiter.release(permit, failed);
+                    if (LOGGER.isInfoEnabled()) {
+                        LOGGER.info("DRS returns code code " + responseCode);
+                    }
+                    DrsResult read;
+                    try {
+                        // the async client has already read the whole response body into memory
+                        read = DrsResponseReader.read(responseCode, attempt, response.getEntity());
+                    } catch (IOException e) {
+                        read = new DrsResult(responseCode, attempt);
+                    }
+                    if (read.isSuccess() || !RETRYABLE_STATUS.contains(responseCode)) {
+                        result.complete(read);
+                    } else {
+                        retryAsync(data, correlationId, deadline, attempt, read, null, result);
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    current.active.decrementAndGet();
+                    breaker.record(ticket, true, System.currentTimeMillis() - started);
+                    limiter.release(permit, true);
+                    if (e instanceof ConnectTimeoutException || e instanceof SocketTimeoutException) {
+                        retryAsync(data, correlationId, deadline, attempt, null, (IOException) e, result);
+                    } else {
+                        result.completeExceptionally(e);
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    failed(new InterruptedIOException("DRS post cancelled"));
+                }
+            });
+        } catch (RuntimeException e) {
+            // the client was shut down under us
+            current.active.decrementAndGet();
+            breaker.record(ticket, true, System.currentTimeMillis() - started);
+            limiter.abandon();
+            result.completeExceptionally(e);
+        }
+    }
+
+    // last is null when the attempt timed out with failure
+    private void retryAsync(String data, String correlationId, long deadline, int attempt, DrsResult last, IOException failure, CompletableFuture<DrsResult> result) {
+        String outcome = failure != null ? failure.toString() : "code " + last.getStatusCode();
+        long delay = backoff(attempt);
+        long budget = Math.min(timeout, deadline - System.currentTimeMillis() - delay);
+        if (attempt > maxRetries || budget < MIN_ATTEMPT_TIMEOUT) {
+            LOGGER.warn("DRS post failed with " + outcome + " after " + attempt + " attempts (" + correlationId + ")");
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                result.complete(last);
+            }
+            return;
+        }
+
+        LOGGER.warn("DRS post failed with " + outcome + ", retrying in " + delay + "ms (" + correlationId + ")");
+        RequestConfig config = retryConfig(budget);
+        retryScheduler.schedule(() -> attemptAsync(data, correlationId, deadline, attempt + 1, config, result),
+                delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Waiting for a connection, connecting and waiting for the response share the budget, so the attempt times
+    // out before the deadline.
+    private static RequestConfig retryConfig(long budget) {
+        return RequestConfig.custom()
+                .setConnectionRequestTimeout((int) budget / 4)
+                .setConnectTimeout((int) budget / 4)
+                .setSocketTimeout((int) budget / 2)
+                .build();
+    }
+
+    private long backoff(int attempt) {
+        long ceiling = Math.min(retryMaxDelay, retryBaseDelay << Math.min(attempt - 1, 20));
+        return jitter.next(ceiling);
+    }
+
+    // config is null to use the client defaults
+    private DrsResult execute(DocumentEntity entity, String correlationId, RequestConfig config, int attempt) throws IOException {
+        long permit = waitForLimit(correlationId, config);
+        long ticket = breaker.tryAcquire();
+        if (ticket == CircuitBreaker.REFUSED) {
+            limiter.abandon();
+            throw unavailable(correlationId);
+        }
+        long started = System.currentTimeMillis();
+        // anything but a response under 500 other than 429 counts against DRS
+        boolean failed = true;
+        try {
+            DrsResult result = send(entity, correlationId, config, attempt);
+            failed = result.getStatusCode() >= 500 || result.getStatusCode() == 429;
+            return result;
+        } finally {
+            breaker.record(ticket, failed, System.currentTimeMillis() - started);
+            limiter.release(permit, failed);
+        }
+    }
+
+    // Waits for a place under the concurrency limit as long as the attempt would wait for a pooled connection.
+    private long waitForLimit(String correlationId, RequestConfig config) throws InterruptedIOException {
+        long permit;
+        try {
+            permit = limiter.acquire(connectionRequestTimeout(config));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to post to DRS");
+        }
+        if (permit == ConcurrencyLimiter.REFUSED) {
+            throw limited(correlationId);
+        }
+        return permit;
+    }
+
+    private int connectionRequestTimeout(RequestConfig config) {
+        return config == null ? timeout : config.getConnectionRequestTimeout();
+    }
+
+    private DrsResult send(DocumentEntity entity, String correlationId, RequestConfig config, int attempt) throws IOException {
+        leases.incrementAndGet();
+        Transport current = acquire();
+        try (CloseableHttpResponse response = current.httpClient.execute(request(entity, correlationId, config))) {
+            int responseCode = response.getStatusLine().getStatusCode();
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info("DRS returns code code " + responseCode);
+            }
+
+            // The connection only goes back into the pool once the response body has been read.
+            return DrsResponseReader.read(responseCode, attempt, response.getEntity());
+        } finally {
+            current.active.decrementAndGet();
+        }
+    }
+
+    private HttpPost request(DocumentEntity entity, String correlationId, RequestConfig config) {
+        HttpPost post = new HttpPost(drsUri());
+        post.setHeader(CONTENT_TYPE);
+        post.setHeader(AUTHORIZATION);
         String apiKey = parameters.getParameter(DrsParameters.APIKEY);
         if (apiKey != null) {
-            conn.setRequestProperty("apiKey", apiKey);
+            post.setHeader("apiKey", apiKey);
         }
-        conn.setRequestProperty("correlationId", correlationId);
-        conn.setDoOutput(true);
+        post.setHeader("correlationId", correlationId);
+        post.setEntity(entity);
+        if (config != null) {
+            post.setConfig(config);
+        }
+        return post;
+    }
+
+    private URI drsUri() {
+        String url = parameters.getParameter(DrsParameters.DRS_URL);
+        URI current = drsUri;
+        // a URI keeps the string it was made from, so this does not render it again
+        if (current == null || !current.toString().equals(url)) {
+            current = URI.create(url);
+            drsUri = current;
+        }
+        return current;
+    }
+
+    // Counts the post against the current transport.  If a swap happened in between, the count is handed back
+    // and the new one is used, so retire never shuts down a pool that a post is about to use.
+    private Transport acquire() {
+        while (true) {
+            Transport current = transport.get();
+            current.active.incrementAndGet();
+            if (current == transport.get()) {
+                return current;
+            }
+            current.active.decrementAndGet();
+        }
+    }
+
+    public ConnectionPoolMetrics getPoolMetrics() {
+        Transport current = transport.get();
+        // async posts only use the async pool
+        PoolStats stats = current.asyncConnectionManager != null ? current.asyncConnectionManager.getTotalStats()
+                : current.connectionManager.getTotalStats();
+        return new ConnectionPoolMetrics(leases.get(), connections.get(), handshakes.get(), resumedHandshakes.get(),
+                stats.getLeased(), stats.getAvailable());
+    }
+
+    private static class Transport {
+        private final PoolingHttpClientConnectionManager connectionManager;
+        private final CloseableHttpClient httpClient;
+        // null unless drs_async is set
+        private final PoolingNHttpClientConnectionManager asyncConnectionManager;
+        private final CloseableHttpAsyncClient asyncClient;
+        private final AtomicInteger active = new AtomicInteger();
+
+        Transport(PoolingHttpClientConnectionManager connectionManager, CloseableHttpClient httpClient,
+                  PoolingNHttpClientConnectionManager asyncConnectionManager, CloseableHttpAsyncClient asyncClient) {
+            this.connectionManager = connectionManager;
+            this.httpClient = httpClient;
+            this.asyncConnectionManager = asyncConnectionManager;
+            this.asyncClient = asyncClient;
+        }
+    }
 
-        conn.setSSLSocketFactory(sslSocketFactory);
-        conn.connect();
+    private class MeteredConnectionFactory extends ManagedHttpClientConnectionFactory {
+        @Override
+        public ManagedHttpClientConnection create(HttpRoute route, ConnectionConfig config) {
+            connections.incrementAndGet();
+            return super.create(route, config);
+        }
+    }
+
+    private class MeteredSSLSocketFactory extends SSLConnectionSocketFactory {
+        MeteredSSLSocketFactory(SSLContext sslContext) {
+            super(sslContext);
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+            long started = System.currentTimeMillis();
+            Socket sslSocket = super.createLayeredSocket(socket, target, port, context);
+            handshakes.incrementAndGet();
+            // A resumed session keeps the creation time of the handshake that first established it.
+            SSLSession session = ((SSLSocket) sslSocket).getSession();
+            if (session.getCreationTime() < started) {
+                resumedHandshakes.incrementAndGet();
+            }
+            return sslSocket;
+        }
+    }
 
-        DataOutputStream wr = new DataOutputStream(conn.getOutputStream());
-        wr.writeBytes(data);
-        wr.flush();
-        wr.close();
+    private class MeteredNHttpConnectionFactory extends ManagedNHttpClientConnectionFactory {
+        @Override
+        public ManagedNHttpClientConnection create(IOSession session, ConnectionConfig config) {
+            connections.incrementAndGet();
+            return super.create(session, config);
+        }
+    }
 
-        LOGGER.info("DRS returns code code " + conn.getResponseCode());
+    // The handshake runs on an I/O thread after upgrade returns, and is verified once it has finished.
+    private class MeteredSSLIOSessionStrategy extends SSLIOSessionStrategy {
+        private static final String HANDSHAKE_STARTED = "drs.handshake.started";
+
+        MeteredSSLIOSessionStrategy(SSLContext sslContext) {
+            super(sslContext);
+        }
 
-        return conn.getResponseCode() == 200;
+        @Override
+        public SSLIOSession upgrade(HttpHost host, IOSession session) throws IOException {
+            session.setAttribute(HANDSHAKE_STARTED, System.currentTimeMillis());
+            return super.upgrade(host, session);
+        }
+
+        @Override
+        protected void verifySession(HttpHost host, IOSession session, SSLSession sslSession) throws SSLException {
+            super.verifySession(host, session, sslSession);
+            handshakes.incrementAndGet();
+            // A resumed session keeps the creation time of the handshake that first established it.
+            Object started = session.getAttribute(HANDSHAKE_STARTED);
+            if (started != null && sslSession.getCreationTime() < (Long) started) {
+                resumedHandshakes.incrementAndGet();
+            }
+        }
     }
 }
@@ -0,0 +1,13 @@
+package uk.gov.dwp.drs.lambda.comms;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Raw PDF bytes kept outside the message, whose length is known before they are read.
+ */
+public interface StoredPayload {
+    long getLength();
+
+    InputStream open() throws IOException;
+}
@@ -0,0 +1,10 @@
+package uk.gov.dwp.drs.lambda.exceptions;
+
+/**
+ * Thrown without contacting DRS when no place under the concurrency limit came free in time.
+ */
+public class DrsLimitedException extends DrsUnavailableException {
+    public DrsLimitedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,11 @@
+package uk.gov.dwp.drs.lambda.exceptions;
+
+/**
+ * Thrown without contacting DRS while the circuit breaker in front of it is open.  Posts turned away by the
+ * concurrency limit throw the DrsLimitedException subclass.
+ */
+public class DrsUnavailableException extends BLProcessException {
+    public DrsUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,10 @@
+package uk.gov.dwp.drs.lambda.exceptions;
+
+/**
+ * Thrown before signing when a record could never be accepted by DRS, with what is wrong with it.
+ */
+public class InvalidRecordException extends BLProcessException {
+    public InvalidRecordException(String message) {
+        super(message);
+    }
+}
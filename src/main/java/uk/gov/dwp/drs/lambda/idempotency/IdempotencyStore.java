@@ -0,0 +1,20 @@
+package uk.gov.dwp.drs.lambda.idempotency;
+
+import java.io.IOException;
+
+/**
+ * Remembers which records have already been sent to DRS, and the document identifier DRS gave each, so a
+ * redelivered record is not signed and posted again but its SUCCEEDED status can be sent again as it was.
+ * Implementations may be local to the container or a remote store shared between containers.
+ */
+public interface IdempotencyStore {
+    /**
+     * The document identifier the key was marked done with, or null if it was not marked done or has expired.
+     */
+    String getDocumentId(String key) throws IOException;
+
+    /**
+     * @param documentId identifier DRS stored the document under, empty if DRS did not give one
+     */
+    void markDone(String key, String documentId) throws IOException;
+}
@@ -0,0 +1,60 @@
+package uk.gov.dwp.drs.lambda.idempotency;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Least recently used keys held for a time to live in this container.  A size of 0 or less remembers nothing.
+ */
+public class MemoryIdempotencyStore implements IdempotencyStore {
+    private final int maxEntries;
+    private final long ttlNanos;
+    // in access order
+    private final LinkedHashMap<String, Entry> entries;
+
+    public MemoryIdempotencyStore(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MemoryIdempotencyStore.this.maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public synchronized String getDocumentId(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.expires >= 0) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.documentId;
+    }
+
+    @Override
+    public synchronized void markDone(String key, String documentId) {
+        if (maxEntries > 0) {
+            entries.put(key, new Entry(System.nanoTime() + ttlNanos, documentId));
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static class Entry {
+        private final long expires;
+        private final String documentId;
+
+        Entry(long expires, String documentId) {
+            this.expires = expires;
+            this.documentId = documentId;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package uk.gov.dwp.drs.lambda.idempotency;
+
+import java.io.IOException;
+
+/**
+ * A store local to the container in front of a remote one.  Keys found remotely are copied into the local store
+ * with their document identifiers, so a warm container only asks the remote store about records it has not seen.
+ */
+public class TieredIdempotencyStore implements IdempotencyStore {
+    private final IdempotencyStore local;
+    private final IdempotencyStore remote;
+
+    public TieredIdempotencyStore(IdempotencyStore local, IdempotencyStore remote) {
+        this.local = local;
+        this.remote = remote;
+    }
+
+    @Override
+    public String getDocumentId(String key) throws IOException {
+        String documentId = local.getDocumentId(key);
+        if (documentId != null) {
+            return documentId;
+        }
+        documentId = remote.getDocumentId(key);
+        if (documentId != null) {
+            local.markDone(key, documentId);
+        }
+        return documentId;
+    }
+
+    @Override
+    public void markDone(String key, String documentId) throws IOException {
+        local.markDone(key, documentId);
+        remote.markDone(key, documentId);
+    }
+}
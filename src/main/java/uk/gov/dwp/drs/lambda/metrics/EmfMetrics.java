@@ -0,0 +1,183 @@
+package uk.gov.dwp.drs.lambda.metrics;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.apache.commons.io.output.StringBuilderWriter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes one CloudWatch embedded metric format document per invocation through the Lambda logger.  Per record
+ * values are written as arrays, so CloudWatch sees every sample and can give percentiles without any API calls.
+ * Each document is streamed through one shared ObjectWriter into a buffer the instance keeps, with no tree built.
+ */
+public class EmfMetrics implements Metrics {
+    public static final String DEFAULT_NAMESPACE = "DRSLambda";
+    private static final String SERVICE = "drs-lambda";
+    private static final String MILLISECONDS = "Milliseconds";
+    private static final int MAX_VALUES = 100;
+    private static final ObjectWriter WRITER = new ObjectMapper().writer();
+
+    private final String namespace;
+    // reused for every document, only written while holding it
+    private final StringBuilderWriter buffer = new StringBuilderWriter(4096);
+
+    public EmfMetrics(String namespace) {
+        this.namespace = namespace == null || namespace.trim().isEmpty() ? DEFAULT_NAMESPACE : namespace.trim();
+    }
+
+    @Override
+    public Batch startBatch() {
+        return new EmfBatch();
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    private class EmfBatch implements Batch {
+        private final Map<Stage, List<Long>> stages = new EnumMap<>(Stage.class);
+        private final List<Integer> payloads = new ArrayList<>();
+        private final Map<String, Integer> counts = new LinkedHashMap<>();
+        private final Map<String, Double> percents = new LinkedHashMap<>();
+
+        @Override
+        public long stage(Stage stage, long started) {
+            long now = System.nanoTime();
+            synchronized (this) {
+                stages.computeIfAbsent(stage, s -> new ArrayList<>()).add(now - started);
+            }
+            return now;
+        }
+
+        @Override
+        public synchronized void payload(int bytes) {
+            payloads.add(bytes);
+        }
+
+        @Override
+        public synchronized void count(String name, int value) {
+            counts.merge(name, value, Integer::sum);
+        }
+
+        @Override
+        public synchronized void percent(String name, double value) {
+            percents.put(name, value);
+        }
+
+        @Override
+        public synchronized void finish(int records, int failed, long durationNanos, LambdaLogger logger) {
+            int samples = payloads.size();
+            for (List<Long> values : stages.values()) {
+                samples = Math.max(samples, values.size());
+            }
+
+            // Batches larger than EMF allows in one array are split, the batch totals go in the first document.
+            for (int from = 0; from == 0 || from < samples; from += MAX_VALUES) {
+                String document;
+                synchronized (buffer) {
+                    buffer.getBuilder().setLength(0);
+                    try (JsonGenerator json = WRITER.getFactory().createGenerator(buffer)) {
+                        write(json, from, records, failed, durationNanos);
+                    } catch (IOException e) {
+                        // written to memory, so this cannot happen
+                        throw new UncheckedIOException(e);
+                    }
+                    document = buffer.toString();
+                }
+                logger.log(document);
+            }
+        }
+
+        // The metric definitions under _aws name the same metrics, in the same order, as the values that follow.
+        private void write(JsonGenerator json, int from, int records, int failed, long durationNanos) throws IOException {
+            json.writeStartObject();
+            json.writeObjectFieldStart("_aws");
+            json.writeNumberField("Timestamp", System.currentTimeMillis());
+            json.writeArrayFieldStart("CloudWatchMetrics");
+            json.writeStartObject();
+            json.writeStringField("Namespace", namespace);
+            json.writeArrayFieldStart("Dimensions");
+            json.writeStartArray();
+            json.writeString("Service");
+            json.writeEndArray();
+            json.writeEndArray();
+            json.writeArrayFieldStart("Metrics");
+            for (Map.Entry<Stage, List<Long>> stage : stages.entrySet()) {
+                if (!slice(stage.getValue(), from).isEmpty()) {
+                    definition(json, stage.getKey().getMetricName(), MILLISECONDS);
+                }
+            }
+            if (!slice(payloads, from).isEmpty()) {
+                definition(json, "PayloadSize", "Bytes");
+            }
+            if (from == 0) {
+                definition(json, "Records", "Count");
+                definition(json, "FailedRecords", "Count");
+                definition(json, "BatchTime", MILLISECONDS);
+                for (String count : counts.keySet()) {
+                    definition(json, count, "Count");
+                }
+                for (String percent : percents.keySet()) {
+                    definition(json, percent, "Percent");
+                }
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+            json.writeEndArray();
+            json.writeEndObject();
+            json.writeStringField("Service", SERVICE);
+
+            for (Map.Entry<Stage, List<Long>> stage : stages.entrySet()) {
+                List<Long> values = slice(stage.getValue(), from);
+                if (!values.isEmpty()) {
+                    json.writeArrayFieldStart(stage.getKey().getMetricName());
+                    for (long nanos : values) {
+                        json.writeNumber(millis(nanos));
+                    }
+                    json.writeEndArray();
+                }
+            }
+            List<Integer> sizes = slice(payloads, from);
+            if (!sizes.isEmpty()) {
+                json.writeArrayFieldStart("PayloadSize");
+                for (int size : sizes) {
+                    json.writeNumber(size);
+                }
+                json.writeEndArray();
+            }
+            if (from == 0) {
+                json.writeNumberField("Records", records);
+                json.writeNumberField("FailedRecords", failed);
+                json.writeNumberField("BatchTime", millis(durationNanos));
+                for (Map.Entry<String, Integer> count : counts.entrySet()) {
+                    json.writeNumberField(count.getKey(), count.getValue());
+                }
+                for (Map.Entry<String, Double> percent : percents.entrySet()) {
+                    json.writeNumberField(percent.getKey(), Math.round(percent.getValue() * 10) / 10.0);
+                }
+            }
+            json.writeEndObject();
+        }
+
+        private void definition(JsonGenerator json, String name, String unit) throws IOException {
+            json.writeStartObject();
+            json.writeStringField("Name", name);
+            json.writeStringField("Unit", unit);
+            json.writeEndObject();
+        }
+
+        private <T> List<T> slice(List<T> values, int from) {
+            return from >= values.size() ? Collections.emptyList() : values.subList(from, Math.min(from + MAX_VALUES, values.size()));
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package uk.gov.dwp.drs.lambda.metrics;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+/**
+ * Timings for one invocation, collected per record from the worker threads and written out when the batch ends.
+ */
+public interface Metrics {
+    enum Stage {
+        BUDGET("BudgetWaitTime"),
+        PARSE("ParseTime"),
+        SIGNER_WAIT("SignerWaitTime"),
+        SIGN("SignTime"),
+        POST("PostTime"),
+        STATUS("StatusTime"),
+        FLUSH("StatusFlushTime");
+
+        private final String metricName;
+
+        Stage(String metricName) {
+            this.metricName = metricName;
+        }
+
+        public String getMetricName() {
+            return metricName;
+        }
+    }
+
+    Batch startBatch();
+
+    interface Batch {
+        /**
+         * Records the time since started against the stage and returns the current System.nanoTime(), ready to
+         * time the next stage.
+         */
+        long stage(Stage stage, long started);
+
+        void payload(int bytes);
+
+        /**
+         * Adds a count for the whole invocation, such as circuit breaker transitions.
+         */
+        void count(String name, int value);
+
+        /**
+         * Adds a percentage for the whole invocation, such as how busy the signers were.
+         */
+        void percent(String name, double value);
+
+        void finish(int records, int failed, long durationNanos, LambdaLogger logger);
+    }
+}
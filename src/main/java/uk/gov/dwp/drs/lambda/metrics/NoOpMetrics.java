@@ -0,0 +1,37 @@
+package uk.gov.dwp.drs.lambda.metrics;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+public class NoOpMetrics implements Metrics {
+    private static final Batch BATCH = new Batch() {
+        @Override
+        public long stage(Stage stage, long started) {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void payload(int bytes) {
+            // not recorded
+        }
+
+        @Override
+        public void count(String name, int value) {
+            // not recorded
+        }
+
+        @Override
+        public void percent(String name, double value) {
+            // not recorded
+        }
+
+        @Override
+        public void finish(int records, int failed, long durationNanos, LambdaLogger logger) {
+            // not recorded
+        }
+    };
+
+    @Override
+    public Batch startBatch() {
+        return BATCH;
+    }
+}
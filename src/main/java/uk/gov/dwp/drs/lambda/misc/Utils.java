@@ -1,10 +1,26 @@
 package uk.gov.dwp.drs.lambda.misc;
 
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.handlers.RequestHandler2;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.AmazonSQSAsyncClientBuilder;
+import com.amazonaws.util.StringUtils;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,16 +30,97 @@ public class Utils {
     private Utils() {}
 
     public static SQSEvent makeSQSEvent(String payload) {
+        return makeSQSEvent(Collections.singletonList(payload));
+    }
+
+    public static SQSEvent makeSQSEvent(List<String> payloads) {
+        List<SQSEvent.SQSMessage> records = new ArrayList<>();
+        for (String payload : payloads) {
+            SQSEvent.SQSMessage sqsMessage = new SQSEvent.SQSMessage();
+            SQSEvent.MessageAttribute messageAttribute = new SQSEvent.MessageAttribute();
+            messageAttribute.setStringValue(UUID.randomUUID().toString());
+            sqsMessage.setMessageId(UUID.randomUUID().toString());
+            sqsMessage.setBody(payload);
+            sqsMessage.setMessageAttributes(Collections.singletonMap(JMS_CORRELATION_ID, messageAttribute));
+            records.add(sqsMessage);
+        }
         SQSEvent sqsEvent = new SQSEvent();
-        SQSEvent.SQSMessage sqsMessage = new SQSEvent.SQSMessage();
-        SQSEvent.MessageAttribute messageAttribute = new SQSEvent.MessageAttribute();
-        messageAttribute.setStringValue(UUID.randomUUID().toString());
-        sqsMessage.setBody(payload);
-        sqsMessage.setMessageAttributes(Collections.singletonMap(JMS_CORRELATION_ID, messageAttribute));
-        sqsEvent.setRecords(Collections.singletonList(sqsMessage));
+        sqsEvent.setRecords(records);
         return sqsEvent;
     }
 
+    /**
+     * A record shaped like a claim submission, with made up metadata and a payload of pdfBytes encoded in base64.
+     */
+    public static String makeSyntheticRecord(int pdfBytes) {
+        byte[] pdf = new byte[pdfBytes];
+        byte[] header = "%PDF-1.4\n".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(header, 0, pdf, 0, Math.min(header.length, pdfBytes));
+        for (int i = header.length; i < pdfBytes; i++) {
+            pdf[i] = (byte) (' ' + i % 95);
+        }
+        return "{\"metadata\":{\"businessUnitID\":36,\"classification\":0,\"claimRef\":\"00000000\"," +
+                "\"documentType\":9877,\"documentSource\":4,\"dateOfBirth\":19700101,\"surname\":\"Synthetic\"," +
+                "\"forename\":\"\",\"postCode\":\"AA11AA\",\"officePostcode\":\"AA11AA\"," +
+                "\"nino\":{\"ninoBody\":\"AA000000\",\"ninoSuffix\":\"A\"},\"benefitType\":4}," +
+                "\"payload\":\"" + Base64.getEncoder().encodeToString(pdf) + "\"}";
+    }
+
+    public static int toInt(String value, int defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static ThreadFactory makeThreadFactory(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * SQS client for eu-west-2, or for the endpoint in sqshost when it is set, with threads named after prefix.
+     */
+    public static AmazonSQSAsync makeSQSClient(String sqsHost, String prefix, int threads) {
+        AmazonSQSAsyncClientBuilder builder = AmazonSQSAsyncClientBuilder.standard();
+        if (StringUtils.isNullOrEmpty(sqsHost)) {
+            builder.withRegion("eu-west-2");
+        } else {
+            builder.withRequestHandlers(new RequestHandler2() {});
+
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(
+                    sqsHost, "eu-west-2"))
+                    .withCredentials(new AWSStaticCredentialsProvider(
+                            new BasicAWSCredentials("", "")));
+        }
+        builder.withExecutorFactory(() -> Executors.newFixedThreadPool(threads, makeThreadFactory(prefix)));
+        return builder.build();
+    }
+
+    /**
+     * S3 client for eu-west-2, or for the endpoint in s3host when it is set, addressing buckets by path as local
+     * stand-ins expect.
+     */
+    public static AmazonS3 makeS3Client(String s3Host) {
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard();
+        if (StringUtils.isNullOrEmpty(s3Host)) {
+            builder.withRegion("eu-west-2");
+        } else {
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(s3Host, "eu-west-2"))
+                    .withPathStyleAccessEnabled(true)
+                    .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("", "")));
+        }
+        return builder.build();
+    }
+
     public static LambdaLogger makeLambdaLoggerAdaptor() {
         return new LambdaLogger() {
             Logger logger = Logger.getLogger("LambdaLog");
@@ -5,18 +5,33 @@ import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.simplesystemsmanagement.AWSSimpleSystemsManagement;
 import com.amazonaws.services.simplesystemsmanagement.AWSSimpleSystemsManagementClientBuilder;
-import com.amazonaws.services.simplesystemsmanagement.model.GetParameterRequest;
 import com.amazonaws.services.simplesystemsmanagement.model.GetParametersByPathRequest;
 import com.amazonaws.services.simplesystemsmanagement.model.GetParametersByPathResult;
+import com.amazonaws.services.simplesystemsmanagement.model.GetParametersRequest;
+import com.amazonaws.services.simplesystemsmanagement.model.GetParametersResult;
 import com.amazonaws.services.simplesystemsmanagement.model.Parameter;
+import com.amazonaws.services.simplesystemsmanagement.model.ParameterNotFoundException;
 import com.amazonaws.util.StringUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import uk.gov.dwp.drs.lambda.misc.Utils;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 
 public class DrsParameters {
@@ -31,15 +46,97 @@ public class DrsParameters {
     public static final String DRS_URL = "drsurl";
     public static final String SSM_PATH = "ssmpath";
     public static final String RESPONSE_QUEUE = "response_queue";
+    public static final String WORKER_THREADS = "worker_threads";
+    public static final String MEMORY_BUDGET = "memory_budget";
+    public static final String SIGNER_POOL_SIZE = "signer_pool_size";
+    public static final String VALIDATE_RECORDS = "validate_records";
+    public static final String PDF_MAX_BYTES = "pdf_max_bytes";
+    public static final String PARTIAL_BATCH_FAILURES = "partial_batch_failures";
+    public static final String DRS_MAX_CONNECTIONS = "drs_max_connections";
+    public static final String DRS_BUFFER_SIZE = "drs_buffer_size";
+    public static final String DRS_CHUNKED = "drs_chunked";
+    public static final String DRS_TIMEOUT = "drs_timeout";
+    public static final String DRS_ASYNC = "drs_async";
+    public static final String DRS_RETRIES = "drs_retries";
+    public static final String DRS_RETRY_BASE_DELAY = "drs_retry_base_delay";
+    public static final String DRS_RETRY_MAX_DELAY = "drs_retry_max_delay";
+    public static final String DRS_BREAKER_WINDOW = "drs_breaker_window";
+    public static final String DRS_BREAKER_FAILURE_RATE = "drs_breaker_failure_rate";
+    public static final String DRS_BREAKER_SLOW_RATE = "drs_breaker_slow_rate";
+    public static final String DRS_BREAKER_SLOW_CALL = "drs_breaker_slow_call";
+    public static final String DRS_BREAKER_OPEN_TIME = "drs_breaker_open_time";
+    public static final String DRS_LIMIT_MIN = "drs_limit_min";
+    public static final String DRS_LIMIT_MAX = "drs_limit_max";
+    public static final String DRS_LIMIT_TOLERANCE = "drs_limit_tolerance";
 
-    private Map<String,String> parMap;
+    public static final String SSM_CACHE_TTL = "ssm_cache_ttl";
+    public static final String PRIME_ITERATIONS = "prime_iterations";
+    public static final String METRICS_NAMESPACE = "metrics_namespace";
+    public static final String IDEMPOTENCY_CACHE_SIZE = "idempotency_cache_size";
+    public static final String IDEMPOTENCY_TTL = "idempotency_ttl";
+    public static final String REQUEST_QUEUE = "request_queue";
+    public static final String WORKER_MAX_IN_FLIGHT = "worker_max_in_flight";
+    public static final String WORKER_POLL_WAIT = "worker_poll_wait";
+    public static final String WORKER_DRAIN_TIMEOUT = "worker_drain_timeout";
+
+    private static final Logger LOGGER = Logger.getLogger(DrsParameters.class);
+    private static final int MAX_NAMES_PER_REQUEST = 10;
+    private static final int DEFAULT_CACHE_TTL = 300;
+    private static final Pattern SSM_PATH_PREFIX = Pattern.compile("^/.*/");
+    private static final String[] PARS = {
+        TRANSKEY_PRV,
+        TRANSKEY_PUB,
+        CACERT,
+        CACERT2,
+        APIKEY,
+        SIGNKEY_PRV,
+        SIGNKEY_PUB,
+        DRSREQUEST_USERNAME,
+        DRS_URL,
+        RESPONSE_QUEUE,
+        WORKER_THREADS,
+        MEMORY_BUDGET,
+        SIGNER_POOL_SIZE,
+        VALIDATE_RECORDS,
+        PDF_MAX_BYTES,
+        PARTIAL_BATCH_FAILURES,
+        DRS_MAX_CONNECTIONS,
+        DRS_BUFFER_SIZE,
+        DRS_CHUNKED,
+        DRS_TIMEOUT,
+        DRS_ASYNC,
+        DRS_RETRIES,
+        DRS_RETRY_BASE_DELAY,
+        DRS_RETRY_MAX_DELAY,
+        DRS_BREAKER_WINDOW,
+        DRS_BREAKER_FAILURE_RATE,
+        DRS_BREAKER_SLOW_RATE,
+        DRS_BREAKER_SLOW_CALL,
+        DRS_BREAKER_OPEN_TIME,
+        DRS_LIMIT_MIN,
+        DRS_LIMIT_MAX,
+        DRS_LIMIT_TOLERANCE,
+        SSM_CACHE_TTL,
+        PRIME_ITERATIONS,
+        METRICS_NAMESPACE,
+        IDEMPOTENCY_CACHE_SIZE,
+        IDEMPOTENCY_TTL,
+        REQUEST_QUEUE,
+        WORKER_MAX_IN_FLIGHT,
+        WORKER_POLL_WAIT,
+        WORKER_DRAIN_TIMEOUT
+    };
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private final ExecutorService loader = Executors.newCachedThreadPool(Utils.makeThreadFactory("drs-parameters"));
     private AWSSimpleSystemsManagement client = null;
 
     public DrsParameters() {
-        refresh();
+        snapshot.set(new Snapshot(load(), System.currentTimeMillis()));
     }
 
-    private AWSSimpleSystemsManagement getClient() {
+    private synchronized AWSSimpleSystemsManagement getClient() {
         if (client == null) {
             AWSSimpleSystemsManagementClientBuilder ssmBuilder = AWSSimpleSystemsManagementClientBuilder.standard();
 
@@ -55,50 +152,90 @@ public class DrsParameters {
         return client;
     }
 
-    private void refresh() {
-        String[] pars = {
-            TRANSKEY_PRV,
-            TRANSKEY_PUB,
-            CACERT,
-            CACERT2,
-            APIKEY,
-            SIGNKEY_PRV,
-            SIGNKEY_PUB,
-            DRSREQUEST_USERNAME,
-            DRS_URL,
-            RESPONSE_QUEUE
-        };
-
-        if (parMap == null) {
-            parMap = new HashMap<>();
-        } else {
-            parMap.clear();
-        }
+    /**
+     * Environment values first, with "@name" values looked up in SSM, then everything under ssmpath on top.
+     * The path is paged on another thread while the named lookups run.
+     */
+    private Map<String, String> load() {
+        Map<String, String> values = new HashMap<>();
+        Map<String, String> indirect = new HashMap<>();
 
-        for (String par : pars) {
+        for (String par : PARS) {
             String value = getSystemParameter(par);
 
             if (!StringUtils.isNullOrEmpty(value) && value.startsWith("@")) {
-                value = getClient().getParameter(new GetParameterRequest()
-                    .withName(value.substring(1)).withWithDecryption(true)).getParameter().getValue();
+                indirect.put(par, value.substring(1));
+            } else {
+                values.put(par, value);
             }
-
-            parMap.put(par, value);
         }
 
         String ssmPath = getSystemParameter(SSM_PATH);
-        if (!StringUtils.isNullOrEmpty(ssmPath)) {
-            GetParametersByPathResult result;
-            GetParametersByPathRequest request = new GetParametersByPathRequest().withPath(ssmPath).withWithDecryption(true);
+        CompletableFuture<Map<String, String>> byPath = StringUtils.isNullOrEmpty(ssmPath)
+                ? CompletableFuture.completedFuture(Collections.emptyMap())
+                : CompletableFuture.supplyAsync(() -> loadPath(ssmPath), loader);
+
+        Map<String, String> byName = loadNames(new ArrayList<>(new HashSet<>(indirect.values())));
+        indirect.forEach((par, name) -> values.put(par, byName.get(name)));
+
+        try {
+            values.putAll(byPath.join());
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        return values;
+    }
+
+    private Map<String, String> loadNames(List<String> names) {
+        Map<String, String> values = new HashMap<>();
+
+        for (int i = 0; i < names.size(); i += MAX_NAMES_PER_REQUEST) {
+            GetParametersResult result = getClient().getParameters(new GetParametersRequest()
+                    .withNames(names.subList(i, Math.min(i + MAX_NAMES_PER_REQUEST, names.size())))
+                    .withWithDecryption(true));
+
+            if (!result.getInvalidParameters().isEmpty()) {
+                throw new ParameterNotFoundException("Parameters not found: " + result.getInvalidParameters());
+            }
+            for (Parameter p : result.getParameters()) {
+                values.put(p.getSelector() == null ? p.getName() : p.getName() + p.getSelector(), p.getValue());
+            }
+        }
+        return values;
+    }
+
+    private Map<String, String> loadPath(String ssmPath) {
+        Map<String, String> values = new HashMap<>();
+        GetParametersByPathResult result;
+        GetParametersByPathRequest request = new GetParametersByPathRequest().withPath(ssmPath).withWithDecryption(true);
 
-            do {
-                result = getClient().getParametersByPath(request);
-                result.getParameters().forEach(p -> parMap.put(p.getName().replaceFirst("^/.*/", ""), unpack(p)));
+        do {
+            result = getClient().getParametersByPath(request);
+            result.getParameters().forEach(p -> values.put(SSM_PATH_PREFIX.matcher(p.getName()).replaceFirst(""), unpack(p)));
 
-                if (!StringUtils.isNullOrEmpty(result.getNextToken())) {
-                    request.setNextToken(result.getNextToken());
+            if (!StringUtils.isNullOrEmpty(result.getNextToken())) {
+                request.setNextToken(result.getNextToken());
+            }
+        } while (!StringUtils.isNullOrEmpty(result.getNextToken()));
+
+        return values;
+    }
+
+    private void refreshInBackground(Snapshot current) {
+        if (refreshing.compareAndSet(false, true)) {
+            loader.execute(() -> {
+                try {
+                    snapshot.set(new Snapshot(load(), System.currentTimeMillis()));
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Failed to refresh parameters, keeping previous values", e);
+                    snapshot.compareAndSet(current, new Snapshot(current.values, System.currentTimeMillis()));
+                } finally {
+                    refreshing.set(false);
                 }
-            } while (!StringUtils.isNullOrEmpty(result.getNextToken()));
+            });
         }
     }
 
@@ -120,11 +257,30 @@ public class DrsParameters {
         return parameter.getValue();
     }
 
+    /**
+     * Never blocks: once the values are older than ssm_cache_ttl seconds they are reloaded in the background and
+     * the current ones are returned until that finishes.
+     */
     public String getParameter(String parameter) {
-        return parMap.getOrDefault(parameter, null);
+        Snapshot current = snapshot.get();
+        if (System.currentTimeMillis() >= current.expires) {
+            refreshInBackground(current);
+        }
+        return current.values.get(parameter);
     }
 
     public String getSystemParameter(String parameter) {
         return System.getenv(parameter);
     }
+
+    private static class Snapshot {
+        private final Map<String, String> values;
+        private final long expires;
+
+        Snapshot(Map<String, String> values, long loaded) {
+            int ttl = Utils.toInt(values.get(SSM_CACHE_TTL), DEFAULT_CACHE_TTL);
+            this.values = values;
+            this.expires = ttl > 0 ? loaded + ttl * 1000L : Long.MAX_VALUE;
+        }
+    }
 }
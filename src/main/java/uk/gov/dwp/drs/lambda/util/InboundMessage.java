@@ -0,0 +1,163 @@
+package uk.gov.dwp.drs.lambda.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.StringReader;
+
+/**
+ * Body of an inbound SQS message, read in one streaming pass.  The metadata is taken as the raw JSON text of
+ * its subtree and the payload as a slice of the message body, so neither is built up as a tree or re-serialised.
+ * A PDF too big for SQS is left in S3 by the sender and given as "payloadS3": {"bucket": ..., "key": ...} in
+ * place of the payload (claim check).
+ */
+public class InboundMessage {
+    private static final String METADATA = "metadata";
+    private static final String PAYLOAD = "payload";
+    private static final String PAYLOAD_S3 = "payloadS3";
+    private static final String RESUME_PREFIX = "{\"\":0";
+    private static final JsonFactory JSON_FACTORY = JsonFactory.builder()
+            .disable(JsonFactory.Feature.INTERN_FIELD_NAMES)
+            .disable(JsonFactory.Feature.CANONICALIZE_FIELD_NAMES)
+            .build();
+
+    private final String metadata;
+    private final String payload;
+    private final PayloadLocation payloadLocation;
+
+    public InboundMessage(String metadata, String payload) {
+        this(metadata, payload, null);
+    }
+
+    public InboundMessage(String metadata, String payload, PayloadLocation payloadLocation) {
+        this.metadata = metadata;
+        this.payload = payload;
+        this.payloadLocation = payloadLocation;
+    }
+
+    public static InboundMessage read(String body) throws IOException {
+        String metadata = null;
+        String payload = null;
+        PayloadLocation payloadLocation = null;
+        // Position in the body of the first character the current parser reads.
+        int base = 0;
+
+        JsonParser parser = JSON_FACTORY.createParser(body);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Message body is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                int start = base + (int) parser.getTokenLocation().getCharOffset();
+
+                if (METADATA.equals(name)) {
+                    parser.skipChildren();
+                    metadata = body.substring(start, base + (int) parser.getCurrentLocation().getCharOffset());
+                } else if (PAYLOAD.equals(name) && value == JsonToken.VALUE_STRING) {
+                    int end = closingQuote(body, start);
+                    if (end < 0) {
+                        payload = unquote(parser.getText());
+                    } else {
+                        // Base64 never needs escaping, so the payload is a straight slice of the body.  The parser
+                        // would walk the whole string again to skip it, so pick up with a new one after the payload.
+                        payload = body.substring(start + 1, end);
+                        parser.close();
+                        parser = resume(body, end + 1);
+                        base = end + 1 - RESUME_PREFIX.length();
+                    }
+                } else if (PAYLOAD_S3.equals(name) && value == JsonToken.START_OBJECT) {
+                    payloadLocation = readLocation(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (metadata == null || payload == null && payloadLocation == null) {
+                throw new JsonParseException(parser, "Message body needs " + METADATA + " and either " + PAYLOAD
+                        + " or " + PAYLOAD_S3);
+            }
+        } finally {
+            parser.close();
+        }
+
+        return new InboundMessage(metadata, payload, payloadLocation);
+    }
+
+    private static PayloadLocation readLocation(JsonParser parser) throws IOException {
+        String bucket = null;
+        String key = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("bucket".equals(name) && value == JsonToken.VALUE_STRING) {
+                bucket = parser.getText();
+            } else if ("key".equals(name) && value == JsonToken.VALUE_STRING) {
+                key = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (bucket == null || key == null) {
+            throw new JsonParseException(parser, PAYLOAD_S3 + " needs both bucket and key");
+        }
+        return new PayloadLocation(bucket, key);
+    }
+
+    private static int closingQuote(String body, int start) {
+        for (int i = start + 1; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c == '"') {
+                return i;
+            }
+            if (c == '\\') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static String unquote(String text) {
+        // Escaped content is decoded by the parser, and some senders wrap the payload in an extra pair of quotes.
+        return text.length() > 1 && text.startsWith("\"") && text.endsWith("\"") ? text.substring(1, text.length() - 1) : text;
+    }
+
+    private static JsonParser resume(String body, int from) throws IOException {
+        // What follows the payload is either the end of the object or more members, so a dummy first member
+        // turns it back into a complete object.
+        StringReader rest = new StringReader(body);
+        if (rest.skip(from) != from) {
+            throw new IOException("Could not skip payload");
+        }
+        PushbackReader reader = new PushbackReader(rest, RESUME_PREFIX.length());
+        reader.unread(RESUME_PREFIX.toCharArray());
+
+        JsonParser parser = JSON_FACTORY.createParser(reader);
+        parser.nextToken();
+        parser.nextToken();
+        parser.nextToken();
+        return parser;
+    }
+
+    public String getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * The base64 PDF, or null when it is in S3.
+     */
+    public String getPayload() {
+        return payload;
+    }
+
+    /**
+     * Where the PDF is in S3, or null when it is in the message.
+     */
+    public PayloadLocation getPayloadLocation() {
+        return payloadLocation;
+    }
+}
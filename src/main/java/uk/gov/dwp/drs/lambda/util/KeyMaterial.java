@@ -0,0 +1,135 @@
+package uk.gov.dwp.drs.lambda.util;
+
+import org.apache.log4j.Logger;
+import uk.gov.dwp.drs.lambda.misc.Utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Something built from key material in the parameters, such as a TLS context or a signer, versioned by a SHA-256
+ * of the parameter values it was built from.  When those values change a new version is built in the background
+ * and swapped in with a single reference update, so callers never wait and work that already holds the old
+ * version finishes with it.
+ */
+public class KeyMaterial<T> {
+    public interface Factory<T> {
+        T create() throws GeneralSecurityException, IOException;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(KeyMaterial.class);
+    private static final int VERSION_LENGTH = 12;
+
+    private final String name;
+    private final DrsParameters parameters;
+    private final String[] names;
+    private final Factory<T> factory;
+    private final Consumer<T> retire;
+    private final AtomicReference<Version<T>> current = new AtomicReference<>();
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    private final ExecutorService builder;
+    private volatile String failed;
+
+    /**
+     * @param initial already built from the current values, so construction errors reach the caller
+     * @param retire  called with the replaced version once the new one is in place, may be null
+     */
+    public KeyMaterial(String name, DrsParameters parameters, T initial, Factory<T> factory, Consumer<T> retire, String... names) {
+        this.name = name;
+        this.parameters = parameters;
+        this.names = names;
+        this.factory = factory;
+        this.retire = retire;
+        this.builder = Executors.newSingleThreadExecutor(Utils.makeThreadFactory("drs-keys-" + name));
+        current.set(new Version<>(initial, fingerprint()));
+    }
+
+    public T get() {
+        return current.get().value;
+    }
+
+    public String getVersion() {
+        return current.get().fingerprint.substring(0, VERSION_LENGTH);
+    }
+
+    /**
+     * Starts a background rebuild if the parameter values no longer match the current version.  Values that
+     * already failed to build are not tried again until they change.
+     */
+    public boolean refreshIfChanged() {
+        String fingerprint = fingerprint();
+        if (fingerprint.equals(current.get().fingerprint) || fingerprint.equals(failed)
+                || !rebuilding.compareAndSet(false, true)) {
+            return false;
+        }
+
+        builder.execute(() -> {
+            try {
+                swap(fingerprint);
+            } catch (GeneralSecurityException | IOException | RuntimeException e) {
+                failed = fingerprint;
+                LOGGER.warn("Failed to build " + name + " key material, keeping version " + getVersion(), e);
+            } finally {
+                rebuilding.set(false);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Builds a new version from the current values on the calling thread, whether or not they changed.
+     */
+    public void rebuild() throws GeneralSecurityException, IOException {
+        swap(fingerprint());
+    }
+
+    private void swap(String fingerprint) throws GeneralSecurityException, IOException {
+        Version<T> previous = current.getAndSet(new Version<>(factory.create(), fingerprint));
+        LOGGER.info("Using " + name + " key material version " + getVersion());
+        if (retire != null) {
+            retire.accept(previous.value);
+        }
+    }
+
+    private String fingerprint() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String par : names) {
+                String value = parameters.getParameter(par);
+                digest.update(par.getBytes(StandardCharsets.UTF_8));
+                // keeps a missing value apart from an empty one
+                digest.update((byte) (value == null ? 0 : 1));
+                if (value != null) {
+                    digest.update(value.getBytes(StandardCharsets.UTF_8));
+                }
+                digest.update((byte) 0);
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Version<T> {
+        private final T value;
+        private final String fingerprint;
+
+        Version(T value, String fingerprint) {
+            this.value = value;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package uk.gov.dwp.drs.lambda.util;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Heap shared by the records in flight, handed out against an estimate of what each record will hold at once.  A
+ * record larger than the whole budget takes all of it, so it runs alone.  Waiting is first come first served, so a
+ * large record is not passed over forever by a stream of small ones.
+ */
+public class MemoryBudget {
+    // handed out in kilobytes, as a semaphore counts in ints
+    private static final int UNIT = 1024;
+
+    private final int total;
+    private final Semaphore available;
+
+    /**
+     * @param bytes budget in bytes, 0 or less for no limit
+     */
+    public MemoryBudget(long bytes) {
+        total = bytes <= 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, Math.max(1, bytes / UNIT));
+        available = new Semaphore(total, true);
+    }
+
+    /**
+     * Waits until the bytes are free or the deadline (epoch millis) passes.
+     *
+     * @return the grant to close once the record's copies are let go, or null if the deadline passed first
+     */
+    public Grant acquire(long bytes, long deadline) throws InterruptedException {
+        if (total == 0) {
+            return new Grant(0, 0);
+        }
+        int units = (int) Math.max(1, Math.min(total, (bytes + UNIT - 1) / UNIT));
+        // a timed try keeps to the queue where a plain tryAcquire would jump it
+        if (available.tryAcquire(units, 0, TimeUnit.MILLISECONDS)) {
+            return new Grant(units, 0);
+        }
+        long started = System.nanoTime();
+        if (deadline == Long.MAX_VALUE) {
+            available.acquire(units);
+        } else if (!available.tryAcquire(units, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+            return null;
+        }
+        return new Grant(units, started);
+    }
+
+    public long getAvailable() {
+        return (long) available.availablePermits() * UNIT;
+    }
+
+    public class Grant implements AutoCloseable {
+        private final int units;
+        private final long waitStarted;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Grant(int units, long waitStarted) {
+            this.units = units;
+            this.waitStarted = waitStarted;
+        }
+
+        /**
+         * System.nanoTime() when the record started waiting for the bytes, or 0 if they were free straight away.
+         */
+        public long getWaitStarted() {
+            return waitStarted;
+        }
+
+        // may be called more than once, only the first gives the bytes back
+        @Override
+        public void close() {
+            if (units > 0 && released.compareAndSet(false, true)) {
+                available.release(units);
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package uk.gov.dwp.drs.lambda.util;
+
+/**
+ * Where a sender left a PDF in S3 instead of carrying it in the SQS body.
+ */
+public class PayloadLocation {
+    private final String bucket;
+    private final String key;
+
+    public PayloadLocation(String bucket, String key) {
+        this.bucket = bucket;
+        this.key = key;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return "s3://" + bucket + "/" + key;
+    }
+}
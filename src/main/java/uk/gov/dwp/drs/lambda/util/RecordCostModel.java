@@ -0,0 +1,51 @@
+package uk.gov.dwp.drs.lambda.util;
+
+/**
+ * Estimates how long a record takes from its size, fitted to the records this container has processed.  The fit
+ * is a least squares line through the observed (size, time) pairs with older records decaying away, so it follows
+ * DRS latency as it changes.  Times include any wait for the signer and the post retries.
+ */
+public class RecordCostModel {
+    // each observation counts for 10% less than the one after it
+    private static final double DECAY = 0.9;
+    private static final double SAFETY_FACTOR = 1.5;
+    // used until the first record has been seen
+    private static final long DEFAULT_ESTIMATE = 2000;
+
+    private double weight;
+    private double sumSize;
+    private double sumTime;
+    private double sumSize2;
+    private double sumSizeTime;
+
+    public synchronized void observe(int size, long millis) {
+        weight = weight * DECAY + 1;
+        sumSize = sumSize * DECAY + size;
+        sumTime = sumTime * DECAY + millis;
+        sumSize2 = sumSize2 * DECAY + (double) size * size;
+        sumSizeTime = sumSizeTime * DECAY + (double) size * millis;
+    }
+
+    /**
+     * Expected time in milliseconds for a record of this size, before any safety margin.
+     */
+    public synchronized long estimate(int size) {
+        if (weight == 0) {
+            return DEFAULT_ESTIMATE;
+        }
+        double meanSize = sumSize / weight;
+        double meanTime = sumTime / weight;
+        double variance = sumSize2 / weight - meanSize * meanSize;
+        // records of one size, or larger ones coming out quicker by chance, leave just the mean
+        double slope = variance > 1 ? Math.max(0, (sumSizeTime / weight - meanSize * meanTime) / variance) : 0;
+        return (long) Math.ceil(Math.max(0, meanTime + slope * (size - meanSize)));
+    }
+
+    /**
+     * Whether a record of this size, started now, is expected to finish before the deadline (epoch millis).
+     */
+    public boolean fits(int size, long deadline) {
+        return deadline == Long.MAX_VALUE
+                || System.currentTimeMillis() + (long) (estimate(size) * SAFETY_FACTOR) <= deadline;
+    }
+}
@@ -0,0 +1,190 @@
+package uk.gov.dwp.drs.lambda.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import uk.gov.dwp.drs.lambda.exceptions.InvalidRecordException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks a parsed record before it is signed, so a record DRS could never accept fails straight away with what is
+ * wrong with it rather than after signing or a post.  The payload is scanned in place as base64, only its first
+ * few bytes are decoded to find the PDF header, and its size is worked out from its length.  A PDF stored in S3 is
+ * checked for size from the HEAD and for the header once it is read.  The metadata is streamed through for the
+ * fields every DRS document needs.
+ */
+public class RecordValidator {
+    public static final long DEFAULT_MAX_PDF_BYTES = 10L * 1024 * 1024;
+    private static final List<String> REQUIRED_METADATA = Arrays.asList(
+            "businessUnitID", "claimRef", "documentType", "benefitType", "nino");
+    private static final String NINO = "nino";
+    private static final String NINO_BODY = "ninoBody";
+    private static final byte[] PDF_HEADER = {'%', 'P', 'D', 'F', '-'};
+    // base64 characters needed to decode the header
+    private static final int HEADER_CHARS = 8;
+    private static final int[] BASE64 = new int[128];
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    static {
+        Arrays.fill(BASE64, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64[alphabet.charAt(i)] = i;
+        }
+    }
+
+    private final long maxPdfBytes;
+
+    /**
+     * @param maxPdfBytes largest PDF accepted, 0 or less for no limit
+     */
+    public RecordValidator(long maxPdfBytes) {
+        this.maxPdfBytes = maxPdfBytes;
+    }
+
+    public void validate(InboundMessage message, String correlationId) {
+        validateMetadata(message.getMetadata(), correlationId);
+        if (message.getPayload() != null) {
+            validatePayload(message.getPayload(), correlationId);
+        }
+    }
+
+    /**
+     * Checks the size of a PDF stored in S3 from its length, before it is read.
+     */
+    public void validateStoredSize(long bytes, String correlationId) {
+        if (bytes == 0) {
+            throw invalid("Stored PDF is empty", correlationId);
+        }
+        checkSize(bytes, correlationId);
+    }
+
+    /**
+     * Checks the bytes read from S3 start like a PDF, as an inline payload must.
+     */
+    public void validateStoredPdf(byte[] pdf, String correlationId) {
+        if (!startsWithPdfHeader(pdf, pdf.length)) {
+            throw invalid("Stored PDF is not a PDF, it does not start with %PDF-", correlationId);
+        }
+    }
+
+    private void validatePayload(String payload, String correlationId) {
+        // line breaks are allowed, as in MIME base64
+        long chars = 0;
+        int padding = 0;
+        int bits = 0;
+        int header = 0;
+        byte[] start = new byte[HEADER_CHARS / 4 * 3];
+        for (int i = 0; i < payload.length(); i++) {
+            char c = payload.charAt(i);
+            if (c == '\r' || c == '\n') {
+                continue;
+            }
+            if (c == '=') {
+                padding++;
+            } else if (padding > 0 || c >= BASE64.length || BASE64[c] < 0) {
+                throw invalid("Payload is not base64, found '" + printable(c) + "' at character " + i, correlationId);
+            }
+            if (chars < HEADER_CHARS && padding == 0) {
+                bits = bits << 6 | BASE64[c];
+                if (chars % 4 == 3) {
+                    start[header++] = (byte) (bits >> 16);
+                    start[header++] = (byte) (bits >> 8);
+                    start[header++] = (byte) bits;
+                    bits = 0;
+                }
+            }
+            chars++;
+        }
+        if (chars == 0) {
+            throw invalid("Payload is empty", correlationId);
+        }
+        if (chars % 4 != 0 || padding > 2) {
+            throw invalid("Payload is not base64, " + chars + " characters is not a whole number of blocks",
+                    correlationId);
+        }
+        long bytes = chars / 4 * 3 - padding;
+        if (bytes < PDF_HEADER.length || !startsWithPdfHeader(start, header)) {
+            throw invalid("Payload is not a PDF, it does not start with %PDF-", correlationId);
+        }
+        checkSize(bytes, correlationId);
+    }
+
+    private static boolean startsWithPdfHeader(byte[] start, int length) {
+        if (length < PDF_HEADER.length) {
+            return false;
+        }
+        for (int i = 0; i < PDF_HEADER.length; i++) {
+            if (start[i] != PDF_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void checkSize(long bytes, String correlationId) {
+        if (maxPdfBytes > 0 && bytes > maxPdfBytes) {
+            throw invalid("PDF is " + bytes + " bytes, more than the limit of " + maxPdfBytes, correlationId);
+        }
+    }
+
+    private static void validateMetadata(String metadata, String correlationId) {
+        Set<String> missing = new LinkedHashSet<>(REQUIRED_METADATA);
+        try (JsonParser parser = JSON_FACTORY.createParser(metadata)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw invalid("Metadata is not a JSON object", correlationId);
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (NINO.equals(name) && value == JsonToken.START_OBJECT) {
+                    if (hasNinoBody(parser)) {
+                        missing.remove(name);
+                    }
+                } else {
+                    if (present(parser, value)) {
+                        missing.remove(name);
+                    }
+                    parser.skipChildren();
+                }
+            }
+        } catch (JsonProcessingException e) {
+            throw invalid("Metadata is not valid JSON: " + e.getOriginalMessage(), correlationId);
+        } catch (IOException e) {
+            throw invalid("Metadata could not be read: " + e.getMessage(), correlationId);
+        }
+        if (!missing.isEmpty()) {
+            throw invalid("Metadata is missing " + String.join(", ", missing), correlationId);
+        }
+    }
+
+    private static boolean hasNinoBody(JsonParser parser) throws IOException {
+        boolean found = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            found |= NINO_BODY.equals(name) && present(parser, value);
+            parser.skipChildren();
+        }
+        return found;
+    }
+
+    private static boolean present(JsonParser parser, JsonToken value) throws IOException {
+        return value == JsonToken.VALUE_NUMBER_INT || value == JsonToken.VALUE_NUMBER_FLOAT
+                || value == JsonToken.VALUE_STRING && !parser.getText().trim().isEmpty();
+    }
+
+    private static String printable(char c) {
+        return c < ' ' || c > '~' ? String.format("\\u%04x", (int) c) : String.valueOf(c);
+    }
+
+    private static InvalidRecordException invalid(String message, String correlationId) {
+        return new InvalidRecordException(message + ". (" + correlationId + ")");
+    }
+}
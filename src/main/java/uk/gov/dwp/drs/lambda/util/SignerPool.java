@@ -0,0 +1,73 @@
+package uk.gov.dwp.drs.lambda.util;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A fixed number of signers, all built up front from the same keys, each lent to one record at a time as
+ * MetadataCreator makes no promise of thread safety.
+ */
+public class SignerPool<T> {
+    private final int size;
+    private final BlockingQueue<T> free;
+
+    public SignerPool(List<T> signers) {
+        if (signers.isEmpty()) {
+            throw new IllegalArgumentException("A signer pool needs at least one signer");
+        }
+        size = signers.size();
+        free = new ArrayBlockingQueue<>(size, true, signers);
+    }
+
+    /**
+     * Waits for a free signer, which goes back in the pool when the lease is closed.
+     */
+    public Lease lease() throws InterruptedException {
+        T signer = free.poll();
+        if (signer != null) {
+            return new Lease(signer, 0);
+        }
+        long started = System.nanoTime();
+        return new Lease(free.take(), started);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getAvailable() {
+        return free.size();
+    }
+
+    public class Lease implements AutoCloseable {
+        private final T signer;
+        private final long waitStarted;
+        private final AtomicBoolean returned = new AtomicBoolean();
+
+        private Lease(T signer, long waitStarted) {
+            this.signer = signer;
+            this.waitStarted = waitStarted;
+        }
+
+        public T get() {
+            return signer;
+        }
+
+        /**
+         * System.nanoTime() when the record started waiting for a signer, or 0 if one was free straight away.
+         */
+        public long getWaitStarted() {
+            return waitStarted;
+        }
+
+        // may be called more than once, only the first gives the signer back
+        @Override
+        public void close() {
+            if (returned.compareAndSet(false, true)) {
+                free.add(signer);
+            }
+        }
+    }
+}
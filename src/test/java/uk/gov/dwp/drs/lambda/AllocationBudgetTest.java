@@ -0,0 +1,161 @@
+package uk.gov.dwp.drs.lambda;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.benchmark.BenchmarkParameters;
+import uk.gov.dwp.drs.lambda.comms.DocumentEntity;
+import uk.gov.dwp.drs.lambda.comms.MsgLogging;
+import uk.gov.dwp.drs.lambda.comms.PostToServices;
+import uk.gov.dwp.drs.lambda.metrics.EmfMetrics;
+import uk.gov.dwp.drs.lambda.metrics.Metrics;
+import uk.gov.dwp.drs.lambda.misc.Utils;
+import uk.gov.dwp.drs.lambda.util.DrsParameters;
+import uk.gov.dwp.drs.lambda.util.InboundMessage;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+/**
+ * Bytes allocated on the calling thread per record on the hot path, not counting the copies of the payload that
+ * each step has to make.  A change that pushes one of these over its budget should be looked at before the budget
+ * is raised.
+ */
+public class AllocationBudgetTest {
+    private static final int PDF_BYTES = 64 * 1024;
+    private static final int WARMUP = 2000;
+    private static final int SAMPLES = 10;
+    private static final int OPS_PER_SAMPLE = 100;
+
+    private static StubDrsServer drs;
+    private static LocalSqsServer sqs;
+    private static String record;
+    private static String document;
+    private static String payload;
+    // keeps results reachable, so the JIT cannot drop the allocation being measured
+    private static volatile Object sink;
+
+    private final String correlationId = UUID.randomUUID().toString();
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Assert.assertTrue(threads().isThreadAllocatedMemorySupported());
+        drs = StubDrsServer.http();
+        sqs = new LocalSqsServer();
+        record = Utils.makeSyntheticRecord(PDF_BYTES);
+        payload = InboundMessage.read(record).getPayload();
+        document = "<doc>" + payload + "</doc>";
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        drs.stop();
+        sqs.stop();
+    }
+
+    @Test
+    public void statusMessage() throws Exception {
+        MsgLogging msgLogging = new MsgLogging(new BenchmarkParameters()
+                .with(DrsParameters.RESPONSE_QUEUE, "drs-response")
+                .with("sqshost", sqs.getEndpoint()));
+
+        long allocated = perOp(() -> msgLogging.toJson("SUCCEEDED", correlationId, null, null));
+
+        assertWithin("status message", allocated, 768);
+    }
+
+    @Test
+    public void inboundMessage() throws Exception {
+        // the payload is sliced out of the body as a new string, at whatever a character costs on this JVM
+        int at = record.indexOf(payload);
+        long payloadCopy = perOp(() -> sink = record.substring(at, at + payload.length()));
+        long allocated = perOp(() -> sink = InboundMessage.read(record)) - payloadCopy;
+
+        assertWithin("inbound message", allocated, 3328);
+    }
+
+    @Test
+    public void documentEntity() throws Exception {
+        long allocated = perOp(() -> new DocumentEntity(document, 8192, false).writeTo(NullOutputStream.NULL_OUTPUT_STREAM));
+
+        assertWithin("document entity", allocated, 512);
+    }
+
+    @Test
+    public void drsPost() throws Exception {
+        PostToServices postToServices = new PostToServices(new BenchmarkParameters()
+                .with(DrsParameters.DRS_URL, drs.getUrl()));
+        drs.setResponseBody("<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"><soapenv:Body>"
+                + "<uploadResponse><documentId>{0F1E2D3C-0000-4000-8000-000000000001}</documentId></uploadResponse>"
+                + "</soapenv:Body></soapenv:Envelope>");
+
+        long allocated = perOp(() -> postToServices.postToDRS(document, correlationId));
+
+        assertWithin("DRS post", allocated, 12288);
+    }
+
+    @Test
+    public void metricsDocument() throws Exception {
+        int records = 10;
+        Metrics.Batch batch = new EmfMetrics(EmfMetrics.DEFAULT_NAMESPACE).startBatch();
+        for (int i = 0; i < records; i++) {
+            for (Metrics.Stage stage : Metrics.Stage.values()) {
+                batch.stage(stage, System.nanoTime() - 1000000L * (i + 1));
+            }
+            batch.payload(PDF_BYTES);
+        }
+        batch.count("BudgetWaits", 1);
+        batch.percent("SignerUtilisation", 50);
+        LambdaLogger logger = new LambdaLogger() {
+            @Override
+            public void log(String message) {
+                sink = message;
+            }
+
+            @Override
+            public void log(byte[] message) {
+                sink = message;
+            }
+        };
+
+        // written once per invocation, shared out over its records
+        long allocated = perOp(() -> batch.finish(records, 0, 100000000L, logger)) / records;
+
+        assertWithin("metrics document", allocated, 928);
+    }
+
+    private interface Op {
+        void run() throws Exception;
+    }
+
+    // The least of several samples, as a sample can pick up one-off allocation such as a connection being made.
+    private static long perOp(Op op) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            op.run();
+        }
+        long least = Long.MAX_VALUE;
+        for (int sample = 0; sample < SAMPLES; sample++) {
+            long before = allocated();
+            for (int i = 0; i < OPS_PER_SAMPLE; i++) {
+                op.run();
+            }
+            least = Math.min(least, (allocated() - before) / OPS_PER_SAMPLE);
+        }
+        return least;
+    }
+
+    private static long allocated() {
+        return threads().getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        return (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    private static void assertWithin(String what, long allocated, long budget) {
+        Assert.assertTrue(what + " allocated " + allocated + " bytes per record, budget " + budget, allocated <= budget);
+    }
+}
@@ -1,9 +1,13 @@
 package uk.gov.dwp.drs.lambda;
 
 import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
 import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import uk.gov.dwp.drs.lambda.comms.CircuitBreaker;
+import uk.gov.dwp.drs.lambda.comms.DrsResult;
 import uk.gov.dwp.drs.lambda.comms.MsgLogging;
 import uk.gov.dwp.drs.lambda.comms.PostToServices;
 import org.apache.commons.io.FileUtils;
@@ -12,23 +16,43 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.AdditionalMatchers;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import uk.gov.dwp.components.drs.creator.api.MetadataCreator;
 import uk.gov.dwp.drs.lambda.exceptions.BLProcessException;
+import uk.gov.dwp.drs.lambda.exceptions.DrsLimitedException;
+import uk.gov.dwp.drs.lambda.exceptions.DrsUnavailableException;
+import uk.gov.dwp.drs.lambda.idempotency.MemoryIdempotencyStore;
+import uk.gov.dwp.drs.lambda.idempotency.TieredIdempotencyStore;
+import uk.gov.dwp.drs.lambda.metrics.NoOpMetrics;
 import uk.gov.dwp.drs.lambda.misc.Utils;
 import uk.gov.dwp.drs.lambda.util.DrsParameters;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.matches;
+import static org.mockito.Mockito.never;
 import static org.mockito.internal.verification.VerificationModeFactory.times;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.powermock.api.mockito.PowerMockito.when;
@@ -47,13 +71,15 @@ public class BLProcessTest {
     private PostToServices postToServices;
 
 
-    private final static String pdfDocument = "XXXX";
+    private final static String pdfDocument = "JVBERi0xLjQK";
     private final static String metadataDocument = "YYYY";
+    private final static DrsResult SENT = new DrsResult(200, 1, "DOC-00000001", null, null);
+    private final static DrsResult NOT_SENT = new DrsResult(500, 1);
     private final static String test = "{\"metadata\":{\"businessUnitID\":36,\"classification\":0,\"claimRef\":\"55091b49\"," +
             "\"documentType\":9877,\"documentSource\":4,\"dateOfBirth\":20000202,\"surname\":\"Pethapuria\"," +
             "\"forename\":\"\",\"postCode\":\"TE155ST\",\"officePostcode\":\"AB112XD\"," +
             "\"nino\":{\"ninoBody\":\"AB123456\",\"ninoSuffix\":\"D\"},\"benefitType\":4}," +
-            "\"payload\": \"XXXX\" }";
+            "\"payload\": \"" + pdfDocument + "\" }";
 
 
     @Before
@@ -74,13 +100,14 @@ public class BLProcessTest {
         process = new DrsProcess();
 
         context = mock(Context.class);
+        when(context.getRemainingTimeInMillis()).thenReturn(900000);
         when(context.getLogger()).thenReturn(Utils.makeLambdaLoggerAdaptor());
 
     }
 
     @Test
     public void testEntrypoint() throws Exception {
-        when(postToServices.postToDRS(anyString(),anyString())).thenReturn(true);
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(SENT);
 
         File file = File.createTempFile("file", ".json");
         FileUtils.writeStringToFile(file, test);
@@ -90,13 +117,13 @@ public class BLProcessTest {
         JsonNode jsonNode = new ObjectMapper().readTree(test);
         String metadata = jsonNode.get("metadata").toString();
 
-        Mockito.verify(metadataCreator, times(1)).getDocument(eq(metadata), eq("XXXX"));
+        Mockito.verify(metadataCreator, times(1)).getDocument(eq(metadata), eq(pdfDocument));
         file.delete();
     }
 
     @Test
     public void testEntrypointThrowsException() throws Exception {
-        when(postToServices.postToDRS(anyString(),anyString())).thenThrow(new IOException());
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenThrow(new IOException());
 
         File file = File.createTempFile("file", ".json");
         try {
@@ -112,7 +139,7 @@ public class BLProcessTest {
     @Test
     public void runLambdaHappyPath() throws Exception {
         SQSEvent sqsEvent = Utils.makeSQSEvent(test);
-        when(postToServices.postToDRS(anyString(),anyString())).thenReturn(true);
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(SENT);
 
         process.handleRequest(sqsEvent, context);
 
@@ -122,13 +149,50 @@ public class BLProcessTest {
 
         Mockito.verify(metadataCreator, times(1)).getDocument(eq(metadata), eq(pdfDocument));
         Mockito.verify(msgLogging,times(1)).logEvent(eq("SUCCEEDED"), anyString(), anyString(), anyString());
-        Mockito.verify(postToServices,times(1)).postToDRS(anyString(), anyString());
+        Mockito.verify(msgLogging, times(1)).flush();
+        Mockito.verify(postToServices,times(1)).postToDRS(anyString(), anyString(), anyLong());
+    }
+
+    @Test
+    public void runLambdaSendsDocumentIdWithStatus() throws Exception {
+        SQSEvent sqsEvent = Utils.makeSQSEvent(Arrays.asList(test, test));
+        String rejectedId = sqsEvent.getRecords().get(1).getMessageAttributes().get(Utils.JMS_CORRELATION_ID).getStringValue();
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(SENT);
+        when(postToServices.postToDRS(anyString(), eq(rejectedId), anyLong()))
+                .thenReturn(new DrsResult(500, 1, null, "soap:Client", "Invalid benefitType"));
+
+        try {
+            process.handleRequest(sqsEvent, context);
+            fail("Should throw exception.");
+        } catch (RuntimeException e) {
+            LOGGER.info("Caught exception");
+        }
+
+        Mockito.verify(msgLogging).logEvent(eq("SUCCEEDED"), anyString(), eq((String) null), eq("DOC-00000001"));
+        Mockito.verify(msgLogging).logEvent(eq("FAILED"), eq(rejectedId), eq("Application failed to send to DRS, code 500, "
+                + "soap:Client: Invalid benefitType. (" + rejectedId + ")"), eq((String) null));
+    }
+
+    @Test
+    public void postsWithinRemainingTime() throws Exception {
+        when(context.getRemainingTimeInMillis()).thenReturn(30000);
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(SENT);
+
+        long before = System.currentTimeMillis();
+        process.handleRequest(Utils.makeSQSEvent(test), context);
+        long after = System.currentTimeMillis();
+
+        // some time is held back for the status messages
+        ArgumentCaptor<Long> deadline = ArgumentCaptor.forClass(Long.class);
+        Mockito.verify(postToServices).postToDRS(anyString(), anyString(), deadline.capture());
+        assertTrue(deadline.getValue() >= before + 25000);
+        assertTrue(deadline.getValue() < after + 30000);
     }
 
     @Test
     public void runLambdaPostFails() throws Exception {
         SQSEvent sqsEvent = Utils.makeSQSEvent(test);
-        when(postToServices.postToDRS(anyString(),anyString())).thenReturn(false);
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(NOT_SENT);
 
         try {
             process.handleRequest(sqsEvent, context);
@@ -142,13 +206,13 @@ public class BLProcessTest {
 
         Mockito.verify(metadataCreator, times(1)).getDocument(eq(metadata), eq(pdfDocument));
         Mockito.verify(msgLogging,times(1)).logEvent(eq("FAILED"), anyString(), anyString(), anyString());
-        Mockito.verify(postToServices,times(1)).postToDRS(anyString(), anyString());
+        Mockito.verify(postToServices,times(1)).postToDRS(anyString(), anyString(), anyLong());
     }
 
     @Test
     public void runLambdaPostFailsThrowsException() throws Exception {
         SQSEvent sqsEvent = Utils.makeSQSEvent(test);
-        when(postToServices.postToDRS(anyString(),anyString())).thenThrow(new IOException());
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenThrow(new IOException());
 
         try {
             process.handleRequest(sqsEvent, context);
@@ -162,7 +226,7 @@ public class BLProcessTest {
 
         Mockito.verify(metadataCreator, times(1)).getDocument(eq(metadata), eq(pdfDocument));
         Mockito.verify(msgLogging,times(1)).logEvent(eq("FAILED"), anyString(), anyString(), anyString());
-        Mockito.verify(postToServices,times(1)).postToDRS(anyString(), anyString());
+        Mockito.verify(postToServices,times(1)).postToDRS(anyString(), anyString(), anyLong());
     }
 
     @Test
@@ -197,7 +261,7 @@ public class BLProcessTest {
     public void runLambdaSameCorrelationId() throws Exception {
         SQSEvent sqsEvent = Utils.makeSQSEvent(test);
         String correlationId = sqsEvent.getRecords().get(0).getMessageAttributes().get(Utils.JMS_CORRELATION_ID).getStringValue();
-        when(postToServices.postToDRS(anyString(),anyString())).thenReturn(true);
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(SENT);
 
         process.handleRequest(sqsEvent, context);
         Mockito.verify(msgLogging,times(1)).logEvent(eq("SUCCEEDED"),
@@ -210,7 +274,7 @@ public class BLProcessTest {
         String correlationId = sqsEvent.getRecords().get(0).getMessageAttributes().get(Utils.JMS_CORRELATION_ID).getStringValue();
         sqsEvent.getRecords().get(0).setMessageAttributes(Collections.emptyMap());
 
-        when(postToServices.postToDRS(anyString(),anyString())).thenReturn(true);
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(SENT);
 
         process.handleRequest(sqsEvent, context);
         Mockito.verify(msgLogging,times(1)).logEvent(eq("SUCCEEDED"),
@@ -219,4 +283,474 @@ public class BLProcessTest {
                 matches("[0-9a-fA-F]{8}\\-[0-9a-fA-F]{4}\\-[0-9a-fA-F]{4}\\-[0-9a-fA-F]{4}\\-[0-9a-fA-F]{12}"),
                 anyString(), anyString());
     }
+
+    @Test
+    public void runLambdaProcessesRecordsConcurrently() throws Exception {
+        when(parameters.getParameter(DrsParameters.WORKER_THREADS)).thenReturn("4");
+        DrsProcess process = new DrsProcess();
+        SQSEvent sqsEvent = Utils.makeSQSEvent(Arrays.asList(test, test, test, test));
+
+        // Each post only completes once all four are in flight together.
+        CountDownLatch inFlight = new CountDownLatch(4);
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenAnswer(invocation -> {
+            inFlight.countDown();
+            return inFlight.await(5, TimeUnit.SECONDS) ? SENT : NOT_SENT;
+        });
+
+        process.handleRequest(sqsEvent, context);
+
+        Mockito.verify(postToServices, times(4)).postToDRS(anyString(), anyString(), anyLong());
+        Mockito.verify(msgLogging, times(4)).logEvent(eq("SUCCEEDED"), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void runLambdaRunsLargeRecordsAlone() throws Exception {
+        when(parameters.getParameter(DrsParameters.WORKER_THREADS)).thenReturn("4");
+        when(parameters.getParameter(DrsParameters.MEMORY_BUDGET)).thenReturn("1");
+        DrsProcess process = new DrsProcess();
+        String large = test.replace(pdfDocument, pdfDocument + String.join("", Collections.nCopies(50000, "AAAA")));
+        SQSEvent sqsEvent = Utils.makeSQSEvent(Arrays.asList(large, large, large));
+
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenAnswer(invocation -> {
+            peak.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            Thread.sleep(50);
+            inFlight.decrementAndGet();
+            return SENT;
+        });
+        List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        when(context.getLogger()).thenReturn(new LambdaLogger() {
+            @Override
+            public void log(String message) {
+                lines.add(message);
+            }
+
+            @Override
+            public void log(byte[] message) {
+                // not used
+            }
+        });
+
+        process.handleRequest(sqsEvent, context);
+
+        assertEquals(1, peak.get());
+        Mockito.verify(msgLogging, times(3)).logEvent(eq("SUCCEEDED"), anyString(), anyString(), anyString());
+        JsonNode metrics = new ObjectMapper().readTree(lines.stream().filter(l -> l.startsWith("{\"_aws\"")).findFirst().get());
+        assertEquals(2, metrics.get("BudgetWaits").asInt());
+        assertEquals(2, metrics.get("BudgetWaitTime").size());
+    }
+
+    @Test
+    public void runLambdaIsolatesRecordFailures() throws Exception {
+        when(parameters.getParameter(DrsParameters.WORKER_THREADS)).thenReturn("3");
+        DrsProcess process = new DrsProcess();
+        SQSEvent sqsEvent = Utils.makeSQSEvent(Arrays.asList(test, test, test));
+        String failingId = sqsEvent.getRecords().get(1).getMessageAttributes().get(Utils.JMS_CORRELATION_ID).getStringValue();
+
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(SENT);
+        when(postToServices.postToDRS(anyString(), eq(failingId), anyLong())).thenThrow(new IOException("timeout"));
+
+        try {
+            process.handleRequest(sqsEvent, context);
+            fail("Should throw exception.");
+        } catch (BLProcessException e) {
+            LOGGER.info("Caught exception");
+        }
+
+        Mockito.verify(postToServices, times(3)).postToDRS(anyString(), anyString(), anyLong());
+        Mockito.verify(msgLogging, times(2)).logEvent(eq("SUCCEEDED"), anyString(), anyString(), anyString());
+        Mockito.verify(msgLogging, times(1)).logEvent(eq("FAILED"), eq(failingId), anyString(), anyString());
+        Mockito.verify(msgLogging, times(1)).flush();
+    }
+
+    @Test
+    public void runLambdaPicksUpRotatedSigningKeys() throws Exception {
+        AtomicBoolean signed = new AtomicBoolean();
+        MetadataCreator rotated = mock(MetadataCreator.class);
+        when(rotated.getDocument(anyString(), anyString())).thenAnswer(invocation -> {
+            signed.set(true);
+            return "ZZZZ";
+        });
+        whenNew(MetadataCreator.class).withAnyArguments().thenReturn(rotated);
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(SENT);
+
+        when(parameters.getParameter(DrsParameters.SIGNKEY_PRV)).thenReturn("rotated key");
+        for (int i = 0; i < 100 && !signed.get(); i++) {
+            // a new message each time, as a redelivery of one already sent would not be signed again
+            process.handleRequest(Utils.makeSQSEvent(test), context);
+            Thread.sleep(20);
+        }
+
+        assertTrue(signed.get());
+        Mockito.verify(postToServices, times(1)).postToDRS(eq("ZZZZ"), anyString(), anyLong());
+    }
+
+    @Test
+    public void runLambdaEmitsStageMetrics() throws Exception {
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(SENT);
+        when(postToServices.drainCircuitTransitions()).thenReturn(Collections.singletonMap(CircuitBreaker.State.OPEN, 1));
+        when(postToServices.getConcurrencyLimit()).thenReturn(6);
+        when(postToServices.drainLimitRejections()).thenReturn(2);
+        List<String> lines = Collections.synchronizedList(new ArrayList<>());
+        when(context.getLogger()).thenReturn(new LambdaLogger() {
+            @Override
+            public void log(String message) {
+                lines.add(message);
+            }
+
+            @Override
+            public void log(byte[] message) {
+                // not used
+            }
+        });
+
+        process.handleRequest(Utils.makeSQSEvent(Arrays.asList(test, test)), context);
+
+        String emf = null;
+        for (String line : lines) {
+            if (line.startsWith("{\"_aws\"")) {
+                assertNull(emf);
+                emf = line;
+            }
+        }
+        JsonNode metrics = new ObjectMapper().readTree(emf);
+        assertEquals("DRSLambda", metrics.get("_aws").get("CloudWatchMetrics").get(0).get("Namespace").asText());
+        for (String stage : Arrays.asList("ParseTime", "SignTime", "PostTime", "StatusTime", "PayloadSize")) {
+            assertEquals(stage, 2, metrics.get(stage).size());
+        }
+        assertEquals(12, metrics.get("PayloadSize").get(0).asInt());
+        assertEquals(1, metrics.get("StatusFlushTime").size());
+        assertEquals(2, metrics.get("Records").asInt());
+        assertEquals(0, metrics.get("FailedRecords").asInt());
+        assertEquals(1, metrics.get("CircuitOpened").asInt());
+        assertEquals(6, metrics.get("DrsConcurrencyLimit").asInt());
+        assertEquals(2, metrics.get("DrsLimitRejections").asInt());
+        assertTrue(metrics.get("SignerUtilisation").isNumber());
+    }
+
+    @Test
+    public void beforeCheckpointPrimesWithoutSending() throws Exception {
+        when(parameters.getParameter(DrsParameters.PRIME_ITERATIONS)).thenReturn("3");
+        DrsProcess primed = new DrsProcess();
+
+        primed.beforeCheckpoint(null);
+
+        Mockito.verify(metadataCreator, times(3)).getDocument(anyString(), anyString());
+        Mockito.verify(postToServices, times(3)).prime(metadataDocument);
+        Mockito.verify(postToServices, times(1)).closeConnections();
+        Mockito.verify(msgLogging, times(1)).flush();
+        Mockito.verify(postToServices, never()).postToDRS(anyString(), anyString(), anyLong());
+        Mockito.verify(msgLogging, never()).logEvent(anyString(), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void beforeCheckpointStopsPrimingOnFailure() throws Exception {
+        when(metadataCreator.getDocument(anyString(), anyString())).thenThrow(new IllegalArgumentException("bad key"));
+
+        process.beforeCheckpoint(null);
+
+        Mockito.verify(metadataCreator, times(1)).getDocument(anyString(), anyString());
+        Mockito.verify(postToServices, times(1)).closeConnections();
+    }
+
+    @Test
+    public void afterRestoreRebuildsClients() throws Exception {
+        process.afterRestore(null);
+
+        Mockito.verify(postToServices, times(1)).restore();
+        Mockito.verify(msgLogging, times(1)).restore();
+    }
+
+    @Test
+    public void runLambdaSerialisesSigning() throws Exception {
+        when(parameters.getParameter(DrsParameters.WORKER_THREADS)).thenReturn("4");
+        when(parameters.getParameter(DrsParameters.SIGNER_POOL_SIZE)).thenReturn("1");
+        DrsProcess process = new DrsProcess();
+        SQSEvent sqsEvent = Utils.makeSQSEvent(Arrays.asList(test, test, test, test));
+
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        when(metadataCreator.getDocument(anyString(), anyString())).thenAnswer(invocation -> {
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            Thread.sleep(20);
+            active.decrementAndGet();
+            return metadataDocument;
+        });
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(SENT);
+
+        process.handleRequest(sqsEvent, context);
+
+        assertEquals(1, maxActive.get());
+        Mockito.verify(metadataCreator, times(4)).getDocument(anyString(), anyString());
+    }
+
+    @Test
+    public void runLambdaSignsInParallelWithSignerPool() throws Exception {
+        when(parameters.getParameter(DrsParameters.WORKER_THREADS)).thenReturn("4");
+        when(parameters.getParameter(DrsParameters.SIGNER_POOL_SIZE)).thenReturn("4");
+        DrsProcess process = new DrsProcess();
+        SQSEvent sqsEvent = Utils.makeSQSEvent(Arrays.asList(test, test, test, test));
+
+        // Each signing only completes once all four records are being signed together.
+        CountDownLatch signing = new CountDownLatch(4);
+        when(metadataCreator.getDocument(anyString(), anyString())).thenAnswer(invocation -> {
+            signing.countDown();
+            assertTrue(signing.await(5, TimeUnit.SECONDS));
+            return metadataDocument;
+        });
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(SENT);
+
+        SQSBatchResponse response = process.handleRequest(sqsEvent, context);
+
+        assertTrue(response.getBatchItemFailures().isEmpty());
+        Mockito.verify(msgLogging, times(4)).logEvent(eq("SUCCEEDED"), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void runLambdaReportsOnlyFailedRecords() throws Exception {
+        when(parameters.getParameter(DrsParameters.PARTIAL_BATCH_FAILURES)).thenReturn("true");
+        DrsProcess process = new DrsProcess();
+        SQSEvent sqsEvent = Utils.makeSQSEvent(Arrays.asList(test, test, test));
+        SQSEvent.SQSMessage failing = sqsEvent.getRecords().get(1);
+        String failingId = failing.getMessageAttributes().get(Utils.JMS_CORRELATION_ID).getStringValue();
+
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(SENT);
+        when(postToServices.postToDRS(anyString(), eq(failingId), anyLong())).thenReturn(NOT_SENT);
+
+        SQSBatchResponse response = process.handleRequest(sqsEvent, context);
+
+        assertEquals(1, response.getBatchItemFailures().size());
+        assertEquals(failing.getMessageId(), response.getBatchItemFailures().get(0).getItemIdentifier());
+        Mockito.verify(postToServices, times(3)).postToDRS(anyString(), anyString(), anyLong());
+        Mockito.verify(msgLogging, times(2)).logEvent(eq("SUCCEEDED"), anyString(), anyString(), anyString());
+        Mockito.verify(msgLogging, times(1)).logEvent(eq("FAILED"), eq(failingId), anyString(), anyString());
+    }
+
+    @Test
+    public void runLambdaReportsNoFailuresOnSuccess() throws Exception {
+        when(parameters.getParameter(DrsParameters.PARTIAL_BATCH_FAILURES)).thenReturn("true");
+        DrsProcess process = new DrsProcess();
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(SENT);
+
+        SQSBatchResponse response = process.handleRequest(Utils.makeSQSEvent(Arrays.asList(test, test)), context);
+
+        assertTrue(response.getBatchItemFailures().isEmpty());
+    }
+
+    @Test
+    public void runLambdaChainsAsyncPosts() throws Exception {
+        when(parameters.getParameter(DrsParameters.PARTIAL_BATCH_FAILURES)).thenReturn("true");
+        when(parameters.getParameter(DrsParameters.DRS_ASYNC)).thenReturn("true");
+        DrsProcess process = new DrsProcess();
+        SQSEvent sqsEvent = Utils.makeSQSEvent(Arrays.asList(test, test, test));
+        SQSEvent.SQSMessage failing = sqsEvent.getRecords().get(1);
+        String failingId = failing.getMessageAttributes().get(Utils.JMS_CORRELATION_ID).getStringValue();
+
+        CompletableFuture<DrsResult> timedOut = new CompletableFuture<>();
+        timedOut.completeExceptionally(new SocketTimeoutException("Read timed out"));
+        when(postToServices.postToDRSAsync(anyString(), anyString(), anyLong()))
+                .thenReturn(CompletableFuture.completedFuture(new DrsResult(200, 1)));
+        when(postToServices.postToDRSAsync(anyString(), eq(failingId), anyLong())).thenReturn(timedOut);
+
+        SQSBatchResponse response = process.handleRequest(sqsEvent, context);
+
+        assertEquals(1, response.getBatchItemFailures().size());
+        assertEquals(failing.getMessageId(), response.getBatchItemFailures().get(0).getItemIdentifier());
+        Mockito.verify(postToServices, never()).postToDRS(anyString(), anyString(), anyLong());
+        Mockito.verify(msgLogging, times(2)).logEvent(eq("SUCCEEDED"), anyString(), anyString(), anyString());
+        Mockito.verify(msgLogging, times(1)).logEvent(eq("FAILED"), eq(failingId), eq("Read timed out"), anyString());
+    }
+
+    @Test
+    public void runLambdaAsyncPostsDoNotHoldWorkers() throws Exception {
+        when(parameters.getParameter(DrsParameters.DRS_ASYNC)).thenReturn("true");
+        DrsProcess process = new DrsProcess();
+        List<CompletableFuture<DrsResult>> posts = Collections.synchronizedList(new ArrayList<>());
+        when(postToServices.postToDRSAsync(anyString(), anyString(), anyLong())).thenAnswer(invocation -> {
+            CompletableFuture<DrsResult> post = new CompletableFuture<>();
+            posts.add(post);
+            return post;
+        });
+        // only answers once every record is posted, which one blocking worker could never do
+        Thread drs = new Thread(() -> {
+            while (posts.size() < 3) {
+                Thread.yield();
+            }
+            posts.forEach(post -> post.complete(new DrsResult(200, 1)));
+        });
+        drs.start();
+
+        SQSBatchResponse response = process.handleRequest(Utils.makeSQSEvent(Arrays.asList(test, test, test)), context);
+
+        assertTrue(response.getBatchItemFailures().isEmpty());
+        Mockito.verify(msgLogging, times(3)).logEvent(eq("SUCCEEDED"), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void runLambdaFailsFastWhileDrsUnavailable() throws Exception {
+        when(parameters.getParameter(DrsParameters.PARTIAL_BATCH_FAILURES)).thenReturn("true");
+        DrsProcess process = new DrsProcess();
+        Mockito.doThrow(new DrsUnavailableException("DRS circuit breaker is open"))
+                .when(postToServices).checkAvailable(anyString());
+
+        SQSBatchResponse response = process.handleRequest(Utils.makeSQSEvent(Arrays.asList(test, test)), context);
+
+        assertEquals(2, response.getBatchItemFailures().size());
+        Mockito.verify(metadataCreator, never()).getDocument(anyString(), anyString());
+        Mockito.verify(postToServices, never()).postToDRS(anyString(), anyString(), anyLong());
+        Mockito.verify(msgLogging, times(2)).logEvent(eq("FAILED"), anyString(), eq("DRS circuit breaker is open"), anyString());
+    }
+
+    @Test
+    public void runLambdaFailsInvalidRecordsBeforeSigning() throws Exception {
+        when(parameters.getParameter(DrsParameters.PARTIAL_BATCH_FAILURES)).thenReturn("true");
+        DrsProcess process = new DrsProcess();
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(SENT);
+        SQSEvent sqsEvent = Utils.makeSQSEvent(Arrays.asList(test, test.replace(pdfDocument, "XXXX"),
+                test.replace("\"claimRef\":\"55091b49\",", "")));
+        String notPdf = sqsEvent.getRecords().get(1).getMessageAttributes().get(Utils.JMS_CORRELATION_ID).getStringValue();
+        String noClaimRef = sqsEvent.getRecords().get(2).getMessageAttributes().get(Utils.JMS_CORRELATION_ID).getStringValue();
+
+        SQSBatchResponse response = process.handleRequest(sqsEvent, context);
+
+        assertEquals(2, response.getBatchItemFailures().size());
+        Mockito.verify(metadataCreator, times(1)).getDocument(anyString(), anyString());
+        Mockito.verify(postToServices, times(1)).postToDRS(anyString(), anyString(), anyLong());
+        Mockito.verify(msgLogging).logEvent(eq("FAILED"), eq(notPdf),
+                eq("Payload is not a PDF, it does not start with %PDF-. (" + notPdf + ")"), anyString());
+        Mockito.verify(msgLogging).logEvent(eq("FAILED"), eq(noClaimRef),
+                eq("Metadata is missing claimRef. (" + noClaimRef + ")"), anyString());
+    }
+
+    @Test
+    public void runLambdaSignsUncheckedRecordsWhenValidationIsOff() throws Exception {
+        when(parameters.getParameter(DrsParameters.VALIDATE_RECORDS)).thenReturn("false");
+        DrsProcess process = new DrsProcess();
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(SENT);
+
+        process.handleRequest(Utils.makeSQSEvent(test.replace(pdfDocument, "XXXX")), context);
+
+        Mockito.verify(metadataCreator, times(1)).getDocument(anyString(), eq("XXXX"));
+        Mockito.verify(msgLogging, times(1)).logEvent(eq("SUCCEEDED"), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void runLambdaDoesNotStartRecordsPastDeadline() throws Exception {
+        when(parameters.getParameter(DrsParameters.PARTIAL_BATCH_FAILURES)).thenReturn("true");
+        DrsProcess process = new DrsProcess();
+        when(context.getRemainingTimeInMillis()).thenReturn(1500);
+
+        SQSEvent sqsEvent = Utils.makeSQSEvent(Arrays.asList(test, test, test));
+        SQSBatchResponse response = process.handleRequest(sqsEvent, context);
+
+        assertEquals(3, response.getBatchItemFailures().size());
+        Mockito.verify(postToServices, never()).postToDRS(anyString(), anyString(), anyLong());
+        Mockito.verify(msgLogging, never()).logEvent(anyString(), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void runLambdaStartsRecordsThatFitLearntTimes() throws Exception {
+        when(parameters.getParameter(DrsParameters.PARTIAL_BATCH_FAILURES)).thenReturn("true");
+        DrsProcess process = new DrsProcess();
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenAnswer(invocation -> {
+            Thread.sleep(500);
+            return SENT;
+        });
+        process.handleRequest(Utils.makeSQSEvent(Arrays.asList(test, test)), context);
+
+        // about 750ms with the margin per record, one after another, in 1500ms less the status reserve
+        when(context.getRemainingTimeInMillis()).thenReturn(2500);
+        SQSEvent sqsEvent = Utils.makeSQSEvent(Arrays.asList(test, test, test, test));
+        SQSBatchResponse response = process.handleRequest(sqsEvent, context);
+
+        assertEquals(2, response.getBatchItemFailures().size());
+        assertEquals(sqsEvent.getRecords().get(2).getMessageId(), response.getBatchItemFailures().get(0).getItemIdentifier());
+        Mockito.verify(postToServices, times(4)).postToDRS(anyString(), anyString(), anyLong());
+        Mockito.verify(msgLogging, never()).logEvent(eq("FAILED"), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void runLambdaOnlyLearnsFromRecordsThatReachedDrs() throws Exception {
+        when(parameters.getParameter(DrsParameters.PARTIAL_BATCH_FAILURES)).thenReturn("true");
+        DrsProcess process = new DrsProcess();
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenAnswer(invocation -> {
+            Thread.sleep(500);
+            return SENT;
+        });
+        process.handleRequest(Utils.makeSQSEvent(Arrays.asList(test, test)), context);
+
+        // turned away without reaching DRS, which would drag the learnt time down to nothing
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong()))
+                .thenThrow(new DrsLimitedException("DRS concurrency limit reached"));
+        process.handleRequest(Utils.makeSQSEvent(Collections.nCopies(10, test)), context);
+
+        // 600ms after the status reserve, less than 500ms with the margin
+        when(context.getRemainingTimeInMillis()).thenReturn(1600);
+        SQSBatchResponse response = process.handleRequest(Utils.makeSQSEvent(test), context);
+
+        assertEquals(1, response.getBatchItemFailures().size());
+        Mockito.verify(postToServices, times(12)).postToDRS(anyString(), anyString(), anyLong());
+    }
+
+    @Test
+    public void runLambdaFailsWhenRecordsNotStartedWithoutPartialFailures() throws Exception {
+        when(context.getRemainingTimeInMillis()).thenReturn(1500);
+        try {
+            process.handleRequest(Utils.makeSQSEvent(test), context);
+            fail("Should throw exception.");
+        } catch (BLProcessException e) {
+            assertTrue(e.getMessage().contains("not started"));
+        }
+        Mockito.verify(postToServices, never()).postToDRS(anyString(), anyString(), anyLong());
+    }
+
+    @Test
+    public void runLambdaDoesNotSendRedeliveredRecordsAgain() throws Exception {
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(SENT);
+        SQSEvent sqsEvent = Utils.makeSQSEvent(test);
+        String correlationId = sqsEvent.getRecords().get(0).getMessageAttributes().get(Utils.JMS_CORRELATION_ID).getStringValue();
+
+        process.handleRequest(sqsEvent, context);
+        process.handleRequest(sqsEvent, context);
+
+        Mockito.verify(metadataCreator, times(1)).getDocument(anyString(), anyString());
+        Mockito.verify(postToServices, times(1)).postToDRS(anyString(), anyString(), anyLong());
+        // the redelivery gets the same status, with the identifier DRS gave the first time
+        Mockito.verify(msgLogging, times(2)).logEvent(eq("SUCCEEDED"), eq(correlationId), anyString(), eq("DOC-00000001"));
+    }
+
+    @Test
+    public void runLambdaSendsAgainAfterFailure() throws Exception {
+        when(parameters.getParameter(DrsParameters.PARTIAL_BATCH_FAILURES)).thenReturn("true");
+        DrsProcess process = new DrsProcess();
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(NOT_SENT, SENT);
+        SQSEvent sqsEvent = Utils.makeSQSEvent(test);
+
+        assertEquals(1, process.handleRequest(sqsEvent, context).getBatchItemFailures().size());
+        assertTrue(process.handleRequest(sqsEvent, context).getBatchItemFailures().isEmpty());
+
+        Mockito.verify(postToServices, times(2)).postToDRS(anyString(), anyString(), anyLong());
+    }
+
+    @Test
+    public void runLambdaSharesSentRecordsThroughRemoteStore() throws Exception {
+        when(postToServices.postToDRS(anyString(), anyString(), anyLong())).thenReturn(SENT);
+        IdempotencyStoreTest.LocalRemoteStore remote = new IdempotencyStoreTest.LocalRemoteStore();
+        DrsProcess first = new DrsProcess(parameters, new NoOpMetrics(),
+                new TieredIdempotencyStore(new MemoryIdempotencyStore(10, 60000), remote));
+        DrsProcess second = new DrsProcess(parameters, new NoOpMetrics(),
+                new TieredIdempotencyStore(new MemoryIdempotencyStore(10, 60000), remote));
+        SQSEvent sqsEvent = Utils.makeSQSEvent(test);
+
+        first.handleRequest(sqsEvent, context);
+        second.handleRequest(sqsEvent, context);
+        Mockito.verify(postToServices, times(1)).postToDRS(anyString(), anyString(), anyLong());
+
+        // an unreachable store means sending again rather than failing
+        remote.down = true;
+        new DrsProcess(parameters, new NoOpMetrics(), remote).handleRequest(sqsEvent, context);
+        Mockito.verify(postToServices, times(2)).postToDRS(anyString(), anyString(), anyLong());
+        Mockito.verify(msgLogging, times(3)).logEvent(eq("SUCCEEDED"), anyString(), anyString(), eq("DOC-00000001"));
+    }
 }
@@ -0,0 +1,127 @@
+package uk.gov.dwp.drs.lambda;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.comms.CircuitBreaker;
+
+import java.util.Map;
+
+public class CircuitBreakerTest {
+    private final CircuitBreaker breaker = new CircuitBreaker("test", 10, 50, 80, 1000, 200);
+
+    private void calls(int count, boolean failed, long duration) {
+        for (int i = 0; i < count; i++) {
+            long ticket = breaker.tryAcquire();
+            Assert.assertNotEquals(CircuitBreaker.REFUSED, ticket);
+            breaker.record(ticket, failed, duration);
+        }
+    }
+
+    private void open() throws InterruptedException {
+        calls(10, true, 10);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void staysClosedBelowMinimumCalls() {
+        calls(9, true, 10);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        Assert.assertFalse(breaker.isOpen());
+    }
+
+    @Test
+    public void opensOnFailureRate() {
+        calls(5, false, 10);
+        calls(4, true, 10);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        calls(1, true, 10);
+
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertTrue(breaker.isOpen());
+        Assert.assertEquals(CircuitBreaker.REFUSED, breaker.tryAcquire());
+    }
+
+    @Test
+    public void oldCallsLeaveTheWindow() {
+        calls(4, true, 10);
+        calls(20, false, 10);
+        calls(4, true, 10);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void opensOnSlowCallRate() {
+        calls(2, false, 10);
+        calls(8, false, 1000);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void closesAfterGoodTrialCalls() throws Exception {
+        open();
+        Thread.sleep(250);
+        Assert.assertFalse(breaker.isOpen());
+
+        long[] tickets = { breaker.tryAcquire(), breaker.tryAcquire(), breaker.tryAcquire() };
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // only three trial calls at a time
+        Assert.assertEquals(CircuitBreaker.REFUSED, breaker.tryAcquire());
+        Assert.assertTrue(breaker.isOpen());
+        for (long ticket : tickets) {
+            breaker.record(ticket, false, 10);
+        }
+
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        calls(9, true, 10);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void reopensAfterFailedTrialCalls() throws Exception {
+        open();
+        Thread.sleep(250);
+        calls(1, false, 10);
+        calls(2, true, 10);
+
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertEquals(CircuitBreaker.REFUSED, breaker.tryAcquire());
+    }
+
+    @Test
+    public void ignoresCallsFromAnEarlierState() throws Exception {
+        long stale = breaker.tryAcquire();
+        open();
+        Thread.sleep(250);
+        long trial = breaker.tryAcquire();
+        breaker.record(stale, true, 10);
+        breaker.record(stale, true, 10);
+        breaker.record(stale, true, 10);
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.record(trial, false, 10);
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    @Test
+    public void countsTransitions() throws Exception {
+        open();
+        Thread.sleep(250);
+        calls(3, false, 10);
+
+        Map<CircuitBreaker.State, Integer> transitions = breaker.drainTransitions();
+        Assert.assertEquals(Integer.valueOf(1), transitions.get(CircuitBreaker.State.OPEN));
+        Assert.assertEquals(Integer.valueOf(1), transitions.get(CircuitBreaker.State.HALF_OPEN));
+        Assert.assertEquals(Integer.valueOf(1), transitions.get(CircuitBreaker.State.CLOSED));
+        Assert.assertTrue(breaker.drainTransitions().isEmpty());
+        Assert.assertEquals("CircuitOpened", CircuitBreaker.State.OPEN.getMetricName());
+    }
+
+    @Test
+    public void windowOfZeroNeverOpens() {
+        CircuitBreaker off = new CircuitBreaker("off", 0, 50, 80, 1000, 200);
+        for (int i = 0; i < 50; i++) {
+            off.record(off.tryAcquire(), true, 5000);
+        }
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, off.getState());
+        Assert.assertFalse(off.isOpen());
+    }
+}
@@ -0,0 +1,156 @@
+package uk.gov.dwp.drs.lambda;
+
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.benchmark.BenchmarkParameters;
+import uk.gov.dwp.drs.lambda.comms.PayloadStore;
+import uk.gov.dwp.drs.lambda.comms.StoredPayload;
+import uk.gov.dwp.drs.lambda.loadtest.LoadContext;
+import uk.gov.dwp.drs.lambda.misc.Utils;
+import uk.gov.dwp.drs.lambda.util.DrsParameters;
+import uk.gov.dwp.drs.lambda.util.PayloadLocation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+public class ClaimCheckTest {
+    private static final String RESPONSE_QUEUE = "drs-response";
+    private static final String BUCKET = "drs-payloads";
+    private static final String BODY = "{\"metadata\":{\"businessUnitID\":36,\"claimRef\":\"00000000\",\"documentType\":9877,"
+            + "\"nino\":{\"ninoBody\":\"AA000000\",\"ninoSuffix\":\"A\"},\"benefitType\":4},"
+            + "\"payloadS3\":{\"bucket\":\"" + BUCKET + "\",\"key\":\"claims/0001.pdf\"}}";
+
+    private StubDrsServer drs;
+    private LocalSqsServer sqs;
+    private LocalS3Server s3;
+    private DrsProcess process;
+    private byte[] pdf;
+
+    @Before
+    public void setUp() throws Exception {
+        drs = StubDrsServer.https();
+        sqs = new LocalSqsServer();
+        s3 = new LocalS3Server();
+        process = new DrsProcess(new BenchmarkParameters()
+                .with(DrsParameters.DRS_URL, drs.getUrl())
+                .with(DrsParameters.RESPONSE_QUEUE, RESPONSE_QUEUE)
+                .with(DrsParameters.PRIME_ITERATIONS, "0")
+                .with(DrsParameters.PARTIAL_BATCH_FAILURES, "true")
+                .with(DrsParameters.DRS_RETRY_BASE_DELAY, "10")
+                .with("sqshost", sqs.getEndpoint())
+                .with("s3host", s3.getEndpoint()));
+        // too big to be carried in an SQS message once base64 encoded
+        pdf = pdf(300 * 1024, 1);
+    }
+
+    @After
+    public void tearDown() {
+        drs.stop();
+        sqs.stop();
+        s3.stop();
+    }
+
+    @Test
+    public void sendsStoredPdfToDrs() {
+        s3.put(BUCKET, "claims/0001.pdf", pdf);
+
+        SQSBatchResponse response = process.handleRequest(Utils.makeSQSEvent(BODY), null);
+
+        Assert.assertTrue(response.getBatchItemFailures().isEmpty());
+        Assert.assertEquals(1, drs.getRequestCount());
+        Assert.assertTrue(drs.getLastBody().contains(Base64.getEncoder().encodeToString(pdf)));
+        Assert.assertEquals(1, s3.getGetRequests());
+        Assert.assertTrue(sqs.getMessages(RESPONSE_QUEUE).get(0).getBody().contains("SUCCEEDED"));
+    }
+
+    @Test
+    public void retriesWithoutReadingTheStoredPdfAgain() {
+        s3.put(BUCKET, "claims/0001.pdf", pdf);
+        drs.queueReply(503, 0);
+
+        SQSBatchResponse response = process.handleRequest(Utils.makeSQSEvent(BODY), null);
+
+        Assert.assertTrue(response.getBatchItemFailures().isEmpty());
+        Assert.assertEquals(2, drs.getRequestCount());
+        Assert.assertEquals(1, s3.getGetRequests());
+        Assert.assertTrue(drs.getLastBody().contains(Base64.getEncoder().encodeToString(pdf)));
+    }
+
+    @Test
+    public void failsRecordWhenStoredObjectIsNotAPdf() {
+        byte[] html = "<html><body>not a PDF</body></html>".getBytes(StandardCharsets.US_ASCII);
+        s3.put(BUCKET, "claims/0001.pdf", html);
+
+        SQSBatchResponse response = process.handleRequest(Utils.makeSQSEvent(BODY), null);
+
+        Assert.assertEquals(1, response.getBatchItemFailures().size());
+        Assert.assertEquals(0, drs.getRequestCount());
+        Assert.assertTrue(sqs.getMessages(RESPONSE_QUEUE).get(0).getBody().contains("does not start with %PDF-"));
+    }
+
+    @Test
+    public void failsRecordWhenStoredPdfIsMissing() {
+        SQSBatchResponse response = process.handleRequest(Utils.makeSQSEvent(BODY), null);
+
+        Assert.assertEquals(1, response.getBatchItemFailures().size());
+        Assert.assertEquals(0, drs.getRequestCount());
+        Assert.assertTrue(sqs.getMessages(RESPONSE_QUEUE).get(0).getBody().contains("FAILED"));
+    }
+
+    @Test
+    public void doesNotStartStoredPdfTooLargeToFinishInTime() {
+        byte[] smallPdf = pdf(1024, 2);
+        s3.put(BUCKET, "claims/small.pdf", smallPdf);
+        s3.put(BUCKET, "claims/0001.pdf", pdf);
+        String small = BODY.replace("0001.pdf", "small.pdf");
+        // the bodies are the same size, only the PDFs tell the records apart
+        Assert.assertTrue(process.handleRequest(Utils.makeSQSEvent(small), null).getBatchItemFailures().isEmpty());
+        drs.queueReply(200, 1000);
+        Assert.assertTrue(process.handleRequest(Utils.makeSQSEvent(BODY), null).getBatchItemFailures().isEmpty());
+        int gets = s3.getGetRequests();
+
+        // 1200ms to go after the status reserve, enough for the small PDF but not for 1.5 times the large one
+        SQSBatchResponse response = process.handleRequest(Utils.makeSQSEvent(Arrays.asList(small, BODY)),
+                new LoadContext(2200, 512));
+
+        Assert.assertEquals(1, response.getBatchItemFailures().size());
+        Assert.assertEquals(3, drs.getRequestCount());
+        // the large PDF was only looked at, not read
+        Assert.assertEquals(gets + 1, s3.getGetRequests());
+        Assert.assertEquals(3, sqs.getMessages(RESPONSE_QUEUE).size());
+    }
+
+    @Test
+    public void refusesToReadStoredPdfReplacedWithOneOfTheSameSize() throws Exception {
+        s3.put(BUCKET, "claims/0001.pdf", pdf);
+        PayloadStore store = new PayloadStore(() -> Utils.makeS3Client(s3.getEndpoint()));
+        StoredPayload stored = store.get(new PayloadLocation(BUCKET, "claims/0001.pdf"));
+        try (InputStream in = stored.open()) {
+            Assert.assertEquals(pdf[0], (byte) in.read());
+        }
+
+        byte[] replacement = pdf.clone();
+        replacement[0] ^= 1;
+        s3.put(BUCKET, "claims/0001.pdf", replacement);
+        try {
+            stored.open().close();
+            Assert.fail("Read a replaced payload");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("replaced"));
+        }
+    }
+
+    private static byte[] pdf(int size, long seed) {
+        byte[] pdf = new byte[size];
+        new Random(seed).nextBytes(pdf);
+        System.arraycopy("%PDF-".getBytes(StandardCharsets.US_ASCII), 0, pdf, 0, 5);
+        return pdf;
+    }
+}
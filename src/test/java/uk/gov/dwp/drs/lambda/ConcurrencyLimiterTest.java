@@ -0,0 +1,127 @@
+package uk.gov.dwp.drs.lambda;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.comms.ConcurrencyLimiter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class ConcurrencyLimiterTest {
+    private final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 8, 100);
+
+    // Takes every place, holds them for the latency, then gives them all back.
+    private void round(long latency, boolean failed) throws InterruptedException {
+        List<Long> tickets = new ArrayList<>();
+        long ticket;
+        while ((ticket = limiter.tryAcquire()) != ConcurrencyLimiter.REFUSED) {
+            tickets.add(ticket);
+        }
+        Thread.sleep(latency);
+        for (long held : tickets) {
+            limiter.release(held, failed);
+        }
+    }
+
+    @Test
+    public void startsAtHalfTheMaximum() {
+        Assert.assertEquals(4, limiter.getLimit());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertNotEquals(ConcurrencyLimiter.REFUSED, limiter.tryAcquire());
+        }
+        Assert.assertEquals(ConcurrencyLimiter.REFUSED, limiter.tryAcquire());
+        Assert.assertEquals(4, limiter.getInFlight());
+    }
+
+    @Test
+    public void growsToTheMaximumWhileLatencyIsFlat() throws Exception {
+        for (int i = 0; i < 40 && limiter.getLimit() < 8; i++) {
+            round(20, false);
+        }
+        Assert.assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    public void doesNotGrowWhileUnused() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            limiter.release(limiter.tryAcquire(), false);
+        }
+        Assert.assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void halvesOnceWhenLatencyRises() throws Exception {
+        round(20, false);
+        round(20, false);
+        int before = limiter.getLimit();
+
+        round(200, false);
+        Assert.assertEquals(before / 2, limiter.getLimit());
+        round(200, false);
+        Assert.assertEquals(Math.max(1, before / 4), limiter.getLimit());
+    }
+
+    @Test
+    public void halvesOnFailure() throws Exception {
+        round(10, true);
+        Assert.assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void neverGoesBelowTheMinimum() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            round(1, true);
+        }
+        Assert.assertEquals(1, limiter.getLimit());
+    }
+
+    @Test
+    public void waitsForAPlace() throws Exception {
+        List<Long> held = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            held.add(limiter.tryAcquire());
+        }
+        CompletableFuture<Long> waiting = CompletableFuture.supplyAsync(() -> acquire(5000));
+        Thread.sleep(100);
+        Assert.assertFalse(waiting.isDone());
+
+        limiter.abandon();
+        Assert.assertNotEquals(ConcurrencyLimiter.REFUSED, (long) waiting.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, limiter.drainRejections());
+    }
+
+    @Test
+    public void rejectsWhenNoPlaceComesFree() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            limiter.tryAcquire();
+        }
+
+        long started = System.currentTimeMillis();
+        Assert.assertEquals(ConcurrencyLimiter.REFUSED, limiter.acquire(100));
+        Assert.assertTrue(System.currentTimeMillis() - started >= 90);
+        limiter.reject();
+
+        Assert.assertEquals(2, limiter.drainRejections());
+        Assert.assertEquals(0, limiter.drainRejections());
+    }
+
+    @Test
+    public void noLimitWhenMaximumIsZero() throws Exception {
+        ConcurrencyLimiter off = new ConcurrencyLimiter("off", 1, 0, 100);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNotEquals(ConcurrencyLimiter.REFUSED, off.tryAcquire());
+        }
+        off.release(off.acquire(0), true);
+        Assert.assertEquals(0, off.getLimit());
+    }
+
+    private long acquire(long timeout) {
+        try {
+            return limiter.acquire(timeout);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package uk.gov.dwp.drs.lambda;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.comms.DocumentEntity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class DocumentEntityTest {
+    private static final String DOCUMENT = "<soap>\u00A3 pay\u00E9 \u20AC \uD83D\uDE00 plain</soap>";
+
+    @Test
+    public void writesUtf8InSmallBlocks() throws Exception {
+        DocumentEntity entity = new DocumentEntity(DOCUMENT, 4, false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+
+        byte[] expected = DOCUMENT.getBytes(StandardCharsets.UTF_8);
+        Assert.assertArrayEquals(expected, out.toByteArray());
+        Assert.assertEquals(expected.length, entity.getContentLength());
+        Assert.assertFalse(entity.isChunked());
+    }
+
+    @Test
+    public void chunkedHasNoLength() throws Exception {
+        DocumentEntity entity = new DocumentEntity(DOCUMENT, 8192, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+
+        Assert.assertEquals(-1, entity.getContentLength());
+        Assert.assertTrue(entity.isChunked());
+        Assert.assertEquals(DOCUMENT, new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void countsReplacedSurrogates() throws Exception {
+        String broken = "a\uD83Db";
+        DocumentEntity entity = new DocumentEntity(broken, 16, false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+
+        Assert.assertEquals(out.size(), entity.getContentLength());
+    }
+
+    @Test
+    public void allocationDoesNotScaleWithDocument() throws Exception {
+        char[] chars = new char[4 * 1024 * 1024];
+        Arrays.fill(chars, 'A');
+        String document = new String(chars);
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        new DocumentEntity(document, 8192, false).writeTo(sink);
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        new DocumentEntity(document, 8192, false).writeTo(sink);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        Assert.assertTrue("allocated " + allocated, allocated < 256 * 1024);
+    }
+}
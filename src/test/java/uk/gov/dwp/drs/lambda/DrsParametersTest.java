@@ -7,6 +7,8 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
@@ -17,8 +19,11 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.GZIPOutputStream;
 
+import static org.mockito.Matchers.any;
 import static org.powermock.api.mockito.PowerMockito.*;
 
 @RunWith(PowerMockRunner.class)
@@ -27,10 +32,23 @@ public class DrsParametersTest {
     private DrsParameters parameters;
     private AWSSimpleSystemsManagement client;
 
+    private final Map<String, String> ssmValues = new ConcurrentHashMap<>();
+
     private void prepareParameter(String par, String name, String value) {
         when(System.getenv(par)).thenReturn("@/test2/path2/" + name);
-        when(client.getParameter(new GetParameterRequest().withWithDecryption(true).withName("/test2/path2/" + name)))
-                .thenReturn(new GetParameterResult().withParameter(new Parameter().withName("/test2/path2/" + name).withValue(value)));
+        ssmValues.put("/test2/path2/" + name, value);
+    }
+
+    private GetParametersResult getParameters(GetParametersRequest request) {
+        GetParametersResult result = new GetParametersResult();
+        for (String name : request.getNames()) {
+            if (ssmValues.containsKey(name)) {
+                result.withParameters(new Parameter().withName(name).withValue(ssmValues.get(name)));
+            } else {
+                result.withInvalidParameters(name);
+            }
+        }
+        return result;
     }
 
     @Before
@@ -48,6 +66,8 @@ public class DrsParametersTest {
 
         client = mock(AWSSimpleSystemsManagement.class);
         when(builder.build()).thenReturn(client);
+        when(client.getParameters(any(GetParametersRequest.class)))
+                .thenAnswer(invocation -> getParameters((GetParametersRequest) invocation.getArguments()[0]));
         when(client.getParametersByPath(new GetParametersByPathRequest().withPath("/test/path").withWithDecryption(true))).thenReturn(
                 new GetParametersByPathResult().withParameters(
                         new Parameter().withName("/test/path/" + DrsParameters.APIKEY).withValue("apikey4321"),
@@ -95,6 +115,78 @@ public class DrsParametersTest {
         Assert.assertEquals("drsrequestusername8888", parameters.getParameter(DrsParameters.DRSREQUEST_USERNAME));
     }
 
+    @Test
+    public void itWillBatchIndirectParameters() {
+        String[] pars = {DrsParameters.TRANSKEY_PRV, DrsParameters.TRANSKEY_PUB, DrsParameters.CACERT, DrsParameters.CACERT2,
+                DrsParameters.APIKEY, DrsParameters.SIGNKEY_PRV, DrsParameters.SIGNKEY_PUB, DrsParameters.DRSREQUEST_USERNAME,
+                DrsParameters.DRS_URL, DrsParameters.RESPONSE_QUEUE, DrsParameters.WORKER_THREADS, DrsParameters.DRS_CHUNKED};
+        for (String par : pars) {
+            prepareParameter(par, par.toUpperCase(), par + "9999");
+        }
+        when(System.getenv(DrsParameters.SSM_PATH)).thenReturn("/test/path");
+
+        DrsParameters parameters = new DrsParameters();
+
+        ArgumentCaptor<GetParametersRequest> captor = ArgumentCaptor.forClass(GetParametersRequest.class);
+        Mockito.verify(client, Mockito.times(2)).getParameters(captor.capture());
+        Assert.assertEquals(10, captor.getAllValues().get(0).getNames().size());
+        Assert.assertEquals(2, captor.getAllValues().get(1).getNames().size());
+        Mockito.verify(client, Mockito.never()).getParameter(any(GetParameterRequest.class));
+
+        Assert.assertEquals("transkey_prv9999", parameters.getParameter(DrsParameters.TRANSKEY_PRV));
+        Assert.assertEquals("drs_chunked9999", parameters.getParameter(DrsParameters.DRS_CHUNKED));
+        // the path still wins over the named lookups
+        Assert.assertEquals("apikey4321", parameters.getParameter(DrsParameters.APIKEY));
+        Assert.assertEquals("drsurl4321", parameters.getParameter(DrsParameters.DRS_URL));
+    }
+
+    @Test(expected = ParameterNotFoundException.class)
+    public void itWillFailOnMissingIndirectParameter() {
+        when(System.getenv(DrsParameters.APIKEY)).thenReturn("@/test2/path2/MISSING");
+        new DrsParameters();
+    }
+
+    private static String awaitValue(DrsParameters parameters, String par, String expected) throws InterruptedException {
+        String value = parameters.getParameter(par);
+        for (int i = 0; i < 100 && !expected.equals(value); i++) {
+            Thread.sleep(50);
+            value = parameters.getParameter(par);
+        }
+        return value;
+    }
+
+    @Test
+    public void itWillRefreshInBackgroundAfterTtl() throws Exception {
+        prepareParameter(DrsParameters.APIKEY, "DRS_APIKEY", "apikey8888");
+        when(System.getenv(DrsParameters.SSM_CACHE_TTL)).thenReturn("60");
+        when(System.currentTimeMillis()).thenReturn(1000L);
+        DrsParameters parameters = new DrsParameters();
+
+        ssmValues.put("/test2/path2/DRS_APIKEY", "apikey9999");
+        when(System.currentTimeMillis()).thenReturn(60000L);
+        Assert.assertEquals("apikey8888", parameters.getParameter(DrsParameters.APIKEY));
+        Mockito.verify(client, Mockito.times(1)).getParameters(any(GetParametersRequest.class));
+
+        when(System.currentTimeMillis()).thenReturn(61000L);
+        Assert.assertEquals("apikey9999", awaitValue(parameters, DrsParameters.APIKEY, "apikey9999"));
+    }
+
+    @Test
+    public void itWillKeepValuesWhenRefreshFails() throws Exception {
+        prepareParameter(DrsParameters.APIKEY, "DRS_APIKEY", "apikey8888");
+        when(System.currentTimeMillis()).thenReturn(1000L);
+        DrsParameters parameters = new DrsParameters();
+
+        ssmValues.clear();
+        when(System.currentTimeMillis()).thenReturn(400000L);
+        Assert.assertEquals("apikey8888", parameters.getParameter(DrsParameters.APIKEY));
+        Mockito.verify(client, Mockito.timeout(5000).times(2)).getParameters(any(GetParametersRequest.class));
+
+        // the failed refresh counts as a load, so nothing is retried until the next ttl
+        Thread.sleep(200);
+        Assert.assertEquals("apikey8888", parameters.getParameter(DrsParameters.APIKEY));
+        Mockito.verify(client, Mockito.times(2)).getParameters(any(GetParametersRequest.class));
+    }
 
     private Parameter p(String name, String value) {
         return new Parameter().withName(name).withValue(value);
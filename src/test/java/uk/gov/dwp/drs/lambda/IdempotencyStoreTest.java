@@ -0,0 +1,106 @@
+package uk.gov.dwp.drs.lambda;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.idempotency.IdempotencyStore;
+import uk.gov.dwp.drs.lambda.idempotency.MemoryIdempotencyStore;
+import uk.gov.dwp.drs.lambda.idempotency.TieredIdempotencyStore;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IdempotencyStoreTest {
+    /**
+     * Stands in for a store shared between containers.
+     */
+    static class LocalRemoteStore implements IdempotencyStore {
+        final Map<String, String> keys = new ConcurrentHashMap<>();
+        final AtomicInteger reads = new AtomicInteger();
+        volatile boolean down;
+
+        @Override
+        public String getDocumentId(String key) throws IOException {
+            reads.incrementAndGet();
+            if (down) {
+                throw new IOException("store unavailable");
+            }
+            return keys.get(key);
+        }
+
+        @Override
+        public void markDone(String key, String documentId) throws IOException {
+            if (down) {
+                throw new IOException("store unavailable");
+            }
+            keys.put(key, documentId);
+        }
+    }
+
+    @Test
+    public void remembersKeys() {
+        MemoryIdempotencyStore store = new MemoryIdempotencyStore(10, 60000);
+        Assert.assertNull(store.getDocumentId("a"));
+        store.markDone("a", "DOC-1");
+        store.markDone("c", "");
+        Assert.assertEquals("DOC-1", store.getDocumentId("a"));
+        Assert.assertEquals("", store.getDocumentId("c"));
+        Assert.assertNull(store.getDocumentId("b"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        MemoryIdempotencyStore store = new MemoryIdempotencyStore(2, 60000);
+        store.markDone("a", "DOC-A");
+        store.markDone("b", "DOC-B");
+        Assert.assertEquals("DOC-A", store.getDocumentId("a"));
+        store.markDone("c", "DOC-C");
+
+        Assert.assertEquals(2, store.size());
+        Assert.assertEquals("DOC-A", store.getDocumentId("a"));
+        Assert.assertNull(store.getDocumentId("b"));
+        Assert.assertEquals("DOC-C", store.getDocumentId("c"));
+    }
+
+    @Test
+    public void expiresKeys() throws Exception {
+        MemoryIdempotencyStore store = new MemoryIdempotencyStore(10, 100);
+        store.markDone("a", "DOC-A");
+        Thread.sleep(150);
+
+        Assert.assertNull(store.getDocumentId("a"));
+        Assert.assertEquals(0, store.size());
+    }
+
+    @Test
+    public void sizeOfZeroRemembersNothing() {
+        MemoryIdempotencyStore store = new MemoryIdempotencyStore(0, 60000);
+        store.markDone("a", "DOC-A");
+        Assert.assertNull(store.getDocumentId("a"));
+    }
+
+    @Test
+    public void tieredStoreCopiesRemoteKeysLocally() throws Exception {
+        MemoryIdempotencyStore local = new MemoryIdempotencyStore(10, 60000);
+        LocalRemoteStore remote = new LocalRemoteStore();
+        remote.keys.put("seen-elsewhere", "DOC-1");
+        IdempotencyStore store = new TieredIdempotencyStore(local, remote);
+
+        Assert.assertEquals("DOC-1", store.getDocumentId("seen-elsewhere"));
+        Assert.assertEquals("DOC-1", store.getDocumentId("seen-elsewhere"));
+        Assert.assertEquals(1, remote.reads.get());
+
+        Assert.assertNull(store.getDocumentId("new"));
+        store.markDone("new", "DOC-2");
+        Assert.assertEquals("DOC-2", remote.keys.get("new"));
+        Assert.assertEquals("DOC-2", local.getDocumentId("new"));
+    }
+
+    @Test(expected = IOException.class)
+    public void tieredStoreReportsRemoteFailures() throws Exception {
+        LocalRemoteStore remote = new LocalRemoteStore();
+        remote.down = true;
+        new TieredIdempotencyStore(new MemoryIdempotencyStore(10, 60000), remote).getDocumentId("a");
+    }
+}
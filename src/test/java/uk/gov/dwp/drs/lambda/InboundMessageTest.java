@@ -0,0 +1,109 @@
+package uk.gov.dwp.drs.lambda;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Assert;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.util.InboundMessage;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class InboundMessageTest {
+    private static final String METADATA = "{\"businessUnitID\":36,\"classification\":0,\"claimRef\":\"55091b49\"," +
+            "\"documentType\":9877,\"surname\":\"O'Neil \\\"Jr\\\"\",\"nino\":{\"ninoBody\":\"AB123456\",\"ninoSuffix\":\"D\"}," +
+            "\"benefitType\":4}";
+
+    @Test
+    public void readsLikeTheTreeModel() throws Exception {
+        String body = "{\"metadata\":" + METADATA + ",\"payload\": \"JVBERi0xLjQK\" }";
+        InboundMessage message = InboundMessage.read(body);
+
+        JsonNode jsonNode = new ObjectMapper().readTree(body);
+        Assert.assertEquals(jsonNode.get("metadata").toString(), message.getMetadata());
+        Assert.assertEquals(jsonNode.get("payload").textValue(), message.getPayload());
+    }
+
+    @Test
+    public void readsFieldsInAnyOrder() throws Exception {
+        InboundMessage message = InboundMessage.read("{\"payload\":\"QUJD\",\"other\":[1,{\"a\":2}],\"metadata\":" + METADATA + "}");
+
+        Assert.assertEquals(METADATA, message.getMetadata());
+        Assert.assertEquals("QUJD", message.getPayload());
+    }
+
+    @Test
+    public void stripsQuotedPayload() throws Exception {
+        InboundMessage message = InboundMessage.read("{\"metadata\":{},\"payload\":\"\\\"QUJD\\\"\"}");
+
+        Assert.assertEquals("QUJD", message.getPayload());
+    }
+
+    @Test
+    public void decodesEscapedPayload() throws Exception {
+        InboundMessage message = InboundMessage.read("{\"metadata\":{},\"payload\":\"QU\\/JD\"}");
+
+        Assert.assertEquals("QU/JD", message.getPayload());
+    }
+
+    @Test
+    public void readsLargeBodies() throws Exception {
+        char[] payload = new char[1024 * 1024];
+        Arrays.fill(payload, 'A');
+        InboundMessage message = InboundMessage.read("{\"metadata\":" + METADATA + ",\n  \"payload\" : \"" + new String(payload) + "\"}");
+
+        Assert.assertEquals(METADATA, message.getMetadata());
+        Assert.assertEquals(payload.length, message.getPayload().length());
+    }
+
+    @Test
+    public void readsMetadataAfterLargePayload() throws Exception {
+        char[] payload = new char[100000];
+        Arrays.fill(payload, 'B');
+        InboundMessage message = InboundMessage.read("{ \"payload\":\"" + new String(payload) + "\" ,\n \"metadata\":" + METADATA + " }");
+
+        Assert.assertEquals(METADATA, message.getMetadata());
+        Assert.assertEquals(new String(payload), message.getPayload());
+    }
+
+    @Test
+    public void readsPayloadLocation() throws Exception {
+        InboundMessage message = InboundMessage.read("{\"metadata\":" + METADATA
+                + ",\"payloadS3\":{\"bucket\":\"drs-payloads\",\"region\":\"eu-west-2\",\"key\":\"claims/a b.pdf\"}}");
+
+        Assert.assertEquals(METADATA, message.getMetadata());
+        Assert.assertNull(message.getPayload());
+        Assert.assertEquals("drs-payloads", message.getPayloadLocation().getBucket());
+        Assert.assertEquals("claims/a b.pdf", message.getPayloadLocation().getKey());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsPayloadLocationWithoutKey() throws Exception {
+        InboundMessage.read("{\"metadata\":{},\"payloadS3\":{\"bucket\":\"drs-payloads\"}}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsBrokenJsonAfterPayload() throws Exception {
+        InboundMessage.read("{\"payload\":\"QUJD\" \"metadata\":{}}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMissingPayload() throws Exception {
+        InboundMessage.read("{\"metadata\":{}}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNonStringPayload() throws Exception {
+        InboundMessage.read("{\"metadata\":{},\"payload\":null}");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsBrokenJson() throws Exception {
+        InboundMessage.read("{\"metadata\":{},\"payload\":\"QUJD\"");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEmptyBody() throws Exception {
+        InboundMessage.read("");
+    }
+}
@@ -0,0 +1,39 @@
+package uk.gov.dwp.drs.lambda;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.comms.Jitter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class JitterTest {
+    private static List<Long> draws(Jitter jitter) {
+        List<Long> delays = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            delays.add(jitter.next(5000));
+        }
+        return delays;
+    }
+
+    @Test
+    public void instancesRestoredFromOneSnapshotDrawDifferentDelays() {
+        Jitter first = new Jitter(42);
+        Jitter second = new Jitter(42);
+        Assert.assertEquals(draws(first), draws(second));
+
+        first.reseed();
+        second.reseed();
+        Assert.assertNotEquals(draws(first), draws(second));
+    }
+
+    @Test
+    public void staysWithinTheCeiling() {
+        Jitter jitter = new Jitter();
+        for (int i = 0; i < 1000; i++) {
+            long delay = jitter.next(10);
+            Assert.assertTrue("delay " + delay, delay >= 0 && delay <= 10);
+        }
+        Assert.assertEquals(0, jitter.next(0));
+    }
+}
@@ -0,0 +1,137 @@
+package uk.gov.dwp.drs.lambda;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.util.DrsParameters;
+import uk.gov.dwp.drs.lambda.util.KeyMaterial;
+
+import java.io.IOException;
+import java.security.KeyStoreException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class KeyMaterialTest {
+    private DrsParameters parameters;
+    private final AtomicInteger builds = new AtomicInteger();
+    private final List<String> retired = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void before() {
+        parameters = mock(DrsParameters.class);
+        when(parameters.getParameter(DrsParameters.SIGNKEY_PRV)).thenReturn("key1");
+        when(parameters.getParameter(DrsParameters.SIGNKEY_PUB)).thenReturn("crt1");
+    }
+
+    private KeyMaterial<String> keyMaterial(KeyMaterial.Factory<String> factory) {
+        return new KeyMaterial<>("test", parameters, "initial", factory, retired::add,
+                DrsParameters.SIGNKEY_PRV, DrsParameters.SIGNKEY_PUB);
+    }
+
+    private KeyMaterial<String> keyMaterial() {
+        return keyMaterial(() -> parameters.getParameter(DrsParameters.SIGNKEY_PRV) + builds.incrementAndGet());
+    }
+
+    private static String awaitChange(KeyMaterial<String> keyMaterial, String from) throws InterruptedException {
+        for (int i = 0; i < 100 && from.equals(keyMaterial.get()); i++) {
+            Thread.sleep(20);
+        }
+        return keyMaterial.get();
+    }
+
+    @Test
+    public void keepsVersionWhileValuesAreUnchanged() {
+        KeyMaterial<String> keyMaterial = keyMaterial();
+
+        Assert.assertFalse(keyMaterial.refreshIfChanged());
+        Assert.assertEquals("initial", keyMaterial.get());
+        Assert.assertEquals(12, keyMaterial.getVersion().length());
+        Assert.assertEquals(0, builds.get());
+    }
+
+    @Test
+    public void versionFollowsContentNotInstance() {
+        String version = keyMaterial().getVersion();
+        Assert.assertEquals(version, keyMaterial().getVersion());
+
+        when(parameters.getParameter(DrsParameters.SIGNKEY_PUB)).thenReturn("crt2");
+        Assert.assertNotEquals(version, keyMaterial().getVersion());
+
+        when(parameters.getParameter(DrsParameters.SIGNKEY_PUB)).thenReturn("");
+        String empty = keyMaterial().getVersion();
+        when(parameters.getParameter(DrsParameters.SIGNKEY_PUB)).thenReturn(null);
+        Assert.assertNotEquals(empty, keyMaterial().getVersion());
+    }
+
+    @Test
+    public void swapsInBackgroundWithoutBlockingReaders() throws Exception {
+        CountDownLatch building = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        KeyMaterial<String> keyMaterial = keyMaterial(() -> {
+            building.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return "rotated";
+        });
+        String version = keyMaterial.getVersion();
+
+        when(parameters.getParameter(DrsParameters.SIGNKEY_PRV)).thenReturn("key2");
+        Assert.assertTrue(keyMaterial.refreshIfChanged());
+        Assert.assertTrue(building.await(5, TimeUnit.SECONDS));
+        // still building: readers get the old version and no second build starts
+        Assert.assertEquals("initial", keyMaterial.get());
+        Assert.assertFalse(keyMaterial.refreshIfChanged());
+
+        release.countDown();
+        Assert.assertEquals("rotated", awaitChange(keyMaterial, "initial"));
+        Assert.assertNotEquals(version, keyMaterial.getVersion());
+        // retired just after the swap
+        for (int i = 0; i < 100 && retired.isEmpty(); i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals("initial", retired.get(0));
+        Assert.assertFalse(keyMaterial.refreshIfChanged());
+    }
+
+    @Test
+    public void keepsOldVersionWhenBuildFails() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        KeyMaterial<String> keyMaterial = keyMaterial(() -> {
+            attempts.incrementAndGet();
+            throw new KeyStoreException("bad key");
+        });
+        String version = keyMaterial.getVersion();
+
+        when(parameters.getParameter(DrsParameters.SIGNKEY_PRV)).thenReturn("broken");
+        Assert.assertTrue(keyMaterial.refreshIfChanged());
+        for (int i = 0; i < 100 && attempts.get() == 0; i++) {
+            Thread.sleep(20);
+        }
+        Thread.sleep(100);
+
+        // the same broken values are not built again
+        Assert.assertFalse(keyMaterial.refreshIfChanged());
+        Assert.assertEquals(1, attempts.get());
+        Assert.assertEquals("initial", keyMaterial.get());
+        Assert.assertEquals(version, keyMaterial.getVersion());
+        Assert.assertTrue(retired.isEmpty());
+    }
+
+    @Test
+    public void rebuildsOnTheCallingThread() throws Exception {
+        KeyMaterial<String> keyMaterial = keyMaterial();
+        keyMaterial.rebuild();
+
+        Assert.assertEquals("key11", keyMaterial.get());
+        Assert.assertEquals("initial", retired.get(0));
+    }
+}
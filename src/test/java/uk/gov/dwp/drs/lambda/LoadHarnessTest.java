@@ -0,0 +1,44 @@
+package uk.gov.dwp.drs.lambda;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.loadtest.LoadHarness;
+import uk.gov.dwp.drs.lambda.metrics.Metrics;
+
+public class LoadHarnessTest {
+    @Test
+    public void sendsEveryRecordAndReports() throws Exception {
+        LoadHarness.Report report = LoadHarness.parse("--records", "23", "--batch-size", "5", "--concurrency", "2",
+                "--workers", "2", "--pdf-bytes", "1024", "--latency", "1-5").run();
+
+        Assert.assertEquals(23, report.getMetrics().getRecords());
+        Assert.assertEquals(0, report.getMetrics().getFailed());
+        Assert.assertEquals(23, report.getDrsRequests());
+        Assert.assertEquals(23, report.getStatusMessages());
+        Assert.assertEquals(23, report.getMetrics().samples(Metrics.Stage.POST));
+        Assert.assertTrue(report.getMetrics().percentile(Metrics.Stage.POST, 99) >= 1);
+        Assert.assertTrue(report.getThroughput() > 0);
+        Assert.assertTrue(report.getHeapHighWater() > 0);
+        Assert.assertTrue(report.toString().contains("PostTime"));
+    }
+
+    @Test
+    public void returnsFailedRecordsToSqs() throws Exception {
+        LoadHarness.Report report = LoadHarness.parse("--records", "10", "--pdf-bytes", "1024", "--error-rate", "1",
+                "--error-status", "500").run();
+
+        Assert.assertEquals(10, report.getMetrics().getFailed());
+        Assert.assertEquals(10, report.getItemFailures());
+        Assert.assertEquals(10, report.getStatusMessages());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownOptions() {
+        LoadHarness.parse("--recrods", "10");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBadNumbers() {
+        LoadHarness.parse("--records", "many");
+    }
+}
@@ -0,0 +1,112 @@
+package uk.gov.dwp.drs.lambda;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import uk.gov.dwp.drs.lambda.misc.Utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal stand-in for S3 answering HEAD and GET on path-style object URLs, for use through the s3host override.
+ * A GET with an If-Match header that does not match the object's ETag is refused with 412, as S3 does.
+ */
+public class LocalS3Server {
+    private final HttpServer server;
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final AtomicInteger gets = new AtomicInteger();
+
+    public LocalS3Server() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool(Utils.makeThreadFactory("local-s3")));
+        server.start();
+    }
+
+    public String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public void put(String bucket, String key, byte[] content) {
+        objects.put(bucket + "/" + key, content);
+    }
+
+    public int getGetRequests() {
+        return gets.get();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = URLDecoder.decode(exchange.getRequestURI().getRawPath().substring(1), "UTF-8");
+        byte[] content = objects.get(path);
+        boolean head = "HEAD".equals(exchange.getRequestMethod());
+        if (!head) {
+            gets.incrementAndGet();
+        }
+
+        if (content == null) {
+            byte[] error = ("<Error><Code>NoSuchKey</Code><Message>The specified key does not exist.</Message>"
+                    + "<Key>" + path + "</Key></Error>").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/xml");
+            if (head) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                exchange.sendResponseHeaders(404, error.length);
+                exchange.getResponseBody().write(error);
+            }
+            exchange.close();
+            return;
+        }
+
+        String etag = md5(content);
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        if (!head && ifMatch != null && !ifMatch.replace("\"", "").equals(etag)) {
+            byte[] error = "<Error><Code>PreconditionFailed</Code><Message>At least one of the pre-conditions you specified did not hold</Message></Error>"
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/xml");
+            exchange.sendResponseHeaders(412, error.length);
+            exchange.getResponseBody().write(error);
+            exchange.close();
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+        exchange.getResponseHeaders().set("ETag", "\"" + etag + "\"");
+        if (head) {
+            // a HEAD response has to give its length by hand
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(content.length));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(200, content.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(content);
+        }
+    }
+
+    private static String md5(byte[] data) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(data)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
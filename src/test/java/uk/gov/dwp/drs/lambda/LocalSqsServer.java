@@ -0,0 +1,302 @@
+package uk.gov.dwp.drs.lambda;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import uk.gov.dwp.drs.lambda.misc.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal stand-in for SQS speaking the query protocol used by the v1 SDK, for use through the sqshost override.
+ * Received messages stay in their queue, invisible for the visibility timeout, until they are deleted.
+ */
+public class LocalSqsServer {
+    private final HttpServer server;
+    private final Map<String, List<StoredMessage>> queues = new ConcurrentHashMap<>();
+    private final AtomicInteger failEntries = new AtomicInteger();
+    private final AtomicInteger batchRequests = new AtomicInteger();
+    private final AtomicInteger receiveRequests = new AtomicInteger();
+    private volatile long visibilityTimeout = 30000;
+
+    public LocalSqsServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool(Utils.makeThreadFactory("local-sqs")));
+        server.start();
+    }
+
+    public String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public List<StoredMessage> getMessages(String queueName) {
+        return queue(queueName);
+    }
+
+    public int getBatchRequests() {
+        return batchRequests.get();
+    }
+
+    public int getReceiveRequests() {
+        return receiveRequests.get();
+    }
+
+    public void setVisibilityTimeout(long visibilityTimeout) {
+        this.visibilityTimeout = visibilityTimeout;
+    }
+
+    /**
+     * Puts a message on the queue as a producer would, with a JMSCorrelationID attribute unless it is null.
+     */
+    public StoredMessage send(String queueName, String body, String correlationId) {
+        Map<String, String[]> attributes = new TreeMap<>();
+        if (correlationId != null) {
+            attributes.put(Utils.JMS_CORRELATION_ID, new String[] { "String", correlationId });
+        }
+        StoredMessage message = new StoredMessage(body, attributes);
+        queue(queueName).add(message);
+        return message;
+    }
+
+    /** The next entries sent in batches are reported back as retryable failures. */
+    public void failNextEntries(int count) {
+        failEntries.set(count);
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private List<StoredMessage> queue(String name) {
+        return queues.computeIfAbsent(name, n -> Collections.synchronizedList(new ArrayList<>()));
+    }
+
+    // the SDK sends the queue URL as the request path rather than a QueueUrl parameter
+    private static String queueName(HttpExchange exchange) {
+        String path = exchange.getRequestURI().getPath();
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        Map<String, String> form = parseForm(new String(IOUtils.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8));
+        String action = form.get("Action");
+        StringBuilder result = new StringBuilder();
+
+        if ("GetQueueUrl".equals(action)) {
+            queue(form.get("QueueName"));
+            result.append("<QueueUrl>").append(getEndpoint()).append("/queue/").append(form.get("QueueName")).append("</QueueUrl>");
+        } else if ("SendMessage".equals(action)) {
+            StoredMessage message = store(queueName(exchange), form, "");
+            result.append(message.resultXml());
+        } else if ("SendMessageBatch".equals(action)) {
+            batchRequests.incrementAndGet();
+            for (int i = 1; form.containsKey("SendMessageBatchRequestEntry." + i + ".Id"); i++) {
+                String prefix = "SendMessageBatchRequestEntry." + i + ".";
+                String id = form.get(prefix + "Id");
+                if (failEntries.getAndDecrement() > 0) {
+                    result.append("<BatchResultErrorEntry><Id>").append(id).append("</Id><SenderFault>false</SenderFault>")
+                            .append("<Code>InternalError</Code><Message>injected</Message></BatchResultErrorEntry>");
+                } else {
+                    StoredMessage message = store(queueName(exchange), form, prefix);
+                    result.append("<SendMessageBatchResultEntry><Id>").append(id).append("</Id>")
+                            .append(message.resultXml()).append("</SendMessageBatchResultEntry>");
+                }
+            }
+        } else if ("ReceiveMessage".equals(action)) {
+            receiveRequests.incrementAndGet();
+            int max = form.containsKey("MaxNumberOfMessages") ? Integer.parseInt(form.get("MaxNumberOfMessages")) : 1;
+            long wait = form.containsKey("WaitTimeSeconds") ? Long.parseLong(form.get("WaitTimeSeconds")) * 1000 : 0;
+            for (StoredMessage message : receive(queueName(exchange), max, wait)) {
+                result.append(message.receiveXml());
+            }
+        } else if ("DeleteMessageBatch".equals(action)) {
+            List<StoredMessage> queue = queue(queueName(exchange));
+            for (int i = 1; form.containsKey("DeleteMessageBatchRequestEntry." + i + ".Id"); i++) {
+                String prefix = "DeleteMessageBatchRequestEntry." + i + ".";
+                String receiptHandle = form.get(prefix + "ReceiptHandle");
+                queue.removeIf(message -> receiptHandle.equals(message.receiptHandle));
+                result.append("<DeleteMessageBatchResultEntry><Id>").append(form.get(prefix + "Id"))
+                        .append("</Id></DeleteMessageBatchResultEntry>");
+            }
+        } else {
+            respond(exchange, 400, "<ErrorResponse><Error><Type>Sender</Type><Code>InvalidAction</Code><Message>"
+                    + action + "</Message></Error><RequestId>" + UUID.randomUUID() + "</RequestId></ErrorResponse>");
+            return;
+        }
+
+        respond(exchange, 200, "<" + action + "Response><" + action + "Result>" + result + "</" + action + "Result>"
+                + "<ResponseMetadata><RequestId>" + UUID.randomUUID() + "</RequestId></ResponseMetadata></" + action + "Response>");
+    }
+
+    // Long polls check every 20ms until a message is visible or the wait is over.
+    private List<StoredMessage> receive(String queueName, int max, long wait) {
+        List<StoredMessage> queue = queue(queueName);
+        long until = System.currentTimeMillis() + wait;
+        List<StoredMessage> received = new ArrayList<>();
+        while (true) {
+            long now = System.currentTimeMillis();
+            synchronized (queue) {
+                for (StoredMessage message : queue) {
+                    if (received.size() < max && message.invisibleUntil <= now) {
+                        message.invisibleUntil = now + visibilityTimeout;
+                        message.receiptHandle = UUID.randomUUID().toString();
+                        message.receiveCount++;
+                        received.add(message);
+                    }
+                }
+            }
+            if (!received.isEmpty() || now >= until) {
+                return received;
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return received;
+            }
+        }
+    }
+
+    private StoredMessage store(String queueName, Map<String, String> form, String prefix) {
+        Map<String, String[]> attributes = new TreeMap<>();
+        for (int i = 1; form.containsKey(prefix + "MessageAttribute." + i + ".Name"); i++) {
+            String attribute = prefix + "MessageAttribute." + i + ".";
+            attributes.put(form.get(attribute + "Name"), new String[] {
+                    form.get(attribute + "Value.DataType"), form.get(attribute + "Value.StringValue") });
+        }
+        StoredMessage message = new StoredMessage(form.get(prefix + "MessageBody"), attributes);
+        queue(queueName).add(message);
+        return message;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String xml) throws IOException {
+        byte[] body = xml.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/xml");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> parseForm(String body) throws IOException {
+        Map<String, String> form = new TreeMap<>();
+        for (String pair : body.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                form.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return form;
+    }
+
+    private static String md5(byte[] data) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(data)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static void lengthAndBytes(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes.length >>> 24);
+        out.write(bytes.length >>> 16);
+        out.write(bytes.length >>> 8);
+        out.write(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    public static class StoredMessage {
+        private final String messageId = UUID.randomUUID().toString();
+        private final String body;
+        private final Map<String, String[]> attributes;
+        private volatile long invisibleUntil;
+        private volatile String receiptHandle;
+        private volatile int receiveCount;
+
+        StoredMessage(String body, Map<String, String[]> attributes) {
+            this.body = body;
+            this.attributes = attributes;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public String getAttribute(String name) {
+            return attributes.containsKey(name) ? attributes.get(name)[1] : null;
+        }
+
+        public int getReceiveCount() {
+            return receiveCount;
+        }
+
+        String bodyMd5() {
+            return md5(body.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Same digest the SDK checks on send and receive: each attribute in name order as length-prefixed
+        // name and type, a transport marker of 1 for strings, then the length-prefixed value.
+        String attributesMd5() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (Map.Entry<String, String[]> attribute : attributes.entrySet()) {
+                lengthAndBytes(out, attribute.getKey());
+                lengthAndBytes(out, attribute.getValue()[0]);
+                out.write(1);
+                lengthAndBytes(out, attribute.getValue()[1]);
+            }
+            return md5(out.toByteArray());
+        }
+
+        String receiveXml() {
+            StringBuilder xml = new StringBuilder("<Message><MessageId>").append(messageId).append("</MessageId>")
+                    .append("<ReceiptHandle>").append(receiptHandle).append("</ReceiptHandle>")
+                    .append("<MD5OfBody>").append(bodyMd5()).append("</MD5OfBody>")
+                    .append("<Body>").append(escape(body)).append("</Body>");
+            if (!attributes.isEmpty()) {
+                xml.append("<MD5OfMessageAttributes>").append(attributesMd5()).append("</MD5OfMessageAttributes>");
+            }
+            for (Map.Entry<String, String[]> attribute : attributes.entrySet()) {
+                xml.append("<MessageAttribute><Name>").append(escape(attribute.getKey())).append("</Name><Value>")
+                        .append("<StringValue>").append(escape(attribute.getValue()[1])).append("</StringValue>")
+                        .append("<DataType>").append(attribute.getValue()[0]).append("</DataType></Value></MessageAttribute>");
+            }
+            return xml.append("</Message>").toString();
+        }
+
+        String resultXml() {
+            return "<MessageId>" + messageId + "</MessageId><MD5OfMessageBody>" + bodyMd5() + "</MD5OfMessageBody>"
+                    + (attributes.isEmpty() ? "" : "<MD5OfMessageAttributes>" + attributesMd5() + "</MD5OfMessageAttributes>");
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package uk.gov.dwp.drs.lambda;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.util.MemoryBudget;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class MemoryBudgetTest {
+    private final MemoryBudget budget = new MemoryBudget(1024 * 1024);
+
+    @Test
+    public void smallRecordsShareTheBudget() throws Exception {
+        MemoryBudget.Grant first = budget.acquire(400 * 1024, Long.MAX_VALUE);
+        MemoryBudget.Grant second = budget.acquire(400 * 1024, Long.MAX_VALUE);
+
+        Assert.assertEquals(0, first.getWaitStarted());
+        Assert.assertEquals(0, second.getWaitStarted());
+        Assert.assertEquals(224 * 1024, budget.getAvailable());
+    }
+
+    @Test
+    public void largeRecordRunsAlone() throws Exception {
+        MemoryBudget.Grant small = budget.acquire(1000, Long.MAX_VALUE);
+        CompletableFuture<MemoryBudget.Grant> large = CompletableFuture.supplyAsync(() -> acquire(50 * 1024 * 1024));
+
+        Thread.sleep(100);
+        Assert.assertFalse(large.isDone());
+        small.close();
+        MemoryBudget.Grant grant = large.get(5, TimeUnit.SECONDS);
+        Assert.assertNotEquals(0, grant.getWaitStarted());
+        Assert.assertEquals(0, budget.getAvailable());
+
+        grant.close();
+        Assert.assertEquals(1024 * 1024, budget.getAvailable());
+    }
+
+    @Test
+    public void waitersAreServedInTurn() throws Exception {
+        MemoryBudget.Grant held = budget.acquire(600 * 1024, Long.MAX_VALUE);
+        CompletableFuture<MemoryBudget.Grant> large = CompletableFuture.supplyAsync(() -> acquire(800 * 1024));
+        Thread.sleep(100);
+
+        // would fit beside the held record, but the large one asked first
+        Assert.assertNull(budget.acquire(100 * 1024, System.currentTimeMillis() + 50));
+        held.close();
+        Assert.assertNotNull(large.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void givesUpAtTheDeadline() throws Exception {
+        budget.acquire(1024 * 1024, Long.MAX_VALUE);
+
+        long started = System.currentTimeMillis();
+        Assert.assertNull(budget.acquire(1, started + 100));
+        Assert.assertTrue(System.currentTimeMillis() - started >= 90);
+    }
+
+    @Test
+    public void releasesOnce() throws Exception {
+        MemoryBudget.Grant grant = budget.acquire(512 * 1024, Long.MAX_VALUE);
+        grant.close();
+        grant.close();
+
+        Assert.assertEquals(1024 * 1024, budget.getAvailable());
+    }
+
+    @Test
+    public void noLimitWhenZero() throws Exception {
+        MemoryBudget unlimited = new MemoryBudget(0);
+
+        Assert.assertEquals(0, unlimited.acquire(Long.MAX_VALUE / 2, System.currentTimeMillis()).getWaitStarted());
+        Assert.assertNotNull(unlimited.acquire(Long.MAX_VALUE / 2, System.currentTimeMillis()));
+    }
+
+    private MemoryBudget.Grant acquire(long bytes) {
+        try {
+            return budget.acquire(bytes, Long.MAX_VALUE);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
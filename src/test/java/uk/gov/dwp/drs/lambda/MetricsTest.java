@@ -0,0 +1,139 @@
+package uk.gov.dwp.drs.lambda;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Assert;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.metrics.EmfMetrics;
+import uk.gov.dwp.drs.lambda.metrics.Metrics;
+import uk.gov.dwp.drs.lambda.metrics.NoOpMetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class MetricsTest {
+    private final List<String> lines = new ArrayList<>();
+    private final LambdaLogger logger = new LambdaLogger() {
+        @Override
+        public void log(String message) {
+            lines.add(message);
+        }
+
+        @Override
+        public void log(byte[] message) {
+            // not used
+        }
+    };
+
+    private JsonNode document(int i) throws Exception {
+        return new ObjectMapper().readTree(lines.get(i));
+    }
+
+    // Every metric declared in the directive must have a value at the top level of the document.
+    private static void assertValidEmf(JsonNode document, String namespace) {
+        JsonNode directive = document.get("_aws").get("CloudWatchMetrics").get(0);
+        Assert.assertTrue(document.get("_aws").get("Timestamp").isNumber());
+        Assert.assertEquals(namespace, directive.get("Namespace").asText());
+        Assert.assertEquals("Service", directive.get("Dimensions").get(0).get(0).asText());
+        Assert.assertEquals("drs-lambda", document.get("Service").asText());
+        for (JsonNode metric : directive.get("Metrics")) {
+            Assert.assertTrue(metric.get("Name").asText(), document.has(metric.get("Name").asText()));
+        }
+    }
+
+    @Test
+    public void emitsOneDocumentPerBatch() throws Exception {
+        Metrics.Batch batch = new EmfMetrics("DRSTest").startBatch();
+        for (int i = 0; i < 2; i++) {
+            long mark = System.nanoTime() - 2000000;
+            mark = batch.stage(Metrics.Stage.PARSE, mark);
+            batch.payload(1000 + i);
+            Assert.assertTrue(mark <= System.nanoTime());
+            batch.stage(Metrics.Stage.SIGN, mark);
+        }
+        batch.stage(Metrics.Stage.FLUSH, System.nanoTime());
+        batch.finish(2, 1, 12345678, logger);
+
+        Assert.assertEquals(1, lines.size());
+        JsonNode document = document(0);
+        assertValidEmf(document, "DRSTest");
+        Assert.assertEquals(2, document.get("ParseTime").size());
+        Assert.assertTrue(document.get("ParseTime").get(0).asDouble() >= 2.0);
+        Assert.assertEquals(2, document.get("SignTime").size());
+        Assert.assertEquals(1, document.get("StatusFlushTime").size());
+        Assert.assertFalse(document.has("PostTime"));
+        Assert.assertEquals(1001, document.get("PayloadSize").get(1).asInt());
+        Assert.assertEquals(2, document.get("Records").asInt());
+        Assert.assertEquals(1, document.get("FailedRecords").asInt());
+        Assert.assertEquals(12.346, document.get("BatchTime").asDouble(), 0.0001);
+    }
+
+    @Test
+    public void emitsBatchTotalsForEmptyBatch() throws Exception {
+        new EmfMetrics(null).startBatch().finish(0, 0, 1000, logger);
+
+        Assert.assertEquals(1, lines.size());
+        assertValidEmf(document(0), EmfMetrics.DEFAULT_NAMESPACE);
+        Assert.assertEquals(0, document(0).get("Records").asInt());
+    }
+
+    @Test
+    public void addsCountsToTheBatchTotals() throws Exception {
+        Metrics.Batch batch = new EmfMetrics("DRSTest").startBatch();
+        batch.count("CircuitOpened", 1);
+        batch.count("CircuitOpened", 1);
+        batch.count("CircuitClosed", 1);
+        batch.finish(0, 0, 1000, logger);
+
+        assertValidEmf(document(0), "DRSTest");
+        Assert.assertEquals(2, document(0).get("CircuitOpened").asInt());
+        Assert.assertEquals(1, document(0).get("CircuitClosed").asInt());
+    }
+
+    @Test
+    public void writesPercentagesWithTheBatchTotals() throws Exception {
+        Metrics.Batch batch = new EmfMetrics("DRSTest").startBatch();
+        batch.percent("SignerUtilisation", 42.345);
+        batch.finish(0, 0, 1000, logger);
+
+        assertValidEmf(document(0), "DRSTest");
+        Assert.assertEquals(42.3, document(0).get("SignerUtilisation").asDouble(), 0);
+        for (JsonNode metric : document(0).get("_aws").get("CloudWatchMetrics").get(0).get("Metrics")) {
+            if ("SignerUtilisation".equals(metric.get("Name").asText())) {
+                Assert.assertEquals("Percent", metric.get("Unit").asText());
+            }
+        }
+    }
+
+    @Test
+    public void splitsBatchesLargerThanEmfAllows() throws Exception {
+        Metrics.Batch batch = new EmfMetrics("DRSTest").startBatch();
+        for (int i = 0; i < 250; i++) {
+            batch.stage(Metrics.Stage.POST, System.nanoTime());
+            batch.payload(i);
+        }
+        batch.finish(250, 0, 1000, logger);
+
+        Assert.assertEquals(3, lines.size());
+        int[] sizes = {100, 100, 50};
+        for (int i = 0; i < 3; i++) {
+            assertValidEmf(document(i), "DRSTest");
+            Assert.assertEquals(sizes[i], document(i).get("PostTime").size());
+            Assert.assertEquals(sizes[i], document(i).get("PayloadSize").size());
+            Assert.assertEquals(i == 0, document(i).has("Records"));
+        }
+        Assert.assertEquals(200, document(2).get("PayloadSize").get(0).asInt());
+    }
+
+    @Test
+    public void noOpEmitsNothing() {
+        Metrics.Batch batch = new NoOpMetrics().startBatch();
+        long started = System.nanoTime();
+        Assert.assertTrue(batch.stage(Metrics.Stage.PARSE, started) >= started);
+        batch.payload(10);
+        batch.finish(1, 0, 1000, logger);
+
+        Assert.assertTrue(lines.isEmpty());
+    }
+}
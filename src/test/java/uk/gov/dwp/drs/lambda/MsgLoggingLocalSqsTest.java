@@ -0,0 +1,74 @@
+package uk.gov.dwp.drs.lambda;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.comms.MsgLogging;
+import uk.gov.dwp.drs.lambda.util.DrsParameters;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MsgLoggingLocalSqsTest {
+    private static final String QUEUE = "drs-response";
+
+    private LocalSqsServer sqs;
+    private DrsParameters parameters;
+
+    @Before
+    public void before() throws Exception {
+        sqs = new LocalSqsServer();
+        parameters = mock(DrsParameters.class);
+        when(parameters.getSystemParameter("sqshost")).thenReturn(sqs.getEndpoint());
+        when(parameters.getParameter(DrsParameters.RESPONSE_QUEUE)).thenReturn(QUEUE);
+    }
+
+    @After
+    public void after() {
+        sqs.stop();
+    }
+
+    private Set<String> correlationIds() {
+        Set<String> ids = new HashSet<>();
+        List<LocalSqsServer.StoredMessage> messages = sqs.getMessages(QUEUE);
+        synchronized (messages) {
+            for (LocalSqsServer.StoredMessage message : messages) {
+                Assert.assertTrue(message.getBody().contains(message.getAttribute("JMSCorrelationID")));
+                ids.add(message.getAttribute("JMSCorrelationID"));
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void deliversAllEventsByFlush() {
+        MsgLogging msgLogging = new MsgLogging(parameters);
+        for (int i = 0; i < 25; i++) {
+            msgLogging.logEvent("SUCCEEDED", "corresid" + i, null, "doc" + i);
+        }
+        msgLogging.flush();
+
+        Assert.assertEquals(25, sqs.getMessages(QUEUE).size());
+        Assert.assertEquals(25, correlationIds().size());
+        Assert.assertEquals(3, sqs.getBatchRequests());
+    }
+
+    @Test
+    public void resendsEntriesSqsFailed() {
+        sqs.failNextEntries(4);
+        MsgLogging msgLogging = new MsgLogging(parameters);
+        for (int i = 0; i < 25; i++) {
+            msgLogging.logEvent("FAILED", "corresid" + i, "error", null);
+        }
+        msgLogging.flush();
+
+        Assert.assertEquals(25, sqs.getMessages(QUEUE).size());
+        Assert.assertEquals(25, correlationIds().size());
+        Assert.assertEquals(4, sqs.getBatchRequests());
+    }
+}
@@ -2,8 +2,11 @@ package uk.gov.dwp.drs.lambda;
 
 import com.amazonaws.services.sqs.AmazonSQSAsync;
 import com.amazonaws.services.sqs.AmazonSQSAsyncClientBuilder;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
 import com.amazonaws.services.sqs.model.GetQueueUrlResult;
-import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import uk.gov.dwp.drs.lambda.comms.MsgLogging;
@@ -18,6 +21,14 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 import uk.gov.dwp.drs.lambda.util.DrsParameters;
 
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.internal.verification.VerificationModeFactory.times;
@@ -27,22 +38,37 @@ import static org.powermock.api.mockito.PowerMockito.when;
 @RunWith(PowerMockRunner.class)
 @PrepareForTest({AmazonSQSAsyncClientBuilder.class})
 public class MsgLoggingTest {
+    private AmazonSQSAsyncClientBuilder builder;
     private AmazonSQSAsync sqsClient;
     private DrsParameters parameters;
 
     @Before
     public void before() {
         PowerMockito.mockStatic(AmazonSQSAsyncClientBuilder.class);
-        AmazonSQSAsyncClientBuilder builder = mock(AmazonSQSAsyncClientBuilder.class);
+        builder = mock(AmazonSQSAsyncClientBuilder.class);
         when(AmazonSQSAsyncClientBuilder.standard()).thenReturn(builder);
 
         sqsClient = mock(AmazonSQSAsync.class);
         when(builder.build()).thenReturn(sqsClient);
         when(sqsClient.getQueueUrl(anyString())).thenReturn(new GetQueueUrlResult().withQueueUrl("http://hello:8080/resq"));
 
+        when(sqsClient.sendMessageBatchAsync(any(SendMessageBatchRequest.class)))
+                .thenReturn(CompletableFuture.completedFuture(new SendMessageBatchResult()));
+
         parameters = mock(DrsParameters.class);
     }
 
+    private List<SendMessageBatchRequest> sentBatches(int count) {
+        ArgumentCaptor<SendMessageBatchRequest> captor = ArgumentCaptor.forClass(SendMessageBatchRequest.class);
+        Mockito.verify(sqsClient, times(count)).sendMessageBatchAsync(captor.capture());
+        return captor.getAllValues();
+    }
+
+    private static CompletableFuture<SendMessageBatchResult> failing(String id, boolean senderFault) {
+        return CompletableFuture.completedFuture(new SendMessageBatchResult().withFailed(
+                new BatchResultErrorEntry().withId(id).withSenderFault(senderFault).withCode("InternalError")));
+    }
+
     @Test
     public void getInstance() {
         MsgLogging msgLogging = new MsgLogging(parameters);
@@ -54,11 +80,12 @@ public class MsgLoggingTest {
         MsgLogging msgLogging = new MsgLogging(parameters);
         // Thursday, 27 June 2019 10:00:00 GMT+01:00
         msgLogging.logEvent("PENDING", "corresid", "errordetail", "documentidentifier");
-        ArgumentCaptor<SendMessageRequest> sendMessageRequestArgumentCaptor = ArgumentCaptor.forClass(SendMessageRequest.class);
-        Mockito.verify(sqsClient, times(1)).sendMessage(any());
-        Mockito.verify(sqsClient).sendMessage(sendMessageRequestArgumentCaptor.capture());
+        Mockito.verify(sqsClient, times(0)).sendMessageBatchAsync(any(SendMessageBatchRequest.class));
+        msgLogging.flush();
 
-        SendMessageRequest req = sendMessageRequestArgumentCaptor.getValue();
+        List<SendMessageBatchRequestEntry> entries = sentBatches(1).get(0).getEntries();
+        Assert.assertEquals(1, entries.size());
+        SendMessageBatchRequestEntry req = entries.get(0);
         Assert.assertNotNull(req);
 
         JsonNode jsonNode = new ObjectMapper().readTree(req.getMessageBody());
@@ -76,11 +103,12 @@ public class MsgLoggingTest {
         MsgLogging msgLogging = new MsgLogging(parameters);
         // Thursday, 27 June 2019 10:00:00 GMT+01:00
         msgLogging.logEvent("PENDING", "corresid", null, null);
-        ArgumentCaptor<SendMessageRequest> sendMessageRequestArgumentCaptor = ArgumentCaptor.forClass(SendMessageRequest.class);
-        Mockito.verify(sqsClient, times(1)).sendMessage(any());
-        Mockito.verify(sqsClient).sendMessage(sendMessageRequestArgumentCaptor.capture());
+        Mockito.verify(sqsClient, times(0)).sendMessageBatchAsync(any(SendMessageBatchRequest.class));
+        msgLogging.flush();
 
-        SendMessageRequest req = sendMessageRequestArgumentCaptor.getValue();
+        List<SendMessageBatchRequestEntry> entries = sentBatches(1).get(0).getEntries();
+        Assert.assertEquals(1, entries.size());
+        SendMessageBatchRequestEntry req = entries.get(0);
         Assert.assertNotNull(req);
 
         JsonNode jsonNode = new ObjectMapper().readTree(req.getMessageBody());
@@ -93,4 +121,99 @@ public class MsgLoggingTest {
         Assert.assertEquals("corresid", req.getMessageAttributes().get("JMSCorrelationID").getStringValue());
     }
 
+    @Test
+    public void onLogItemFromManyThreads() throws Exception {
+        MsgLogging msgLogging = new MsgLogging(parameters);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 50; i++) {
+            String correlationId = "corresid" + i;
+            executor.submit(() -> msgLogging.logEvent("SUCCEEDED", correlationId, null, null));
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        msgLogging.flush();
+
+        Set<String> correlationIds = new HashSet<>();
+        for (SendMessageBatchRequest batch : sentBatches(5)) {
+            Assert.assertEquals(10, batch.getEntries().size());
+            for (SendMessageBatchRequestEntry req : batch.getEntries()) {
+                JsonNode jsonNode = new ObjectMapper().readTree(req.getMessageBody());
+                Assert.assertEquals(jsonNode.get("correlationId").asText(),
+                        req.getMessageAttributes().get("JMSCorrelationID").getStringValue());
+                correlationIds.add(jsonNode.get("correlationId").asText());
+            }
+        }
+        Assert.assertEquals(50, correlationIds.size());
+    }
+
+    @Test
+    public void restoreReplacesClient() {
+        MsgLogging msgLogging = new MsgLogging(parameters);
+        msgLogging.restore();
+
+        Mockito.verify(builder, times(2)).build();
+        Mockito.verify(sqsClient, times(1)).shutdown();
+        Mockito.verify(sqsClient, times(1)).getQueueUrl(anyString());
+
+        msgLogging.logEvent("SUCCEEDED", "corresid", null, null);
+        msgLogging.flush();
+        Assert.assertEquals("http://hello:8080/resq", sentBatches(1).get(0).getQueueUrl());
+    }
+
+    @Test
+    public void onFullBatchSendsBeforeFlush() {
+        MsgLogging msgLogging = new MsgLogging(parameters);
+        for (int i = 0; i < 12; i++) {
+            msgLogging.logEvent("SUCCEEDED", "corresid" + i, null, null);
+        }
+        Assert.assertEquals(10, sentBatches(1).get(0).getEntries().size());
+
+        msgLogging.flush();
+        Assert.assertEquals(2, sentBatches(2).get(1).getEntries().size());
+    }
+
+    @Test
+    public void onFlushWithNothingLogged() {
+        new MsgLogging(parameters).flush();
+        Mockito.verify(sqsClient, times(0)).sendMessageBatchAsync(any(SendMessageBatchRequest.class));
+    }
+
+    @Test
+    public void onFlushRetriesFailedEntries() {
+        when(sqsClient.sendMessageBatchAsync(any(SendMessageBatchRequest.class)))
+                .thenReturn(failing("1", false))
+                .thenReturn(CompletableFuture.completedFuture(new SendMessageBatchResult()));
+        MsgLogging msgLogging = new MsgLogging(parameters);
+        msgLogging.logEvent("SUCCEEDED", "corresid0", null, null);
+        msgLogging.logEvent("SUCCEEDED", "corresid1", null, null);
+        msgLogging.flush();
+
+        List<SendMessageBatchRequest> batches = sentBatches(2);
+        Assert.assertEquals(2, batches.get(0).getEntries().size());
+        Assert.assertEquals(1, batches.get(1).getEntries().size());
+        Assert.assertEquals("corresid1", batches.get(1).getEntries().get(0)
+                .getMessageAttributes().get("JMSCorrelationID").getStringValue());
+    }
+
+    @Test
+    public void onFlushDoesNotRetrySenderFaults() {
+        when(sqsClient.sendMessageBatchAsync(any(SendMessageBatchRequest.class))).thenReturn(failing("0", true));
+        MsgLogging msgLogging = new MsgLogging(parameters);
+        msgLogging.logEvent("SUCCEEDED", "corresid", null, null);
+        msgLogging.flush();
+
+        sentBatches(1);
+    }
+
+    @Test
+    public void onFlushRetriesFailedRequestsThenGivesUp() {
+        CompletableFuture<SendMessageBatchResult> error = new CompletableFuture<>();
+        error.completeExceptionally(new IllegalStateException("unavailable"));
+        when(sqsClient.sendMessageBatchAsync(any(SendMessageBatchRequest.class))).thenReturn(error);
+        MsgLogging msgLogging = new MsgLogging(parameters);
+        msgLogging.logEvent("SUCCEEDED", "corresid", null, null);
+        msgLogging.flush();
+
+        sentBatches(3);
+    }
 }
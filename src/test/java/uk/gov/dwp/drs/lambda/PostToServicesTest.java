@@ -1,7 +1,11 @@
 package uk.gov.dwp.drs.lambda;
 
+import uk.gov.dwp.drs.lambda.comms.CircuitBreaker;
+import uk.gov.dwp.drs.lambda.comms.ConnectionPoolMetrics;
+import uk.gov.dwp.drs.lambda.comms.DrsResult;
 import uk.gov.dwp.drs.lambda.comms.PostToServices;
 import org.apache.log4j.Logger;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -11,20 +15,25 @@ import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
+import uk.gov.dwp.drs.lambda.exceptions.DrsUnavailableException;
 import uk.gov.dwp.drs.lambda.util.DrsParameters;
 
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.KeyManagerFactory;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.URL;
+import java.net.SocketTimeoutException;
 import java.security.KeyFactory;
 import java.security.KeyStore;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
@@ -38,16 +47,14 @@ import static org.powermock.api.mockito.PowerMockito.whenNew;
 
 @RunWith(PowerMockRunner.class)
 @PrepareForTest({KeyManagerFactory.class, PostToServices.class})
-@PowerMockIgnore({"javax.net.ssl.*"})
+@PowerMockIgnore({"javax.net.ssl.*", "com.sun.net.httpserver.*"})
 public class PostToServicesTest {
     private static final Logger LOGGER = Logger.getLogger(BLProcessTest.class);
     private KeyStore keyStore;
     private KeyManagerFactory keyManagerFactory;
     private DrsParameters parameters;
     private PostToServices postToServices;
-    private HttpsURLConnection connection;
-    private URL drsurl;
-    private ByteArrayOutputStream out;
+    private StubDrsServer drs;
 
     @Before
     public void before() throws Exception {
@@ -60,16 +67,13 @@ public class PostToServicesTest {
 
 
     private void fakeHttps() throws Exception {
-        drsurl = mock(URL.class);
-        connection = mock(HttpsURLConnection.class);
-        when(drsurl.openConnection()).thenReturn(connection);
-
-        out = new ByteArrayOutputStream();
-        when(connection.getOutputStream()).thenReturn(out);
-        when(connection.getResponseCode()).thenReturn(200);
+        drs = StubDrsServer.http();
+        when(parameters.getParameter(DrsParameters.DRS_URL)).thenReturn(drs.getUrl());
+    }
 
-        PowerMockito.mockStatic(URL.class);
-        whenNew(URL.class).withAnyArguments().thenReturn(drsurl);
+    @After
+    public void after() {
+        drs.stop();
     }
 
     private void fakeInitSSL() throws Exception {
@@ -124,7 +128,6 @@ public class PostToServicesTest {
         when(parameters.getParameter(DrsParameters.SIGNKEY_PRV)).thenReturn(getKeyFake("drssigning.key"));
         when(parameters.getParameter(DrsParameters.TRANSKEY_PUB)).thenReturn(getCertFake("drscommunicator_2.crt"));
         when(parameters.getParameter(DrsParameters.TRANSKEY_PRV)).thenReturn(getKeyFake("drscommunicator.key"));
-        when(parameters.getParameter(DrsParameters.DRS_URL)).thenReturn("https://drsmock:9090/submit");
         whenNew(DrsParameters.class).withNoArguments().thenReturn(parameters);
     }
 
@@ -138,16 +141,18 @@ public class PostToServicesTest {
     public void tryPostToDRS() throws Exception {
         when(parameters.getParameter(DrsParameters.APIKEY)).thenReturn("abcd1234");
 
-        Assert.assertTrue(postToServices.postToDRS("DATA", "12345678"));
+        Assert.assertTrue(postToServices.postToDRS("DATA", "12345678").isSuccess());
 
-        Mockito.verify(connection, times(1)).setRequestProperty(eq("Authorization"), eq("P8Admin"));
-        Mockito.verify(connection, times(1)).setRequestProperty(eq("apiKey"), eq("abcd1234"));
-        Assert.assertEquals("DATA", new String(out.toByteArray()));
+        Assert.assertEquals("P8Admin", drs.getLastHeader("Authorization"));
+        Assert.assertEquals("abcd1234", drs.getLastHeader("apiKey"));
+        Assert.assertEquals("12345678", drs.getLastHeader("correlationId"));
+        Assert.assertEquals("text/xml", drs.getLastHeader("Content-Type"));
+        Assert.assertEquals("DATA", drs.getLastBody());
     }
 
     @Test
     public void runLambdaDRSFailsToConnect() throws Exception {
-        when(drsurl.openConnection()).thenThrow(new IOException());
+        drs.stop();
         try {
             postToServices.postToDRS("DATA", "12345678");
             fail("Should throw exception.");
@@ -158,19 +163,310 @@ public class PostToServicesTest {
 
     @Test
     public void runLambdaDRSreturnsError5xx() throws Exception {
-        when(connection.getResponseCode()).thenReturn(501);
-        Assert.assertFalse(postToServices.postToDRS("DATA", "12345678"));
+        drs.setStatus(501);
+        Assert.assertFalse(postToServices.postToDRS("DATA", "12345678").isSuccess());
     }
 
     @Test
     public void runLambdaDRSreturnsError4xx() throws Exception {
-        when(connection.getResponseCode()).thenReturn(400);
-        Assert.assertFalse(postToServices.postToDRS("DATA", "12345678"));
+        drs.setStatus(400);
+        Assert.assertFalse(postToServices.postToDRS("DATA", "12345678").isSuccess());
     }
 
     @Test
     public void runLambdaDRSreturnsError200() throws Exception {
-        when(connection.getResponseCode()).thenReturn(200);
-        Assert.assertTrue(postToServices.postToDRS("DATA", "12345678"));
+        drs.setStatus(200);
+        Assert.assertTrue(postToServices.postToDRS("DATA", "12345678").isSuccess());
+    }
+
+    @Test
+    public void readsDocumentIdFromResponse() throws Exception {
+        drs.setResponseBody("<?xml version=\"1.0\"?><soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+                + "<soapenv:Body><ns1:uploadResponse xmlns:ns1=\"urn:drs\"><ns1:documentId> {0F1E2D3C-0000-4000-8000-000000000001} "
+                + "</ns1:documentId></ns1:uploadResponse></soapenv:Body></soapenv:Envelope>");
+
+        DrsResult result = postToServices.postToDRS("DATA", "12345678");
+        Assert.assertTrue(result.isSuccess());
+        Assert.assertEquals("{0F1E2D3C-0000-4000-8000-000000000001}", result.getDocumentId());
+        Assert.assertNull(result.getFault());
+
+        // the whole body was read, so the connection went back in the pool
+        Assert.assertTrue(postToServices.postToDRS("DATA", "12345678").isSuccess());
+        Assert.assertEquals(1, postToServices.getPoolMetrics().getConnections());
+    }
+
+    @Test
+    public void readsSoapFault() throws Exception {
+        drs.setStatus(500);
+        drs.setResponseBody("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body><soap:Fault>"
+                + "<faultcode>soap:Client</faultcode><faultstring>Invalid benefitType</faultstring>"
+                + "<detail><code>E042</code></detail></soap:Fault></soap:Body></soap:Envelope>");
+
+        DrsResult result = postToServices.postToDRS("DATA", "12345678");
+
+        Assert.assertFalse(result.isSuccess());
+        Assert.assertNull(result.getDocumentId());
+        Assert.assertEquals("soap:Client: Invalid benefitType", result.getFault());
+        Assert.assertEquals("code 500 after 1 attempt, fault soap:Client: Invalid benefitType", result.toString());
+    }
+
+    @Test
+    public void readsSoap12Fault() throws Exception {
+        drs.setStatus(400);
+        drs.setResponseBody("<env:Envelope xmlns:env=\"http://www.w3.org/2003/05/soap-envelope\"><env:Body><env:Fault>"
+                + "<env:Code><env:Value>env:Sender</env:Value><env:Subcode><env:Value>drs:Rejected</env:Value></env:Subcode></env:Code>"
+                + "<env:Reason><env:Text xml:lang=\"en\">Signature does not match</env:Text></env:Reason>"
+                + "</env:Fault></env:Body></env:Envelope>");
+
+        DrsResult result = postToServices.postToDRS("DATA", "12345678");
+
+        Assert.assertEquals("env:Sender", result.getFaultCode());
+        Assert.assertEquals("Signature does not match", result.getFaultString());
+    }
+
+    @Test
+    public void ignoresResponseThatIsNotXml() throws Exception {
+        drs.setResponseBody("OK");
+
+        DrsResult result = postToServices.postToDRS("DATA", "12345678");
+        Assert.assertTrue(result.isSuccess());
+        Assert.assertNull(result.getDocumentId());
+        Assert.assertNull(result.getFault());
+
+        Assert.assertTrue(postToServices.postToDRS("DATA", "12345678").isSuccess());
+        Assert.assertEquals(1, postToServices.getPoolMetrics().getConnections());
+    }
+
+    private PostToServices retrying(int retries, int timeout) throws Exception {
+        when(parameters.getParameter(DrsParameters.DRS_RETRIES)).thenReturn(String.valueOf(retries));
+        when(parameters.getParameter(DrsParameters.DRS_RETRY_BASE_DELAY)).thenReturn("1");
+        when(parameters.getParameter(DrsParameters.DRS_TIMEOUT)).thenReturn(String.valueOf(timeout));
+        return new PostToServices(parameters);
+    }
+
+    @Test
+    public void retriesThrottlingAndGatewayErrors() throws Exception {
+        drs.queueReply(429, 0);
+        drs.queueReply(503, 0);
+        Assert.assertTrue(retrying(2, 10000).postToDRS("DATA", "12345678").isSuccess());
+        Assert.assertEquals(3, drs.getRequestCount());
+    }
+
+    @Test
+    public void givesUpAfterMaxRetries() throws Exception {
+        drs.setStatus(502);
+        Assert.assertFalse(retrying(2, 10000).postToDRS("DATA", "12345678").isSuccess());
+        Assert.assertEquals(3, drs.getRequestCount());
+    }
+
+    @Test
+    public void doesNotRetryOtherErrors() throws Exception {
+        drs.setStatus(500);
+        Assert.assertFalse(retrying(2, 10000).postToDRS("DATA", "12345678").isSuccess());
+        drs.setStatus(400);
+        Assert.assertFalse(retrying(2, 10000).postToDRS("DATA", "12345678").isSuccess());
+        Assert.assertEquals(2, drs.getRequestCount());
+    }
+
+    @Test
+    public void retriesReadTimeout() throws Exception {
+        drs.queueReply(200, 3000);
+        Assert.assertTrue(retrying(2, 1500).postToDRS("DATA", "12345678").isSuccess());
+        Assert.assertEquals(2, drs.getRequestCount());
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void throwsReadTimeoutWhenRetriesRunOut() throws Exception {
+        drs.setLatency(3000);
+        retrying(0, 1000).postToDRS("DATA", "12345678");
+    }
+
+    @Test
+    public void doesNotStartRetryPastDeadline() throws Exception {
+        drs.setStatus(503);
+        Assert.assertFalse(retrying(2, 10000).postToDRS("DATA", "12345678", System.currentTimeMillis() + 500).isSuccess());
+        Assert.assertEquals(1, drs.getRequestCount());
+    }
+
+    @Test
+    public void failsFastWhileCircuitIsOpen() throws Exception {
+        when(parameters.getParameter(DrsParameters.DRS_BREAKER_WINDOW)).thenReturn("4");
+        PostToServices breaking = retrying(0, 10000);
+        drs.setStatus(503);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertFalse(breaking.postToDRS("DATA", "12345678").isSuccess());
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaking.getCircuitState());
+
+        try {
+            breaking.postToDRS("DATA", "12345678");
+            fail("Should fail fast.");
+        } catch (DrsUnavailableException e) {
+            Assert.assertTrue(e.getMessage().contains("circuit breaker is open"));
+        }
+        try {
+            breaking.checkAvailable("12345678");
+            fail("Should fail fast.");
+        } catch (DrsUnavailableException e) {
+            LOGGER.info("Caught exception");
+        }
+        Assert.assertEquals(4, drs.getRequestCount());
+        Assert.assertEquals(Integer.valueOf(1), breaking.drainCircuitTransitions().get(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    public void clientErrorsDoNotOpenCircuit() throws Exception {
+        when(parameters.getParameter(DrsParameters.DRS_BREAKER_WINDOW)).thenReturn("4");
+        PostToServices breaking = retrying(0, 10000);
+        drs.setStatus(400);
+        for (int i = 0; i < 8; i++) {
+            Assert.assertFalse(breaking.postToDRS("DATA", "12345678").isSuccess());
+        }
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaking.getCircuitState());
+    }
+
+    @Test
+    public void tryPostToDRSFromManyThreads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Callable<DrsResult>> posts = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            String correlationId = "id" + i;
+            posts.add(() -> postToServices.postToDRS("DATA", correlationId));
+        }
+        for (Future<DrsResult> result : executor.invokeAll(posts)) {
+            Assert.assertTrue(result.get().isSuccess());
+        }
+        executor.shutdown();
+
+        Assert.assertEquals(32, drs.getRequestCount());
+        Assert.assertTrue(postToServices.getPoolMetrics().getConnections() <= 8);
+    }
+
+    @Test
+    public void concurrencyLimitFollowsDrsLatency() throws Exception {
+        when(parameters.getParameter(DrsParameters.DRS_LIMIT_MAX)).thenReturn("8");
+        PostToServices limited = new PostToServices(parameters);
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        Assert.assertEquals(4, limited.getConcurrencyLimit());
+
+        drs.setLatency(20);
+        postAll(limited, executor, 200);
+        int grown = limited.getConcurrencyLimit();
+        Assert.assertTrue("limit grew to " + grown, grown > 4);
+        Assert.assertTrue(drs.getPeakInFlight() <= 8);
+
+        drs.setLatency(200);
+        postAll(limited, executor, 16);
+        int cut = limited.getConcurrencyLimit();
+        Assert.assertTrue("limit cut from " + grown + " to " + cut, cut <= 2);
+        Assert.assertEquals(0, limited.drainLimitRejections());
+        executor.shutdown();
+    }
+
+    private static void postAll(PostToServices limited, ExecutorService executor, int count) throws Exception {
+        List<Callable<DrsResult>> posts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String correlationId = "id" + i;
+            posts.add(() -> limited.postToDRS("DATA", correlationId));
+        }
+        for (Future<DrsResult> result : executor.invokeAll(posts)) {
+            Assert.assertTrue(result.get().isSuccess());
+        }
+    }
+
+    @Test
+    public void tryPostToDRSReusesConnections() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(postToServices.postToDRS("DATA", "12345678").isSuccess());
+        }
+
+        ConnectionPoolMetrics metrics = postToServices.getPoolMetrics();
+        Assert.assertEquals(5, metrics.getLeases());
+        Assert.assertEquals(1, metrics.getConnections());
+        Assert.assertEquals(0, metrics.getLeased());
+        Assert.assertEquals(1, metrics.getAvailable());
+        Assert.assertEquals(0.8, metrics.getReuseRatio(), 0.001);
+    }
+
+    @Test
+    public void tryPostToDRSReusesConnectionsAfterErrors() throws Exception {
+        drs.setStatus(503);
+        drs.setResponseBody("<fault>busy</fault>");
+        Assert.assertFalse(postToServices.postToDRS("DATA", "12345678").isSuccess());
+        drs.setStatus(200);
+        Assert.assertTrue(postToServices.postToDRS("DATA", "12345678").isSuccess());
+
+        Assert.assertEquals(1, postToServices.getPoolMetrics().getConnections());
+    }
+
+    @Test
+    public void closeConnectionsEmptiesThePool() throws Exception {
+        Assert.assertTrue(postToServices.postToDRS("DATA", "12345678").isSuccess());
+        postToServices.closeConnections();
+        Assert.assertEquals(0, postToServices.getPoolMetrics().getAvailable());
+
+        Assert.assertTrue(postToServices.postToDRS("DATA", "12345678").isSuccess());
+        Assert.assertEquals(2, postToServices.getPoolMetrics().getConnections());
+    }
+
+    @Test
+    public void restoreReplacesThePool() throws Exception {
+        Assert.assertTrue(postToServices.postToDRS("DATA", "12345678").isSuccess());
+        postToServices.restore();
+        Assert.assertEquals(0, postToServices.getPoolMetrics().getAvailable());
+
+        Assert.assertTrue(postToServices.postToDRS("DATA", "12345678").isSuccess());
+        Assert.assertTrue(postToServices.postToDRS("DATA", "12345678").isSuccess());
+        Assert.assertEquals(2, postToServices.getPoolMetrics().getConnections());
+        Assert.assertEquals(3, drs.getRequestCount());
+    }
+
+    @Test
+    public void rotatedKeysLeavePostsInFlightToFinish() throws Exception {
+        String version = postToServices.getKeyVersion();
+        Assert.assertFalse(postToServices.refreshIfChanged());
+
+        drs.setLatency(500);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<DrsResult> inFlight = executor.submit(() -> postToServices.postToDRS("DATA", "12345678"));
+        Thread.sleep(100);
+
+        when(parameters.getParameter(DrsParameters.TRANSKEY_PUB)).thenReturn(getCertFake("drscommunicator_3.crt"));
+        Assert.assertTrue(postToServices.refreshIfChanged());
+        for (int i = 0; i < 100 && version.equals(postToServices.getKeyVersion()); i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertNotEquals(version, postToServices.getKeyVersion());
+
+        Assert.assertTrue(inFlight.get(5, TimeUnit.SECONDS).isSuccess());
+        executor.shutdown();
+
+        drs.setLatency(0);
+        Assert.assertTrue(postToServices.postToDRS("DATA", "12345678").isSuccess());
+        Assert.assertEquals(2, postToServices.getPoolMetrics().getConnections());
+        Assert.assertEquals(1, postToServices.getPoolMetrics().getAvailable());
+    }
+
+    @Test
+    public void primeDoesNotPost() throws Exception {
+        postToServices.prime("DATA");
+        Assert.assertEquals(0, drs.getRequestCount());
+        Assert.assertEquals(0, postToServices.getPoolMetrics().getLeases());
+    }
+
+    @Test
+    public void tryPostToDRSKeepsMultiByteCharacters() throws Exception {
+        Assert.assertTrue(postToServices.postToDRS("<name>Si\u00E2n \u00D3 Briain \u00A3</name>", "12345678").isSuccess());
+        Assert.assertEquals("<name>Si\u00E2n \u00D3 Briain \u00A3</name>", drs.getLastBody());
+    }
+
+    @Test
+    public void tryPostToDRSChunked() throws Exception {
+        when(parameters.getParameter(DrsParameters.DRS_CHUNKED)).thenReturn("true");
+        PostToServices chunkedPost = new PostToServices(parameters);
+
+        Assert.assertTrue(chunkedPost.postToDRS("DATA", "12345678").isSuccess());
+        Assert.assertEquals("chunked", drs.getLastHeader("Transfer-Encoding"));
+        Assert.assertEquals("DATA", drs.getLastBody());
     }
 }
@@ -0,0 +1,144 @@
+package uk.gov.dwp.drs.lambda;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.comms.ConnectionPoolMetrics;
+import uk.gov.dwp.drs.lambda.comms.DrsResult;
+import uk.gov.dwp.drs.lambda.comms.PostToServices;
+import uk.gov.dwp.drs.lambda.util.DrsParameters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PostToServicesTlsTest {
+    private StubDrsServer drs;
+    private DrsParameters parameters;
+    private PostToServices postToServices;
+
+    @Before
+    public void before() throws Exception {
+        drs = StubDrsServer.https();
+
+        String key = StubDrsServer.fixture(StubDrsServer.TLS_KEY);
+        String crt = StubDrsServer.fixture(StubDrsServer.TLS_CRT);
+        parameters = mock(DrsParameters.class);
+        when(parameters.getParameter(DrsParameters.TRANSKEY_PRV)).thenReturn(key);
+        when(parameters.getParameter(DrsParameters.TRANSKEY_PUB)).thenReturn(crt);
+        when(parameters.getParameter(DrsParameters.CACERT)).thenReturn(crt);
+        when(parameters.getParameter(DrsParameters.CACERT2)).thenReturn(crt);
+        when(parameters.getParameter(DrsParameters.DRS_URL)).thenReturn(drs.getUrl());
+
+        postToServices = new PostToServices(parameters);
+    }
+
+    @After
+    public void after() {
+        drs.stop();
+    }
+
+    @Test
+    public void postsOverMutualTls() throws Exception {
+        Assert.assertTrue(postToServices.postToDRS("<soap/>", "12345678").isSuccess());
+        Assert.assertEquals("<soap/>", drs.getLastBody());
+    }
+
+    @Test
+    public void handshakesOnceForManyPosts() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(postToServices.postToDRS("<soap/>", "12345678").isSuccess());
+        }
+
+        ConnectionPoolMetrics metrics = postToServices.getPoolMetrics();
+        Assert.assertEquals(5, metrics.getLeases());
+        Assert.assertEquals(1, metrics.getConnections());
+        Assert.assertEquals(1, metrics.getHandshakes());
+    }
+
+    @Test
+    public void postsAsyncOverMutualTls() throws Exception {
+        PostToServices async = asyncClient();
+
+        DrsResult result = async.postToDRSAsync("<soap>\u00e9</soap>", "12345678", Long.MAX_VALUE).get(10, TimeUnit.SECONDS);
+
+        Assert.assertTrue(result.isSuccess());
+        Assert.assertEquals(1, result.getAttempts());
+        Assert.assertEquals("<soap>\u00e9</soap>", drs.getLastBody());
+        Assert.assertEquals("12345678", drs.getLastHeader("correlationId"));
+    }
+
+    @Test
+    public void asyncPostsReadDocumentId() throws Exception {
+        PostToServices async = asyncClient();
+        drs.setResponseBody("<Envelope><Body><uploadResponse><documentId>DOC-1</documentId></uploadResponse></Body></Envelope>");
+
+        DrsResult result = async.postToDRSAsync("<soap/>", "12345678", Long.MAX_VALUE).get(10, TimeUnit.SECONDS);
+
+        Assert.assertTrue(result.isSuccess());
+        Assert.assertEquals("DOC-1", result.getDocumentId());
+    }
+
+    @Test
+    public void asyncPostsRetryGatewayErrors() throws Exception {
+        PostToServices async = asyncClient();
+        drs.queueReply(503, 0);
+        drs.queueReply(429, 0);
+
+        DrsResult result = async.postToDRSAsync("<soap/>", "12345678", Long.MAX_VALUE).get(10, TimeUnit.SECONDS);
+
+        Assert.assertTrue(result.isSuccess());
+        Assert.assertEquals(3, result.getAttempts());
+        Assert.assertEquals(3, drs.getRequestCount());
+    }
+
+    @Test
+    public void asyncPostsRunTogetherFromOneThread() throws Exception {
+        when(parameters.getParameter(DrsParameters.DRS_MAX_CONNECTIONS)).thenReturn("8");
+        PostToServices async = asyncClient();
+        drs.setLatency(200);
+
+        long started = System.currentTimeMillis();
+        List<CompletableFuture<DrsResult>> posts = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            posts.add(async.postToDRSAsync("<soap/>", "id-" + i, Long.MAX_VALUE));
+        }
+        for (CompletableFuture<DrsResult> post : posts) {
+            Assert.assertTrue(post.get(10, TimeUnit.SECONDS).isSuccess());
+        }
+
+        // one after another they would take 1.6s
+        Assert.assertTrue(System.currentTimeMillis() - started < 1200);
+        Assert.assertEquals(8, drs.getRequestCount());
+        Assert.assertEquals(8, async.getPoolMetrics().getLeases());
+    }
+
+    @Test
+    public void asyncPostsHandshakeOnceForManyPosts() throws Exception {
+        PostToServices async = asyncClient();
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(async.postToDRSAsync("<soap/>", "12345678", Long.MAX_VALUE).get(10, TimeUnit.SECONDS).isSuccess());
+        }
+
+        ConnectionPoolMetrics metrics = async.getPoolMetrics();
+        Assert.assertEquals(5, metrics.getLeases());
+        Assert.assertEquals(1, metrics.getConnections());
+        Assert.assertEquals(1, metrics.getHandshakes());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void asyncPostsNeedDrsAsync() {
+        postToServices.postToDRSAsync("<soap/>", "12345678", Long.MAX_VALUE);
+    }
+
+    private PostToServices asyncClient() throws Exception {
+        when(parameters.getParameter(DrsParameters.DRS_ASYNC)).thenReturn("true");
+        when(parameters.getParameter(DrsParameters.DRS_RETRY_BASE_DELAY)).thenReturn("10");
+        return new PostToServices(parameters);
+    }
+}
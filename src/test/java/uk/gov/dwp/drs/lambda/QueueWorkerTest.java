@@ -0,0 +1,140 @@
+package uk.gov.dwp.drs.lambda;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.benchmark.BenchmarkParameters;
+import uk.gov.dwp.drs.lambda.misc.Utils;
+import uk.gov.dwp.drs.lambda.util.DrsParameters;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+public class QueueWorkerTest {
+    private static final String REQUEST_QUEUE = "drs-request";
+    private static final String RESPONSE_QUEUE = "drs-response";
+
+    private StubDrsServer drs;
+    private LocalSqsServer sqs;
+    private QueueWorker worker;
+    private String record;
+
+    @Before
+    public void setUp() throws Exception {
+        drs = StubDrsServer.https();
+        sqs = new LocalSqsServer();
+        record = Utils.makeSyntheticRecord(1024);
+    }
+
+    @After
+    public void tearDown() {
+        if (worker != null) {
+            worker.drain();
+        }
+        drs.stop();
+        sqs.stop();
+    }
+
+    @Test
+    public void deletesRecordsSentToDrs() throws Exception {
+        for (int i = 0; i < 15; i++) {
+            sqs.send(REQUEST_QUEUE, record, "corr-" + i);
+        }
+
+        worker = start("10", "2");
+
+        await(() -> sqs.getMessages(REQUEST_QUEUE).isEmpty());
+        Assert.assertEquals(15, drs.getRequestCount());
+        await(() -> sqs.getMessages(RESPONSE_QUEUE).size() == 15);
+    }
+
+    @Test
+    public void leavesFailedRecordsOnTheQueue() throws Exception {
+        drs.queueReply(400, 0);
+        for (int i = 0; i < 3; i++) {
+            sqs.send(REQUEST_QUEUE, record, "corr-" + i);
+        }
+
+        worker = start("10", "1");
+
+        await(() -> drs.getRequestCount() == 3 && sqs.getMessages(REQUEST_QUEUE).size() == 1);
+        Assert.assertTrue(worker.drain());
+        LocalSqsServer.StoredMessage failed = sqs.getMessages(REQUEST_QUEUE).get(0);
+        Assert.assertEquals(1, failed.getReceiveCount());
+    }
+
+    @Test
+    public void holdsNoMoreThanMaxInFlight() throws Exception {
+        drs.setLatency(50);
+        for (int i = 0; i < 12; i++) {
+            sqs.send(REQUEST_QUEUE, record, "corr-" + i);
+        }
+
+        worker = start("3", "4");
+
+        AtomicInteger peak = new AtomicInteger();
+        await(() -> {
+            peak.accumulateAndGet(received(), Math::max);
+            return sqs.getMessages(REQUEST_QUEUE).isEmpty();
+        });
+        Assert.assertEquals(12, drs.getRequestCount());
+        Assert.assertTrue("peak " + peak.get(), peak.get() <= 3 && peak.get() > 0);
+    }
+
+    @Test
+    public void drainFinishesReceivedRecordsAndStopsPolling() throws Exception {
+        drs.setLatency(300);
+        for (int i = 0; i < 4; i++) {
+            sqs.send(REQUEST_QUEUE, record, "corr-" + i);
+        }
+
+        worker = start("4", "4");
+        await(() -> received() == 4);
+
+        Assert.assertTrue(worker.drain());
+        Assert.assertTrue(sqs.getMessages(REQUEST_QUEUE).isEmpty());
+        Assert.assertEquals(4, drs.getRequestCount());
+
+        int receives = sqs.getReceiveRequests();
+        sqs.send(REQUEST_QUEUE, record, "corr-late");
+        Thread.sleep(200);
+        Assert.assertEquals(receives, sqs.getReceiveRequests());
+        Assert.assertEquals(0, sqs.getMessages(REQUEST_QUEUE).get(0).getReceiveCount());
+    }
+
+    private QueueWorker start(String maxInFlight, String workerThreads) throws Exception {
+        DrsParameters parameters = new BenchmarkParameters()
+                .with(DrsParameters.DRS_URL, drs.getUrl())
+                .with(DrsParameters.RESPONSE_QUEUE, RESPONSE_QUEUE)
+                .with(DrsParameters.REQUEST_QUEUE, REQUEST_QUEUE)
+                .with(DrsParameters.PRIME_ITERATIONS, "0")
+                .with(DrsParameters.PARTIAL_BATCH_FAILURES, "true")
+                .with(DrsParameters.WORKER_THREADS, workerThreads)
+                .with(DrsParameters.WORKER_MAX_IN_FLIGHT, maxInFlight)
+                .with(DrsParameters.WORKER_POLL_WAIT, "1")
+                .with(DrsParameters.WORKER_DRAIN_TIMEOUT, "10")
+                .with("sqshost", sqs.getEndpoint());
+        QueueWorker started = new QueueWorker(parameters, new DrsProcess(parameters),
+                Utils.makeSQSClient(sqs.getEndpoint(), "test-requests", 1));
+        started.start();
+        return started;
+    }
+
+    // messages received and not yet deleted
+    private int received() {
+        List<LocalSqsServer.StoredMessage> messages = sqs.getMessages(REQUEST_QUEUE);
+        synchronized (messages) {
+            return (int) messages.stream().filter(m -> m.getReceiveCount() > 0).count();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long until = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue("timed out", System.currentTimeMillis() < until);
+            Thread.sleep(5);
+        }
+    }
+}
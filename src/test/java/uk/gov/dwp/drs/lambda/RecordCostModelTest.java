@@ -0,0 +1,57 @@
+package uk.gov.dwp.drs.lambda;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.util.RecordCostModel;
+
+public class RecordCostModelTest {
+    private final RecordCostModel model = new RecordCostModel();
+
+    @Test
+    public void startsWithDefaultEstimate() {
+        Assert.assertEquals(2000, model.estimate(1000));
+        Assert.assertTrue(model.fits(1000, Long.MAX_VALUE));
+        Assert.assertTrue(model.fits(1000, System.currentTimeMillis() + 3100));
+        Assert.assertFalse(model.fits(1000, System.currentTimeMillis() + 2900));
+    }
+
+    @Test
+    public void usesMeanForOneSize() {
+        model.observe(1000, 100);
+        model.observe(1000, 300);
+        Assert.assertTrue(model.estimate(1000) > 100);
+        Assert.assertTrue(model.estimate(1000) < 300);
+        Assert.assertEquals(model.estimate(1000), model.estimate(1000000));
+    }
+
+    @Test
+    public void scalesWithSize() {
+        for (int i = 0; i < 20; i++) {
+            model.observe(100000, 150);
+            model.observe(1000000, 600);
+        }
+        Assert.assertEquals(150, model.estimate(100000), 2);
+        Assert.assertEquals(600, model.estimate(1000000), 2);
+        Assert.assertEquals(2600, model.estimate(5000000), 10);
+    }
+
+    @Test
+    public void followsRecentRecords() {
+        for (int i = 0; i < 20; i++) {
+            model.observe(1000, 5000);
+        }
+        for (int i = 0; i < 40; i++) {
+            model.observe(1000, 100);
+        }
+        Assert.assertTrue(model.estimate(1000) < 200);
+    }
+
+    @Test
+    public void neverEstimatesBelowZero() {
+        for (int i = 0; i < 20; i++) {
+            model.observe(1000000, 1000);
+            model.observe(2000000, 2000);
+        }
+        Assert.assertEquals(0, model.estimate(0), 1);
+    }
+}
@@ -0,0 +1,108 @@
+package uk.gov.dwp.drs.lambda;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.exceptions.InvalidRecordException;
+import uk.gov.dwp.drs.lambda.misc.Utils;
+import uk.gov.dwp.drs.lambda.util.InboundMessage;
+import uk.gov.dwp.drs.lambda.util.RecordValidator;
+
+import java.nio.charset.StandardCharsets;
+
+public class RecordValidatorTest {
+    private static final String METADATA = "{\"businessUnitID\":36,\"claimRef\":\"00000000\",\"documentType\":9877,"
+            + "\"nino\":{\"ninoBody\":\"AA000000\",\"ninoSuffix\":\"A\"},\"benefitType\":4}";
+    // %PDF-1.4\n
+    private static final String PDF = "JVBERi0xLjQK";
+
+    private final RecordValidator validator = new RecordValidator(1024);
+
+    @Test
+    public void acceptsSyntheticRecord() throws Exception {
+        new RecordValidator(RecordValidator.DEFAULT_MAX_PDF_BYTES)
+                .validate(InboundMessage.read(Utils.makeSyntheticRecord(64 * 1024)), "id");
+    }
+
+    @Test
+    public void acceptsLineBreaksAndPadding() {
+        validator.validate(new InboundMessage(METADATA, PDF + "\r\nAAA=\r\n"), "id");
+        validator.validate(new InboundMessage(METADATA, PDF + "AA=="), "id");
+    }
+
+    @Test
+    public void rejectsCharacterOutsideBase64() {
+        assertInvalid("Payload is not base64, found '*' at character 14. (id)", METADATA, PDF + "AA*A");
+    }
+
+    @Test
+    public void rejectsDataAfterPadding() {
+        assertInvalid("Payload is not base64, found 'A' at character 15. (id)", METADATA, PDF + "AA=A");
+    }
+
+    @Test
+    public void rejectsPartialBlock() {
+        assertInvalid("Payload is not base64, 14 characters is not a whole number of blocks. (id)", METADATA, PDF + "AA");
+    }
+
+    @Test
+    public void rejectsEmptyPayload() {
+        assertInvalid("Payload is empty. (id)", METADATA, "");
+    }
+
+    @Test
+    public void rejectsPayloadThatIsNotPdf() {
+        assertInvalid("Payload is not a PDF, it does not start with %PDF-. (id)", METADATA, "PGh0bWw+");
+    }
+
+    @Test
+    public void rejectsPdfOverLimit() {
+        StringBuilder large = new StringBuilder(PDF);
+        for (int i = 0; i < 342; i++) {
+            large.append("AAAA");
+        }
+        assertInvalid("PDF is 1035 bytes, more than the limit of 1024. (id)", METADATA, large.toString());
+    }
+
+    @Test
+    public void listsMissingMetadata() {
+        assertInvalid("Metadata is missing claimRef, documentType, nino. (id)",
+                "{\"businessUnitID\":36,\"claimRef\":\"  \",\"benefitType\":4,\"nino\":{\"ninoSuffix\":\"A\"}}", PDF);
+    }
+
+    @Test
+    public void acceptsNinoAsString() {
+        validator.validate(new InboundMessage(METADATA.replace(
+                "{\"ninoBody\":\"AA000000\",\"ninoSuffix\":\"A\"}", "\"AA000000A\""), PDF), "id");
+    }
+
+    @Test
+    public void checksSizeOfStoredPdf() {
+        validator.validateStoredSize(1024, "id");
+        try {
+            validator.validateStoredSize(1025, "id");
+            Assert.fail("Should reject a stored PDF over the limit");
+        } catch (InvalidRecordException e) {
+            Assert.assertEquals("PDF is 1025 bytes, more than the limit of 1024. (id)", e.getMessage());
+        }
+    }
+
+    @Test
+    public void checksHeaderOfStoredPdf() {
+        validator.validateStoredPdf("%PDF-1.4".getBytes(StandardCharsets.US_ASCII), "id");
+        try {
+            validator.validateStoredPdf("<html>".getBytes(StandardCharsets.US_ASCII), "id");
+            Assert.fail("Should reject a stored file that is not a PDF");
+        } catch (InvalidRecordException e) {
+            Assert.assertEquals("Stored PDF is not a PDF, it does not start with %PDF-. (id)", e.getMessage());
+        }
+    }
+
+    private void assertInvalid(String expected, String metadata, String payload) {
+        try {
+            validator.validate(new InboundMessage(metadata, payload), "id");
+            Assert.fail("Should reject " + payload);
+        } catch (InvalidRecordException e) {
+            Assert.assertEquals(expected, e.getMessage());
+        }
+    }
+}
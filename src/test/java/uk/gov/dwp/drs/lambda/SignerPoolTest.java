@@ -0,0 +1,62 @@
+package uk.gov.dwp.drs.lambda;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.gov.dwp.drs.lambda.util.SignerPool;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class SignerPoolTest {
+    private final SignerPool<String> pool = new SignerPool<>(Arrays.asList("a", "b"));
+
+    @Test
+    public void lendsEachSignerToOneRecordAtATime() throws Exception {
+        SignerPool<String>.Lease first = pool.lease();
+        SignerPool<String>.Lease second = pool.lease();
+
+        Assert.assertNotEquals(first.get(), second.get());
+        Assert.assertEquals(0, first.getWaitStarted());
+        Assert.assertEquals(0, second.getWaitStarted());
+        Assert.assertEquals(0, pool.getAvailable());
+    }
+
+    @Test
+    public void waitsForASignerToComeBack() throws Exception {
+        SignerPool<String>.Lease first = pool.lease();
+        pool.lease();
+        CompletableFuture<SignerPool<String>.Lease> third = CompletableFuture.supplyAsync(this::lease);
+
+        Thread.sleep(100);
+        Assert.assertFalse(third.isDone());
+        first.close();
+        SignerPool<String>.Lease lease = third.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(first.get(), lease.get());
+        Assert.assertNotEquals(0, lease.getWaitStarted());
+    }
+
+    @Test
+    public void returnsOnce() throws Exception {
+        SignerPool<String>.Lease lease = pool.lease();
+        lease.close();
+        lease.close();
+
+        Assert.assertEquals(2, pool.getAvailable());
+        Assert.assertEquals(2, pool.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsASigner() {
+        new SignerPool<>(Collections.emptyList());
+    }
+
+    private SignerPool<String>.Lease lease() {
+        try {
+            return pool.lease();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package uk.gov.dwp.drs.lambda;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+import org.apache.commons.io.IOUtils;
+import uk.gov.dwp.drs.lambda.misc.Utils;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for the DRS gateway, optionally requiring mutual TLS with the test fixture keys.
+ */
+public class StubDrsServer {
+    public static final String TLS_KEY = "/tls/drs_test.key";
+    public static final String TLS_CRT = "/tls/drs_test.crt";
+
+    private final HttpServer server;
+    private final String scheme;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private volatile int status = 200;
+    private volatile long latency = 0;
+    private volatile long maxLatency = 0;
+    private volatile double errorRate = 0;
+    private volatile int errorStatus = 503;
+    private volatile String responseBody = "";
+    private volatile String lastBody;
+    private volatile Headers lastHeaders;
+    private final Queue<int[]> replies = new ConcurrentLinkedQueue<>();
+
+    private StubDrsServer(HttpServer server, String scheme) {
+        this.server = server;
+        this.scheme = scheme;
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool(Utils.makeThreadFactory("stub-drs")));
+        server.start();
+    }
+
+    public static StubDrsServer http() throws IOException {
+        return new StubDrsServer(HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0), "http");
+    }
+
+    public static StubDrsServer https() throws Exception {
+        HttpsServer server = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(serverContext()) {
+            @Override
+            public void configure(HttpsParameters params) {
+                params.setNeedClientAuth(true);
+            }
+        });
+        return new StubDrsServer(server, "https");
+    }
+
+    public static String fixture(String name) throws IOException {
+        try (InputStream in = StubDrsServer.class.getResourceAsStream(name)) {
+            return new String(IOUtils.toByteArray(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static SSLContext serverContext() throws Exception {
+        Certificate cert = CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(fixture(TLS_CRT).getBytes(StandardCharsets.US_ASCII)));
+        String pem = fixture(TLS_KEY).replaceAll("-----(BEGIN|END) PRIVATE KEY-----", "").replaceAll("\\s", "");
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("server", KeyFactory.getInstance("RSA").generatePrivate(
+                new PKCS8EncodedKeySpec(Base64.getDecoder().decode(pem))), new char[0], new Certificate[] { cert });
+        keyStore.setCertificateEntry("client", cert);
+
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, new char[0]);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            reply(exchange);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void reply(HttpExchange exchange) throws IOException {
+        lastHeaders = exchange.getRequestHeaders();
+        lastBody = new String(IOUtils.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8);
+        int[] reply = replies.poll();
+        int status = reply == null ? this.status : reply[0];
+        long latency = reply == null ? this.latency : reply[1];
+        if (reply == null) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            latency += maxLatency > latency ? random.nextLong(maxLatency - latency + 1) : 0;
+            status = errorRate > 0 && random.nextDouble() < errorRate ? errorStatus : status;
+        }
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        byte[] body = responseBody.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/xml");
+        exchange.sendResponseHeaders(status, body.length == 0 ? 0 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    public String getUrl() {
+        return scheme + "://localhost:" + server.getAddress().getPort() + "/DRSWebService/services/DocumentUploadService";
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    /**
+     * Answers the next request with this status after this delay, before going back to the defaults.
+     */
+    public void queueReply(int status, long latency) {
+        replies.add(new int[] { status, (int) latency });
+    }
+
+    public void setLatency(long latency) {
+        setLatency(latency, latency);
+    }
+
+    /**
+     * Delays each response by a random time between min and max milliseconds.
+     */
+    public void setLatency(long min, long max) {
+        this.latency = min;
+        this.maxLatency = max;
+    }
+
+    /**
+     * Answers this fraction of requests, picked at random, with errorStatus instead of the usual status.
+     */
+    public void setErrorRate(double errorRate, int errorStatus) {
+        this.errorRate = errorRate;
+        this.errorStatus = errorStatus;
+    }
+
+    public void setResponseBody(String responseBody) {
+        this.responseBody = responseBody;
+    }
+
+    /**
+     * Most requests being answered at once since the server started.
+     */
+    public int getPeakInFlight() {
+        return peakInFlight.get();
+    }
+
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    public String getLastBody() {
+        return lastBody;
+    }
+
+    public String getLastHeader(String name) {
+        return lastHeaders == null ? null : lastHeaders.getFirst(name);
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+}
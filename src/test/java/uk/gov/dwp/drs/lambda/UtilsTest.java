@@ -5,7 +5,11 @@ import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import org.junit.Assert;
 import org.junit.Test;
 import uk.gov.dwp.drs.lambda.misc.Utils;
+import uk.gov.dwp.drs.lambda.util.InboundMessage;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.UUID;
 
 public class UtilsTest {
@@ -30,4 +34,31 @@ public class UtilsTest {
         Assert.assertNotNull(logger);
         logger.log("This is a sample log message");
     }
+
+    @Test
+    public void testFakeSQSBatch() {
+        SQSEvent evt = Utils.makeSQSEvent(Arrays.asList("A", "B", "C"));
+
+        Assert.assertEquals(3, evt.getRecords().size());
+        Assert.assertEquals("B", evt.getRecords().get(1).getBody());
+        Assert.assertNotEquals(evt.getRecords().get(0).getMessageId(), evt.getRecords().get(1).getMessageId());
+    }
+
+    @Test
+    public void testToInt() {
+        Assert.assertEquals(4, Utils.toInt("4", 1));
+        Assert.assertEquals(4, Utils.toInt(" 4 ", 1));
+        Assert.assertEquals(1, Utils.toInt(null, 1));
+        Assert.assertEquals(1, Utils.toInt("four", 1));
+    }
+
+    @Test
+    public void testSyntheticRecord() throws Exception {
+        InboundMessage message = InboundMessage.read(Utils.makeSyntheticRecord(1000));
+
+        Assert.assertTrue(message.getMetadata().contains("\"benefitType\":4"));
+        byte[] pdf = Base64.getDecoder().decode(message.getPayload());
+        Assert.assertEquals(1000, pdf.length);
+        Assert.assertTrue(new String(pdf, 0, 5, StandardCharsets.US_ASCII).startsWith("%PDF"));
+    }
 }
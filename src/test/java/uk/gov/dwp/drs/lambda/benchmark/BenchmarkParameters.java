@@ -0,0 +1,44 @@
+package uk.gov.dwp.drs.lambda.benchmark;
+
+import uk.gov.dwp.drs.lambda.StubDrsServer;
+import uk.gov.dwp.drs.lambda.util.DrsParameters;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parameters held in memory, so benchmarks never touch the environment or SSM.  The test TLS key pair stands in
+ * for every key and certificate.
+ */
+public class BenchmarkParameters extends DrsParameters {
+    private final Map<String, String> values = new HashMap<>();
+
+    public BenchmarkParameters() throws IOException {
+        String key = StubDrsServer.fixture(StubDrsServer.TLS_KEY);
+        String crt = StubDrsServer.fixture(StubDrsServer.TLS_CRT);
+        values.put(TRANSKEY_PRV, key);
+        values.put(TRANSKEY_PUB, crt);
+        values.put(SIGNKEY_PRV, key);
+        values.put(SIGNKEY_PUB, crt);
+        values.put(CACERT, crt);
+        values.put(CACERT2, crt);
+        values.put(DRSREQUEST_USERNAME, "1234");
+    }
+
+    public BenchmarkParameters with(String name, String value) {
+        values.put(name, value);
+        return this;
+    }
+
+    @Override
+    public String getParameter(String parameter) {
+        return values.get(parameter);
+    }
+
+    // Also called from the DrsParameters constructor, before values is assigned.
+    @Override
+    public String getSystemParameter(String parameter) {
+        return values == null ? null : values.get(parameter);
+    }
+}
@@ -0,0 +1,120 @@
+package uk.gov.dwp.drs.lambda.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.gov.dwp.drs.lambda.StubDrsServer;
+import uk.gov.dwp.drs.lambda.comms.DrsResult;
+import uk.gov.dwp.drs.lambda.comms.PostToServices;
+import uk.gov.dwp.drs.lambda.misc.Utils;
+import uk.gov.dwp.drs.lambda.util.DrsParameters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A batch of DRS posts over mutual TLS to a local stub that answers after a fixed latency, through the blocking
+ * client on a pool of threads and through the async client from one thread. {@code asyncBounded} keeps no more
+ * than {@code threads} async posts in flight, so it is compared with {@code blocking} at the same concurrency; the
+ * unbounded {@code async} run is only comparable with {@code blocking} where {@code threads} equals {@code posts}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DrsClientBenchmark {
+    @Param({"16"})
+    public int posts;
+
+    // threads posting through the blocking client, worker_threads in the handler
+    @Param({"4", "16"})
+    public int threads;
+
+    @Param({"20"})
+    public long latency;
+
+    private StubDrsServer drs;
+    private PostToServices blocking;
+    private PostToServices async;
+    private ExecutorService workers;
+    private String document;
+
+    @Setup
+    public void setup() throws Exception {
+        drs = StubDrsServer.https();
+        drs.setLatency(latency);
+        BenchmarkParameters parameters = new BenchmarkParameters()
+                .with(DrsParameters.DRS_URL, drs.getUrl())
+                .with(DrsParameters.DRS_MAX_CONNECTIONS, String.valueOf(posts));
+        blocking = new PostToServices(parameters);
+        async = new PostToServices(parameters.with(DrsParameters.DRS_ASYNC, "true"));
+        workers = Executors.newFixedThreadPool(threads, Utils.makeThreadFactory("benchmark-worker"));
+        document = Utils.makeSyntheticRecord(65536);
+    }
+
+    @TearDown
+    public void tearDown() {
+        workers.shutdown();
+        drs.stop();
+    }
+
+    @Benchmark
+    public int blocking() throws Exception {
+        List<Future<DrsResult>> results = new ArrayList<>();
+        for (int i = 0; i < posts; i++) {
+            String correlationId = "id-" + i;
+            results.add(workers.submit(() -> blocking.postToDRS(document, correlationId)));
+        }
+        int sent = 0;
+        for (Future<DrsResult> result : results) {
+            sent += result.get().isSuccess() ? 1 : 0;
+        }
+        return sent;
+    }
+
+    @Benchmark
+    public int async() throws Exception {
+        List<CompletableFuture<DrsResult>> results = new ArrayList<>();
+        for (int i = 0; i < posts; i++) {
+            results.add(async.postToDRSAsync(document, "id-" + i, Long.MAX_VALUE));
+        }
+        int sent = 0;
+        for (CompletableFuture<DrsResult> result : results) {
+            sent += result.get().isSuccess() ? 1 : 0;
+        }
+        return sent;
+    }
+
+    @Benchmark
+    public int asyncBounded() throws Exception {
+        Semaphore inFlight = new Semaphore(threads);
+        List<CompletableFuture<DrsResult>> results = new ArrayList<>();
+        for (int i = 0; i < posts; i++) {
+            inFlight.acquire();
+            results.add(async.postToDRSAsync(document, "id-" + i, Long.MAX_VALUE)
+                    .whenComplete((result, failure) -> inFlight.release()));
+        }
+        int sent = 0;
+        for (CompletableFuture<DrsResult> result : results) {
+            sent += result.get().isSuccess() ? 1 : 0;
+        }
+        return sent;
+    }
+}
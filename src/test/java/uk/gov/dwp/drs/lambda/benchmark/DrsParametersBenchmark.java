@@ -0,0 +1,68 @@
+package uk.gov.dwp.drs.lambda.benchmark;
+
+import com.amazonaws.services.simplesystemsmanagement.model.Parameter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.gov.dwp.drs.lambda.StubDrsServer;
+import uk.gov.dwp.drs.lambda.util.DrsParameters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Unpacking gzip and base64 encoded keys as stored under ssmpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DrsParametersBenchmark {
+    private DrsParameters parameters;
+    private Method unpack;
+    private Parameter key;
+    private Parameter certificate;
+
+    private static String pack(String value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream stream = new GZIPOutputStream(out)) {
+            stream.write(value.getBytes(StandardCharsets.US_ASCII));
+        }
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        parameters = new BenchmarkParameters();
+        unpack = DrsParameters.class.getDeclaredMethod("unpack", Parameter.class);
+        unpack.setAccessible(true);
+        key = new Parameter().withName("/nsjsa/" + DrsParameters.TRANSKEY_PRV)
+                .withValue(pack(StubDrsServer.fixture(StubDrsServer.TLS_KEY)));
+        certificate = new Parameter().withName("/nsjsa/" + DrsParameters.CACERT)
+                .withValue(pack(StubDrsServer.fixture(StubDrsServer.TLS_CRT)));
+    }
+
+    @Benchmark
+    public Object unpackKey() throws Exception {
+        return unpack.invoke(parameters, key);
+    }
+
+    @Benchmark
+    public Object unpackCertificate() throws Exception {
+        return unpack.invoke(parameters, certificate);
+    }
+}
@@ -0,0 +1,75 @@
+package uk.gov.dwp.drs.lambda.benchmark;
+
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.gov.dwp.drs.lambda.DrsProcess;
+import uk.gov.dwp.drs.lambda.LocalSqsServer;
+import uk.gov.dwp.drs.lambda.StubDrsServer;
+import uk.gov.dwp.drs.lambda.misc.Utils;
+import uk.gov.dwp.drs.lambda.util.DrsParameters;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One SQS batch end to end: parsing, signing, the DRS post to a local stub and status messages to a local SQS.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DrsProcessBenchmark {
+    @Param({"1", "10"})
+    public int records;
+
+    @Param({"65536"})
+    public int pdfBytes;
+
+    private StubDrsServer drs;
+    private LocalSqsServer sqs;
+    private DrsProcess process;
+    private SQSEvent event;
+
+    @Setup
+    public void setup() throws Exception {
+        // the handler logs a few lines per record
+        Logger.getLogger("LambdaLog").setLevel(Level.WARNING);
+
+        drs = StubDrsServer.http();
+        sqs = new LocalSqsServer();
+        process = new DrsProcess(new BenchmarkParameters()
+                .with(DrsParameters.DRS_URL, drs.getUrl())
+                .with(DrsParameters.RESPONSE_QUEUE, "drs-response")
+                .with(DrsParameters.WORKER_THREADS, "4")
+                .with(DrsParameters.PRIME_ITERATIONS, "0")
+                .with("sqshost", sqs.getEndpoint()));
+        event = Utils.makeSQSEvent(Collections.nCopies(records, Utils.makeSyntheticRecord(pdfBytes)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        drs.stop();
+        sqs.stop();
+    }
+
+    @Benchmark
+    public SQSBatchResponse handleRequest() {
+        return process.handleRequest(event, null);
+    }
+}
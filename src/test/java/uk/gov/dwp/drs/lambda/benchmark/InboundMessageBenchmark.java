@@ -0,0 +1,72 @@
+package uk.gov.dwp.drs.lambda.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.gov.dwp.drs.lambda.util.InboundMessage;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inbound SQS body parsing: the original tree model path against the single pass streaming reader,
+ * for realistic claim PDF sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InboundMessageBenchmark {
+    public static final String METADATA = "{\"businessUnitID\":36,\"classification\":0,\"claimRef\":\"55091b49\"," +
+            "\"documentType\":9877,\"documentSource\":4,\"dateOfBirth\":20000202,\"surname\":\"Pethapuria\"," +
+            "\"forename\":\"\",\"postCode\":\"TE155ST\",\"officePostcode\":\"AB112XD\"," +
+            "\"nino\":{\"ninoBody\":\"AB123456\",\"ninoSuffix\":\"D\"},\"benefitType\":4}";
+
+    @Param({"1048576", "5242880"})
+    public int pdfBytes;
+
+    private String body;
+
+    public static String makeBody(int pdfBytes) {
+        byte[] pdf = new byte[pdfBytes];
+        new Random(pdfBytes).nextBytes(pdf);
+        System.arraycopy("%PDF-1.4\n".getBytes(), 0, pdf, 0, 9);
+        return "{\"metadata\":" + METADATA + ",\"payload\":\"" + Base64.getEncoder().encodeToString(pdf) + "\"}";
+    }
+
+    @Setup
+    public void setup() {
+        body = makeBody(pdfBytes);
+    }
+
+    @Benchmark
+    public void treeModel(Blackhole blackhole) throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        JsonNode jsonNode = objectMapper.readTree(body);
+        String pdf = jsonNode.get("payload").textValue();
+        blackhole.consume(jsonNode.get("metadata").toString());
+        blackhole.consume((pdf.startsWith("\"") && pdf.endsWith("\"")) ? pdf.substring(1, pdf.length() - 1) : pdf);
+    }
+
+    @Benchmark
+    public void streaming(Blackhole blackhole) throws IOException {
+        InboundMessage message = InboundMessage.read(body);
+        blackhole.consume(message.getMetadata());
+        blackhole.consume(message.getPayload());
+    }
+}
@@ -0,0 +1,51 @@
+package uk.gov.dwp.drs.lambda.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.gov.dwp.components.drs.creator.api.MetadataCreator;
+import uk.gov.dwp.drs.lambda.misc.Utils;
+import uk.gov.dwp.drs.lambda.util.DrsParameters;
+import uk.gov.dwp.drs.lambda.util.InboundMessage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building and signing the DRS envelope for a range of PDF sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataCreatorBenchmark {
+    @Param({"65536", "1048576", "5242880"})
+    public int pdfBytes;
+
+    private MetadataCreator metadataCreator;
+    private InboundMessage message;
+
+    @Setup
+    public void setup() throws Exception {
+        DrsParameters parameters = new BenchmarkParameters();
+        metadataCreator = new MetadataCreator(
+                parameters.getParameter(DrsParameters.SIGNKEY_PRV),
+                parameters.getParameter(DrsParameters.SIGNKEY_PUB),
+                parameters.getParameter(DrsParameters.DRSREQUEST_USERNAME));
+        message = InboundMessage.read(Utils.makeSyntheticRecord(pdfBytes));
+    }
+
+    @Benchmark
+    public String getDocument() {
+        return metadataCreator.getDocument(message.getMetadata(), message.getPayload());
+    }
+}
@@ -0,0 +1,58 @@
+package uk.gov.dwp.drs.lambda.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.gov.dwp.drs.lambda.LocalSqsServer;
+import uk.gov.dwp.drs.lambda.comms.MsgLogging;
+import uk.gov.dwp.drs.lambda.util.DrsParameters;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialising the status messages sent for every record.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MsgLoggingBenchmark {
+    private final String correlationId = UUID.randomUUID().toString();
+    private LocalSqsServer sqs;
+    private MsgLogging msgLogging;
+
+    @Setup
+    public void setup() throws Exception {
+        sqs = new LocalSqsServer();
+        msgLogging = new MsgLogging(new BenchmarkParameters()
+                .with(DrsParameters.RESPONSE_QUEUE, "drs-response")
+                .with("sqshost", sqs.getEndpoint()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        sqs.stop();
+    }
+
+    @Benchmark
+    public String succeeded() {
+        return msgLogging.toJson("SUCCEEDED", correlationId, null, null);
+    }
+
+    @Benchmark
+    public String failed() {
+        return msgLogging.toJson("FAILED", correlationId,
+                "Application failed to send to DRS. (" + correlationId + ")", null);
+    }
+}
@@ -0,0 +1,42 @@
+package uk.gov.dwp.drs.lambda.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.gov.dwp.drs.lambda.comms.PostToServices;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the transport PEMs into an SSLContext, paid at every cold start and key rotation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostToServicesBenchmark {
+    private PostToServices postToServices;
+    private Method initSSL;
+
+    @Setup
+    public void setup() throws Exception {
+        postToServices = new PostToServices(new BenchmarkParameters());
+        initSSL = PostToServices.class.getDeclaredMethod("initSSL");
+        initSSL.setAccessible(true);
+    }
+
+    @Benchmark
+    public Object initSSL() throws Exception {
+        return initSSL.invoke(postToServices);
+    }
+}
@@ -0,0 +1,89 @@
+package uk.gov.dwp.drs.lambda.loadtest;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+import java.util.UUID;
+
+/**
+ * Context for one simulated invocation with the given timeout.  Log lines are dropped.
+ */
+public class LoadContext implements Context {
+    private static final LambdaLogger QUIET = new LambdaLogger() {
+        @Override
+        public void log(String message) {
+            // dropped, one line per record would swamp the report
+        }
+
+        @Override
+        public void log(byte[] message) {
+            // dropped
+        }
+    };
+
+    private final String requestId = UUID.randomUUID().toString();
+    private final long deadline;
+    private final int memoryLimit;
+
+    public LoadContext(long timeoutMillis, int memoryLimit) {
+        this.deadline = System.currentTimeMillis() + timeoutMillis;
+        this.memoryLimit = memoryLimit;
+    }
+
+    @Override
+    public String getAwsRequestId() {
+        return requestId;
+    }
+
+    @Override
+    public String getLogGroupName() {
+        return "/aws/lambda/drs-lambda-loadtest";
+    }
+
+    @Override
+    public String getLogStreamName() {
+        return "loadtest";
+    }
+
+    @Override
+    public String getFunctionName() {
+        return "drs-lambda-loadtest";
+    }
+
+    @Override
+    public String getFunctionVersion() {
+        return "$LATEST";
+    }
+
+    @Override
+    public String getInvokedFunctionArn() {
+        return "arn:aws:lambda:eu-west-2:000000000000:function:drs-lambda-loadtest";
+    }
+
+    @Override
+    public CognitoIdentity getIdentity() {
+        return null;
+    }
+
+    @Override
+    public ClientContext getClientContext() {
+        return null;
+    }
+
+    @Override
+    public int getRemainingTimeInMillis() {
+        return (int) Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    @Override
+    public int getMemoryLimitInMB() {
+        return memoryLimit;
+    }
+
+    @Override
+    public LambdaLogger getLogger() {
+        return QUIET;
+    }
+}
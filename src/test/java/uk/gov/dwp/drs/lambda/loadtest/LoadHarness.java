@@ -0,0 +1,298 @@
+package uk.gov.dwp.drs.lambda.loadtest;
+
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import org.apache.commons.io.FileUtils;
+import uk.gov.dwp.drs.lambda.DrsProcess;
+import uk.gov.dwp.drs.lambda.LocalSqsServer;
+import uk.gov.dwp.drs.lambda.StubDrsServer;
+import uk.gov.dwp.drs.lambda.benchmark.BenchmarkParameters;
+import uk.gov.dwp.drs.lambda.metrics.Metrics;
+import uk.gov.dwp.drs.lambda.misc.Utils;
+import uk.gov.dwp.drs.lambda.util.DrsParameters;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends many records through DrsProcess, as a number of containers each taking one SQS batch at a time, against an
+ * in-process mutual TLS stub DRS and a local SQS.  Reports throughput, per stage latency percentiles and the heap
+ * high-water mark, for sizing worker threads, connections and memory without AWS.
+ *
+ * <pre>
+ *   mvn -Ploadtest verify -Dloadtest.args="--records 2000 --concurrency 4 --workers 4 --latency 50-300"
+ * </pre>
+ */
+public class LoadHarness {
+    private static final String RESPONSE_QUEUE = "drs-response";
+    private static final String USAGE = "Options:\n"
+            + "  --records N            records to send (default 1000)\n"
+            + "  --batch-size N         records per SQS batch (default 10)\n"
+            + "  --concurrency N        containers running at the same time (default 1)\n"
+            + "  --workers N            worker_threads in each container (default 1)\n"
+            + "  --pdf-bytes N          size of the generated PDFs (default 65536)\n"
+            + "  --replay PATH          replay application JSON files from a file or directory instead\n"
+            + "  --latency MS[-MS]      stub DRS response time, fixed or a random range (default 0)\n"
+            + "  --error-rate FRACTION  share of DRS posts answered with --error-status (default 0)\n"
+            + "  --error-status CODE    status for those posts (default 503)\n"
+            + "  --timeout SECONDS      invocation timeout (default 900)\n"
+            + "  --set NAME=VALUE       any other parameter, for example drs_max_connections=4";
+
+    private int records = 1000;
+    private int batchSize = 10;
+    private int concurrency = 1;
+    private int pdfBytes = 65536;
+    private String replay;
+    private long minLatency;
+    private long maxLatency;
+    private double errorRate;
+    private int errorStatus = 503;
+    private int timeout = 900;
+    private final Map<String, String> parameters = new LinkedHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        try {
+            System.out.println(parse(args).run());
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage() + "\n" + USAGE);
+            System.exit(2);
+        }
+        // the stub servers and the parameter refresh leave threads behind
+        System.exit(0);
+    }
+
+    public static LoadHarness parse(String... args) {
+        LoadHarness harness = new LoadHarness();
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("No value for " + option);
+            }
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "--records":
+                        harness.records = Integer.parseInt(value);
+                        break;
+                    case "--batch-size":
+                        harness.batchSize = Integer.parseInt(value);
+                        break;
+                    case "--concurrency":
+                        harness.concurrency = Integer.parseInt(value);
+                        break;
+                    case "--workers":
+                        harness.parameters.put(DrsParameters.WORKER_THREADS, value);
+                        break;
+                    case "--pdf-bytes":
+                        harness.pdfBytes = Integer.parseInt(value);
+                        break;
+                    case "--replay":
+                        harness.replay = value;
+                        break;
+                    case "--latency":
+                        String[] range = value.split("-", 2);
+                        harness.minLatency = Long.parseLong(range[0]);
+                        harness.maxLatency = range.length == 1 ? harness.minLatency : Long.parseLong(range[1]);
+                        break;
+                    case "--error-rate":
+                        harness.errorRate = Double.parseDouble(value);
+                        break;
+                    case "--error-status":
+                        harness.errorStatus = Integer.parseInt(value);
+                        break;
+                    case "--timeout":
+                        harness.timeout = Integer.parseInt(value);
+                        break;
+                    case "--set":
+                        String[] pair = value.split("=", 2);
+                        if (pair.length != 2) {
+                            throw new IllegalArgumentException("Expected NAME=VALUE for --set, got " + value);
+                        }
+                        harness.parameters.put(pair[0], pair[1]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad value for " + option + ": " + value, e);
+            }
+        }
+        if (harness.records < 1 || harness.batchSize < 1 || harness.concurrency < 1) {
+            throw new IllegalArgumentException("--records, --batch-size and --concurrency must be at least 1");
+        }
+        return harness;
+    }
+
+    public Report run() throws Exception {
+        List<String> bodies = replay == null ? Collections.singletonList(Utils.makeSyntheticRecord(pdfBytes)) : readReplay();
+        StubDrsServer drs = StubDrsServer.https();
+        LocalSqsServer sqs = new LocalSqsServer();
+        drs.setLatency(minLatency, maxLatency);
+        drs.setErrorRate(errorRate, errorStatus);
+
+        RecordingMetrics metrics = new RecordingMetrics();
+        List<DrsProcess> containers = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            BenchmarkParameters containerParameters = new BenchmarkParameters()
+                    .with(DrsParameters.DRS_URL, drs.getUrl())
+                    .with(DrsParameters.RESPONSE_QUEUE, RESPONSE_QUEUE)
+                    .with(DrsParameters.PRIME_ITERATIONS, "0")
+                    .with(DrsParameters.PARTIAL_BATCH_FAILURES, "true")
+                    .with("sqshost", sqs.getEndpoint());
+            parameters.forEach(containerParameters::with);
+            containers.add(new DrsProcess(containerParameters, metrics));
+        }
+
+        int memoryLimit = (int) (Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger itemFailures = new AtomicInteger();
+        AtomicLong heapHighWater = new AtomicLong();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(Utils.makeThreadFactory("loadtest-heap"));
+        sampler.scheduleAtFixedRate(() -> heapHighWater.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+                0, 10, TimeUnit.MILLISECONDS);
+        ExecutorService runners = Executors.newFixedThreadPool(concurrency, Utils.makeThreadFactory("loadtest-container"));
+
+        long started = System.nanoTime();
+        long elapsed;
+        try {
+            List<Future<?>> running = new ArrayList<>();
+            for (DrsProcess container : containers) {
+                running.add(runners.submit(() -> {
+                    // each container takes the next batch once it has finished the last, as Lambda does
+                    for (int from = next.getAndAdd(batchSize); from < records; from = next.getAndAdd(batchSize)) {
+                        List<String> batch = new ArrayList<>();
+                        for (int i = from; i < Math.min(from + batchSize, records); i++) {
+                            batch.add(bodies.get(i % bodies.size()));
+                        }
+                        SQSBatchResponse response = container.handleRequest(Utils.makeSQSEvent(batch),
+                                new LoadContext(timeout * 1000L, memoryLimit));
+                        itemFailures.addAndGet(response.getBatchItemFailures().size());
+                    }
+                }));
+            }
+            for (Future<?> container : running) {
+                container.get();
+            }
+            elapsed = System.nanoTime() - started;
+        } finally {
+            sampler.shutdownNow();
+            runners.shutdownNow();
+            drs.stop();
+            sqs.stop();
+        }
+        return new Report(this, metrics, elapsed, itemFailures.get(), drs.getRequestCount(),
+                sqs.getMessages(RESPONSE_QUEUE).size(), heapHighWater.get(), Runtime.getRuntime().maxMemory());
+    }
+
+    private List<String> readReplay() throws IOException {
+        File path = new File(replay);
+        File[] files = path.isDirectory() ? path.listFiles((dir, name) -> name.endsWith(".json")) : new File[] { path };
+        if (files == null || files.length == 0) {
+            throw new IllegalArgumentException("No .json files to replay in " + replay);
+        }
+        Arrays.sort(files);
+        List<String> bodies = new ArrayList<>();
+        for (File file : files) {
+            bodies.add(FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+        }
+        return bodies;
+    }
+
+    public static class Report {
+        private static final double[] PERCENTILES = { 50, 95, 99 };
+        private static final long MB = 1024 * 1024;
+
+        private final LoadHarness harness;
+        private final RecordingMetrics metrics;
+        private final long elapsedNanos;
+        private final int itemFailures;
+        private final int drsRequests;
+        private final int statusMessages;
+        private final long heapHighWater;
+        private final long maxHeap;
+
+        Report(LoadHarness harness, RecordingMetrics metrics, long elapsedNanos, int itemFailures, int drsRequests,
+               int statusMessages, long heapHighWater, long maxHeap) {
+            this.harness = harness;
+            this.metrics = metrics;
+            this.elapsedNanos = elapsedNanos;
+            this.itemFailures = itemFailures;
+            this.drsRequests = drsRequests;
+            this.statusMessages = statusMessages;
+            this.heapHighWater = heapHighWater;
+            this.maxHeap = maxHeap;
+        }
+
+        public RecordingMetrics getMetrics() {
+            return metrics;
+        }
+
+        public double getThroughput() {
+            return metrics.getRecords() / (elapsedNanos / 1e9);
+        }
+
+        public int getItemFailures() {
+            return itemFailures;
+        }
+
+        public int getDrsRequests() {
+            return drsRequests;
+        }
+
+        public int getStatusMessages() {
+            return statusMessages;
+        }
+
+        public long getHeapHighWater() {
+            return heapHighWater;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append(String.format("DRS load test: %d records in batches of %d, %d containers, worker_threads=%s%n",
+                    harness.records, harness.batchSize, harness.concurrency,
+                    harness.parameters.getOrDefault(DrsParameters.WORKER_THREADS, "1")));
+            report.append(String.format("Stub DRS over mutual TLS: %d-%d ms, %.1f%% answered %d%n%n",
+                    harness.minLatency, harness.maxLatency, harness.errorRate * 100, harness.errorStatus));
+            report.append(String.format("Throughput       %.1f records/s over %.1f s%n", getThroughput(), elapsedNanos / 1e9));
+            report.append(String.format("Records          %d, %d failed, %d returned to SQS%n",
+                    metrics.getRecords(), metrics.getFailed(), itemFailures));
+            report.append(String.format("DRS requests     %d%n", drsRequests));
+            report.append(String.format("Status messages  %d%n", statusMessages));
+            report.append(String.format("Heap high-water  %d MB of %d MB%n", heapHighWater / MB, maxHeap / MB));
+            metrics.getCounts().forEach((name, count) -> report.append(String.format("%-17s%d%n", name, count)));
+
+            report.append(String.format("%n%-16s %8s %9s %9s %9s%n", "ms", "samples", "p50", "p95", "p99"));
+            for (Metrics.Stage stage : Metrics.Stage.values()) {
+                report.append(String.format("%-16s %8d", stage.getMetricName(), metrics.samples(stage)));
+                for (double percentile : PERCENTILES) {
+                    report.append(String.format(" %9.2f", metrics.percentile(stage, percentile)));
+                }
+                report.append(String.format("%n"));
+            }
+            report.append(String.format("%-16s %8s", "BatchTime", ""));
+            for (double percentile : PERCENTILES) {
+                report.append(String.format(" %9.2f", metrics.batchPercentile(percentile)));
+            }
+            return report.append(String.format("%n")).toString();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package uk.gov.dwp.drs.lambda.loadtest;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import uk.gov.dwp.drs.lambda.metrics.Metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps every stage time from every batch in memory for percentiles at the end of a load test.
+ */
+public class RecordingMetrics implements Metrics {
+    private final Map<Stage, List<Long>> stages = new EnumMap<>(Stage.class);
+    private final List<Long> batches = new ArrayList<>();
+    private final Map<String, Integer> counts = new TreeMap<>();
+    private int records;
+    private int failed;
+
+    @Override
+    public Batch startBatch() {
+        return new Batch() {
+            @Override
+            public long stage(Stage stage, long started) {
+                long now = System.nanoTime();
+                synchronized (RecordingMetrics.this) {
+                    stages.computeIfAbsent(stage, s -> new ArrayList<>()).add(now - started);
+                }
+                return now;
+            }
+
+            @Override
+            public void payload(int bytes) {
+                // sizes are known up front
+            }
+
+            @Override
+            public void count(String name, int value) {
+                synchronized (RecordingMetrics.this) {
+                    counts.merge(name, value, Integer::sum);
+                }
+            }
+
+            @Override
+            public void percent(String name, double value) {
+                // the report works out its own rates
+            }
+
+            @Override
+            public void finish(int records, int failed, long durationNanos, LambdaLogger logger) {
+                synchronized (RecordingMetrics.this) {
+                    RecordingMetrics.this.records += records;
+                    RecordingMetrics.this.failed += failed;
+                    batches.add(durationNanos);
+                }
+            }
+        };
+    }
+
+    public synchronized int getRecords() {
+        return records;
+    }
+
+    public synchronized int getFailed() {
+        return failed;
+    }
+
+    public synchronized Map<String, Integer> getCounts() {
+        return new TreeMap<>(counts);
+    }
+
+    /**
+     * Nearest rank percentile of the stage times in milliseconds, or NaN if the stage never ran.
+     */
+    public synchronized double percentile(Stage stage, double percentile) {
+        return percentile(stages.get(stage), percentile);
+    }
+
+    public synchronized double batchPercentile(double percentile) {
+        return percentile(batches, percentile);
+    }
+
+    public synchronized int samples(Stage stage) {
+        List<Long> values = stages.get(stage);
+        return values == null ? 0 : values.size();
+    }
+
+    private static double percentile(List<Long> values, double percentile) {
+        if (values == null || values.isEmpty()) {
+            return Double.NaN;
+        }
+        long[] sorted = values.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1000000.0;
+    }
+}